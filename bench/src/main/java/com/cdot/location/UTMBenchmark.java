@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.location;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for converting between lat/long and UTM, done for every sample drawn on a chart
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UTMBenchmark {
+
+    private static final int POINTS = 1024;
+
+    private double[] mLat, mLon; // points to convert
+    private UTM[] mUTM; // the same points in UTM
+    private int mNext = 0; // index of the next point to convert
+
+    @Setup
+    public void setUp() {
+        mLat = new double[POINTS];
+        mLon = new double[POINTS];
+        mUTM = new UTM[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            // Spread over the globe, away from the poles where toLATLON() gives up
+            mLat[i] = -75 + (i * 150.0 / POINTS);
+            mLon[i] = -179 + (i * 7919 % POINTS) * 358.0 / POINTS;
+            mUTM[i] = new UTM(mLat[i], mLon[i]);
+        }
+    }
+
+    @Benchmark
+    public UTM fromLatLong() {
+        int i = mNext;
+        mNext = (i + 1) % POINTS;
+        return new UTM(mLat[i], mLon[i]);
+    }
+
+    @Benchmark
+    public double[] toLatLong() {
+        int i = mNext;
+        mNext = (i + 1) % POINTS;
+        // toLATLON() changes the UTM, so convert a copy
+        return new UTM(mUTM[i]).toLATLON();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import java.util.Random;
+
+/**
+ * A repeatable track of samples shaped like a slow survey, for the sampler benchmarks
+ */
+class BenchmarkTrack {
+
+    /**
+     * Make a track. The same n always gives the same samples.
+     *
+     * @param n number of samples
+     * @return the samples, 8 a second with the position and depth drifting
+     */
+    static Sample[] make(int n) {
+        Random r = new Random(42);
+        Sample[] ss = new Sample[n];
+        double lat = 53.5, lon = -2.25;
+        float depth = 5;
+        for (int i = 0; i < n; i++) {
+            lat += (r.nextInt(21) - 5) * 1e-7;
+            lon += (r.nextInt(21) - 10) * 1e-7;
+            depth = Math.max(0, depth + (r.nextInt(11) - 5) / 1000f);
+            Sample s = new Sample(1600000000000L + i * 125L + r.nextInt(3), lat, lon, depth, 60 + r.nextInt(3));
+            if (i % 50 < 5) {
+                s.fishDepth = depth / 2;
+                s.fishStrength = 8;
+            }
+            s.temperature = 12.5f + i / 10000 / 100f;
+            s.battery = 6;
+            ss[i] = s;
+        }
+        return ss;
+    }
+}
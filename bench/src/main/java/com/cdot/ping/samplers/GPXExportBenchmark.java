@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import com.cdot.location.GPXWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for writing samples as GPX, from Sample objects and from a SampleBatch. Times are
+ * per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GPXExportBenchmark {
+
+    private static final int TRACK = 4096; // samples in the track
+
+    // Discards what is written, so only the formatting is measured
+    private static class NullWriter extends Writer {
+        long chars = 0;
+
+        @Override // Writer
+        public void write(char[] cbuf, int off, int len) {
+            chars += len;
+        }
+
+        @Override // Writer
+        public void write(String str, int off, int len) {
+            chars += len;
+        }
+
+        @Override // Writer
+        public void flush() {
+        }
+
+        @Override // Writer
+        public void close() {
+        }
+    }
+
+    private Sample[] mTrack; // samples to write
+    private SampleBatch mBatch; // the same samples, in a batch
+    private NullWriter mOut;
+
+    @Setup
+    public void setUp() {
+        mTrack = BenchmarkTrack.make(TRACK);
+        mBatch = new SampleBatch(TRACK);
+        for (Sample s : mTrack)
+            mBatch.add(s);
+        mOut = new NullWriter();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACK)
+    public long writeSamples() throws IOException {
+        GPXWriter w = new GPXWriter(mOut);
+        w.continueDocument(3);
+        for (Sample s : mTrack)
+            s.writeGPX(w);
+        return mOut.chars;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACK)
+    public long writeBatch() throws IOException {
+        GPXWriter w = new GPXWriter(mOut);
+        w.continueDocument(3);
+        mBatch.writeGPX(w);
+        return mOut.chars;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACK)
+    public long writeBatchCSV() throws IOException {
+        mBatch.writeCSV(mOut);
+        return mOut.chars;
+    }
+}
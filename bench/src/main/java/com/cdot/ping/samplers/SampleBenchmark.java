@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for serialising samples to and from the log, in both the fixed size and the
+ * compressed formats. Times are per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleBenchmark {
+
+    private static final int TRACK = 4096; // samples in the track
+
+    private Sample[] mTrack; // samples to serialise
+    private byte[] mBytes; // the first sample, serialised
+    private ByteArrayInputStream mBis; // stream over mBytes
+    private DataInputStream mDis; // data stream over mBis
+    private SampleBlockCodec mCodec; // codec for the compressed format
+    private ByteBuffer mEncoded; // buffer to encode into
+    private ByteBuffer mTrackEncoded; // the whole track, encoded
+
+    @Setup
+    public void setUp() {
+        mTrack = BenchmarkTrack.make(TRACK);
+        mBytes = mTrack[0].toByteArray(Sample.BYTES);
+        mBis = new ByteArrayInputStream(mBytes);
+        mDis = new DataInputStream(mBis);
+        mCodec = new SampleBlockCodec();
+        mEncoded = ByteBuffer.allocate(TRACK * Sample.BYTES);
+        mTrackEncoded = ByteBuffer.allocate(TRACK * Sample.BYTES);
+        mCodec.startEncoding(0, 0);
+        for (Sample s : mTrack)
+            mCodec.encode(s, mTrackEncoded);
+        mTrackEncoded.flip();
+    }
+
+    @Benchmark
+    public byte[] toByteArray() {
+        return mTrack[0].toByteArray(Sample.BYTES);
+    }
+
+    @Benchmark
+    public byte[] toByteArrayV1() {
+        return mTrack[0].toByteArray(Sample.V1_BYTES);
+    }
+
+    @Benchmark
+    public Sample fromDataStream() throws IOException {
+        mBis.reset();
+        return Sample.fromDataStream(mDis, Sample.BYTES);
+    }
+
+    @Benchmark
+    public Sample fromByteArray() throws IOException {
+        return Sample.fromByteArray(mBytes, 0, Sample.BYTES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACK)
+    public int encodeCompressed() {
+        mEncoded.clear();
+        mCodec.startEncoding(0, 0);
+        for (Sample s : mTrack)
+            mCodec.encode(s, mEncoded);
+        return mEncoded.position();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TRACK)
+    public long decodeCompressed() {
+        long check = 0;
+        int bytes = mTrackEncoded.limit();
+        for (int block = 0; block < bytes; block += SampleBlockCodec.BLOCK_BYTES) {
+            mTrackEncoded.position(block);
+            while (mCodec.decode(mTrackEncoded, block))
+                check += mCodec.time();
+        }
+        return check;
+    }
+}
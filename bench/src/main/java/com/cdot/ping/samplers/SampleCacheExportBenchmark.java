@@ -0,0 +1,133 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import com.cdot.location.GPXWriter;
+import com.cdot.utils.CommitPolicy;
+import com.cdot.utils.ConcurrentFileByteFIFO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for exporting the whole sample cache as GPX, reading it as Sample objects and
+ * through a SampleCursor into a SampleBatch. Unlike GPXExportBenchmark this includes reading and
+ * decoding the cache. Times are per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SampleCacheExportBenchmark {
+
+    private static final int SAMPLES = 65536; // samples in the cache
+    private static final int CHUNK = 4096; // samples read at a time, as LoggingService exports
+
+    // Discards what is written, so only reading and formatting are measured
+    private static class NullWriter extends Writer {
+        long chars = 0;
+
+        @Override // Writer
+        public void write(char[] cbuf, int off, int len) {
+            chars += len;
+        }
+
+        @Override // Writer
+        public void write(String str, int off, int len) {
+            chars += len;
+        }
+
+        @Override // Writer
+        public void flush() {
+        }
+
+        @Override // Writer
+        public void close() {
+        }
+    }
+
+    private File mFile; // cache file, deleted after the trial
+    private SampleCache mCache; // cache to export
+    private Sample[] mSamples; // snapshot buffer
+    private SampleCursor mCursor; // cursor over the cache
+    private SampleBatch mBatch; // batch the cursor fills
+    private NullWriter mOut;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("export", ".bench");
+        mFile.delete();
+        mCache = new SampleCache(mFile, SAMPLES, ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        mCache.add(BenchmarkTrack.make(SAMPLES));
+        mSamples = new Sample[CHUNK];
+        mCursor = new SampleCursor(mCache, CHUNK);
+        mBatch = new SampleBatch(CHUNK);
+        mOut = new NullWriter();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mCache.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long exportSamples() throws IOException {
+        GPXWriter w = new GPXWriter(mOut);
+        w.continueDocument(3);
+        long from = mCache.getStartPosition();
+        int n;
+        while ((n = mCache.snapshot(from, mSamples, 0, CHUNK)) > 0) {
+            for (int i = 0; i < n; i++)
+                mSamples[i].writeGPX(w);
+            from += (long) n * mCache.getSampleBytes();
+        }
+        return mOut.chars;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long exportBatch() throws IOException {
+        GPXWriter w = new GPXWriter(mOut);
+        w.continueDocument(3);
+        mCursor.seek(mCache.getRange());
+        while (mBatch.fill(mCursor) > 0)
+            mBatch.writeGPX(w);
+        return mOut.chars;
+    }
+}
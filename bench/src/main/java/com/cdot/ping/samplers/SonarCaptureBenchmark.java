@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for replaying a capture as fast as possible, as SonarReplay does with a speed of 0.
+ * Times are per packet; the device sends 8 packets a second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SonarCaptureBenchmark {
+
+    private static final int PACKETS = 8192; // packets in the capture
+
+    // Counts what is played
+    private static class Counter implements SonarCapture.Listener {
+        int packets = 0;
+
+        @Override // SonarCapture.Listener
+        public void onPacket(byte[] packet) {
+            packets++;
+        }
+
+        @Override // SonarCapture.Listener
+        public void onLocation(double latitude, double longitude) {
+        }
+    }
+
+    private byte[] mCapture; // the capture file
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        SonarCapture.Recorder rec = new SonarCapture.Recorder(bs);
+        byte[] packet = {'S', 'F', 0, 0, 0, 9, 0, 0, 50, 0, 0, 0x60, 60, 0, 0, 0, 0, 0};
+        for (int i = 0; i < PACKETS; i++) {
+            long time = 1600000000000L + i * 125L;
+            // A location every second, as the location sampler delivers them
+            if (i % 8 == 0)
+                rec.writeLocation(time, 53 + i * 1e-6, -2 - i * 1e-6);
+            packet[6] = (byte) (i >> 8);
+            packet[7] = (byte) i;
+            packet[17] = (byte) SonarPacketDecoder.checksum(packet, 0);
+            rec.writePacket(time, packet, 0);
+        }
+        rec.close();
+        mCapture = bs.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int replayFlatOut() throws IOException, InterruptedException {
+        SonarCapture.Player player = new SonarCapture.Player(new ByteArrayInputStream(mCapture));
+        Counter counter = new Counter();
+        player.play(0, counter);
+        return counter.packets;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for decoding the packets received from the sonar, which happens for every packet
+ * whether or not a sample is logged
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SonarPacketDecoderBenchmark {
+
+    private SonarPacketDecoder mDecoder;
+    private Sample mSample; // decoded into
+    private byte[] mPackets; // packets to decode, one after the other
+    private int mNext = 0; // offset of the next packet to decode
+
+    @Setup
+    public void setUp() {
+        mDecoder = new SonarPacketDecoder();
+        mSample = new Sample();
+        mPackets = new byte[256 * SonarPacketDecoder.PACKET_BYTES];
+        for (int i = 0; i < 256; i++) {
+            int p = i * SonarPacketDecoder.PACKET_BYTES;
+            byte[] packet = {'S', 'F', 0, 0, 0, 9,
+                    (byte) i, (byte) (i % 100), (byte) (255 - i),
+                    (byte) (i / 2), (byte) (i % 100), (byte) ((6 << 4) | (i % 11)),
+                    (byte) (50 + i % 20), (byte) (i % 100), 0, 0, 0, 0};
+            packet[17] = (byte) SonarPacketDecoder.checksum(packet, 0);
+            System.arraycopy(packet, 0, mPackets, p, SonarPacketDecoder.PACKET_BYTES);
+        }
+    }
+
+    @Benchmark
+    public int decode() {
+        int r = mDecoder.decode(mPackets, mNext, SonarPacketDecoder.PACKET_BYTES, mSample);
+        mNext = (mNext + SonarPacketDecoder.PACKET_BYTES) % mPackets.length;
+        return r;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the ConcurrentFileByteFIFO operations used for every sample logged and every
+ * redraw. The buffer is filled before measuring, so every add wraps round and discards the oldest
+ * record, which is the steady state of a long logging session. Record sizes that don't divide
+ * the capacity make records straddle the physical end of the file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConcurrentFileByteFIFOBenchmark {
+
+    @Param({"16", "35", "1024"})
+    public int recordBytes; // size of each record added or removed
+
+    @Param({"65536", "16777216"})
+    public long capacityBytes; // size of the buffer
+
+    @Param({"RANDOM_ACCESS", "MAPPED"})
+    public ConcurrentFileByteFIFO.Engine engine;
+
+    @Param({"false", "true"})
+    public boolean framed; // whether adds are framed for recovery
+
+    private File mFile; // buffer file, deleted after the trial
+    private ConcurrentFileByteFIFO mFifo; // buffer under test
+    private byte[] mRecord; // record being added or removed
+    private ByteBuffer mDirect; // direct buffer for positional snapshots
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fifo", ".bench");
+        mFile.delete();
+        mFifo = new ConcurrentFileByteFIFO(mFile, capacityBytes, engine, CommitPolicy.ON_FLUSH, framed);
+        mFifo.setRecordBytes(recordBytes);
+        mRecord = new byte[recordBytes];
+        for (int i = 0; i < recordBytes; i++)
+            mRecord[i] = (byte) i;
+        mDirect = ByteBuffer.allocateDirect(recordBytes);
+        // Fill it, then some, so the write position has wrapped
+        for (long i = 0; i < capacityBytes / recordBytes + 2; i++)
+            mFifo.add(mRecord);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mFifo.close();
+        mFile.delete();
+    }
+
+    /**
+     * Add to a full buffer, discarding the oldest record
+     */
+    @Benchmark
+    public void addWrapping() throws IOException {
+        mFifo.add(mRecord);
+    }
+
+    /**
+     * Remove the oldest record and add a new one, so the buffer stays full and both the read and
+     * write positions wrap round
+     */
+    @Benchmark
+    public int removeAdd() throws IOException {
+        int r = mFifo.remove(mRecord, 0, recordBytes);
+        mFifo.add(mRecord);
+        return r;
+    }
+
+    /**
+     * Read the newest record, as done for every redraw
+     */
+    @Benchmark
+    public int snapshotNewest() throws IOException {
+        return mFifo.snapshot(mRecord, 0, recordBytes);
+    }
+
+    /**
+     * Read the oldest record from its logical position into a direct buffer, as done by cursors
+     */
+    @Benchmark
+    public int snapshotOldest() throws IOException {
+        mDirect.clear();
+        return mFifo.snapshot(mFifo.getStartPosition(), mDirect);
+    }
+}
@@ -19,61 +19,214 @@
 package com.cdot.location;
 
 import android.content.ContentResolver;
-import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
-import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.InputSource;
-
-import java.io.FileInputStream;
-import java.text.SimpleDateFormat;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
 
 public class GPX {
-    // GPX
-    public static final SimpleDateFormat ISO_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+    // Number of chars in a timestamp, e.g. 2020-09-13T12:26:40.123Z
+    public static final int TIMESTAMP_CHARS = 24;
     // Namespaces
     public static final String NS_GPX = "http://www.topografix.com/GPX/1/1";
     private static final String TAG = GPX.class.getSimpleName();
     //xmlns:xsi=http://www.w3.org/2001/XMLSchema-instance
     //xsi:schemaLocation="http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
 
-    public static Document openDocument(ContentResolver cr, Uri uri, String creator) {
-        Document gpxDocument = null;
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        dbf.setNamespaceAware(true);
-        dbf.setValidating(false);
-        try {
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            Element gpxTrk;
-            try {
-                AssetFileDescriptor afd = cr.openAssetFileDescriptor(uri, "r");
-                InputSource source = new InputSource(new FileInputStream(afd.getFileDescriptor()));
-                Log.d(TAG, "Parsing existing content");
-                gpxDocument = db.parse(source);
-                afd.close();
-                Log.d(TAG, "...existing content retained");
-            } catch (Exception ouch) {
-                Log.e(TAG, ouch.toString());
-                Log.d(TAG, "Creating new document");
-                gpxDocument = db.newDocument();
-                gpxDocument.setDocumentURI(uri.toString());
-                gpxDocument.setXmlVersion("1.1");
-                gpxDocument.setXmlStandalone(true);
-                Element gpxGpx = gpxDocument.createElementNS(GPX.NS_GPX, "gpx");
-                gpxGpx.setAttribute("version", "1.1");
-                gpxGpx.setAttribute("creator", creator);
-                gpxDocument.appendChild(gpxGpx);
-                gpxTrk = gpxDocument.createElementNS(GPX.NS_GPX, "trk");
-                gpxGpx.appendChild(gpxTrk);
+    // Formatter for each thread that uses the static methods
+    private static final ThreadLocal<TimestampFormat> sTimestampFormat = new ThreadLocal<TimestampFormat>() {
+        @Override // ThreadLocal
+        protected TimestampFormat initialValue() {
+            return new TimestampFormat();
+        }
+    };
+
+    /**
+     * Formatter for GPX timestamps: UTC, to the millisecond, e.g. 2020-09-13T12:26:40.123Z. This
+     * is the same as SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX") in UTC, for years 0 to 9999.
+     * <p>
+     * Samples arrive in time order, so the date part of the last timestamp is cached and only the
+     * time of day is worked out for the next one. An instance is not thread safe, so give each
+     * exporter its own or use GPX#formatTimestamp.
+     */
+    public static class TimestampFormat {
+        // Day of the cached date, in days since the epoch
+        private long mDay = Long.MIN_VALUE;
+        // "yyyy-MM-ddT" for mDay
+        private final char[] mDate = new char[11];
+        private final char[] mBuf = new char[TIMESTAMP_CHARS];
+
+        /**
+         * Format a timestamp into a char buffer
+         *
+         * @param millis time, in ms since the epoch
+         * @param buf    buffer to write to
+         * @param off    offset in buf to write at. There must be room for TIMESTAMP_CHARS.
+         * @return the number of chars written, always TIMESTAMP_CHARS
+         */
+        public int format(long millis, char[] buf, int off) {
+            long day = floorDiv(millis, MILLIS_PER_DAY);
+            if (day != mDay)
+                setDay(day);
+            System.arraycopy(mDate, 0, buf, off, mDate.length);
+            int ms = (int) (millis - day * MILLIS_PER_DAY);
+            int s = ms / 1000;
+            ms -= s * 1000;
+            int m = s / 60;
+            s -= m * 60;
+            int h = m / 60;
+            m -= h * 60;
+            off += mDate.length;
+            off = digits2(h, buf, off);
+            buf[off++] = ':';
+            off = digits2(m, buf, off);
+            buf[off++] = ':';
+            off = digits2(s, buf, off);
+            buf[off++] = '.';
+            buf[off++] = (char) ('0' + ms / 100);
+            off = digits2(ms % 100, buf, off);
+            buf[off] = 'Z';
+            return TIMESTAMP_CHARS;
+        }
+
+        /**
+         * Format a timestamp as a string
+         *
+         * @param millis time, in ms since the epoch
+         * @return the formatted timestamp
+         */
+        public String format(long millis) {
+            format(millis, mBuf, 0);
+            return new String(mBuf);
+        }
+
+        // Work out the date part for a day since the epoch
+        private void setDay(long day) {
+            // See http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+            long z = day + 719468;
+            long era = floorDiv(z, 146097);
+            int doe = (int) (z - era * 146097);
+            int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+            int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+            int mp = (5 * doy + 2) / 153;
+            int d = doy - (153 * mp + 2) / 5 + 1;
+            int m = mp < 10 ? mp + 3 : mp - 9;
+            int y = (int) (yoe + era * 400) + (m <= 2 ? 1 : 0);
+            int off = digits2(y / 100, mDate, 0);
+            off = digits2(y % 100, mDate, off);
+            mDate[off++] = '-';
+            off = digits2(m, mDate, off);
+            mDate[off++] = '-';
+            off = digits2(d, mDate, off);
+            mDate[off] = 'T';
+            mDay = day;
+        }
+
+        private static int digits2(int n, char[] buf, int off) {
+            buf[off++] = (char) ('0' + n / 10);
+            buf[off++] = (char) ('0' + n % 10);
+            return off;
+        }
+    }
+
+    /**
+     * Format a GPX timestamp. Thread safe.
+     *
+     * @param millis time, in ms since the epoch
+     * @return the timestamp, e.g. 2020-09-13T12:26:40.123Z
+     */
+    public static String formatTimestamp(long millis) {
+        return sTimestampFormat.get().format(millis);
+    }
+
+    /**
+     * Parse a GPX (ISO 8601) timestamp, e.g. 2020-09-13T12:26:40.123Z or 2020-09-13T13:26:40+01:00.
+     * Fractions of a second are optional, and truncated to the millisecond. Thread safe.
+     *
+     * @param s the timestamp
+     * @return time, in ms since the epoch
+     * @throws IllegalArgumentException if the timestamp can't be parsed
+     */
+    public static long parseTimestamp(CharSequence s) {
+        int len = s.length();
+        if (len < 20 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':')
+            throw new IllegalArgumentException("Bad timestamp " + s);
+        int y = number(s, 0, 4);
+        int mo = number(s, 5, 2);
+        int d = number(s, 8, 2);
+        int h = number(s, 11, 2);
+        int mi = number(s, 14, 2);
+        int sec = number(s, 17, 2);
+        if (mo < 1 || mo > 12 || d < 1 || d > 31 || h > 23 || mi > 59 || sec > 60)
+            throw new IllegalArgumentException("Bad timestamp " + s);
+        int i = 19;
+        int ms = 0;
+        if (s.charAt(i) == '.') {
+            int scale = 100;
+            for (i++; i < len && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++) {
+                ms += (s.charAt(i) - '0') * scale;
+                scale /= 10;
             }
-        } catch (ParserConfigurationException ignore) {
         }
-        return gpxDocument;
+        long offset = 0;
+        if (i == len - 1 && s.charAt(i) == 'Z')
+            offset = 0;
+        else if (i == len - 6 && (s.charAt(i) == '+' || s.charAt(i) == '-') && s.charAt(i + 3) == ':') {
+            offset = (number(s, i + 1, 2) * 60L + number(s, i + 4, 2)) * 60000L;
+            if (s.charAt(i) == '-')
+                offset = -offset;
+        } else
+            throw new IllegalArgumentException("Bad timestamp " + s);
+
+        // See http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+        int ya = mo <= 2 ? y - 1 : y;
+        int era = (int) floorDiv(ya, 400);
+        int yoe = ya - era * 400;
+        int doy = (153 * (mo > 2 ? mo - 3 : mo + 9) + 2) / 5 + d - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long day = era * 146097L + doe - 719468;
+        return day * MILLIS_PER_DAY + ((h * 60L + mi) * 60 + sec) * 1000 + ms - offset;
+    }
+
+    // Math.floorDiv needs API 24
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        if (a % b != 0 && (a ^ b) < 0)
+            q--;
+        return q;
+    }
+
+    // Parse a fixed-width unsigned decimal number
+    private static int number(CharSequence s, int off, int len) {
+        int n = 0;
+        for (int i = off; i < off + len; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                throw new IllegalArgumentException("Bad timestamp " + s);
+            n = n * 10 + c - '0';
+        }
+        return n;
+    }
+
+    /**
+     * Test if there is already content at a Uri
+     *
+     * @param cr  resolver to use
+     * @param uri the document to test
+     * @return true if the document exists and isn't empty
+     */
+    public static boolean hasContent(ContentResolver cr, Uri uri) {
+        try {
+            InputStream is = cr.openInputStream(uri);
+            if (is == null)
+                return false;
+            boolean hasContent = is.read() >= 0;
+            is.close();
+            return hasContent;
+        } catch (IOException ioe) {
+            return false;
+        }
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.location;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers for adding a track segment to an existing GPX document without parsing it.
+ * <p>
+ * A document written by GPXWriter (or any indenting Transformer) ends with the end of the trk
+ * element followed by the end of the gpx element. A new trkseg can be spliced in by truncating
+ * the document at the start of that tail and writing the segment and a new tail, so the cost is
+ * proportional to the new data, not to the size of the document. Documents that end in any other
+ * way have to be copied, inserting the new segment on the way through.
+ */
+public class GPXAppender {
+    // How much of the end of a document is searched for the tail
+    private static final int TAIL_BYTES = 1024;
+    private static final byte[] END_TRK = {'<', '/', 't', 'r', 'k', '>'};
+    private static final byte[] END_GPX = {'<', '/', 'g', 'p', 'x', '>'};
+    private static final int COPY_BYTES = 64 * 1024;
+
+    /**
+     * Find where to splice a new segment into a document that ends with the end of a trk
+     * element followed by the end of the gpx element, with nothing but whitespace around them.
+     *
+     * @param in channel open on the document
+     * @return offset of the start of the line holding the end of the trk element, or -1 if the
+     * document doesn't end that way
+     * @throws IOException if there's a problem reading
+     */
+    public static long findTrackTail(FileChannel in) throws IOException {
+        long size = in.size();
+        int n = (int) Math.min(size, TAIL_BYTES);
+        ByteBuffer bb = ByteBuffer.allocate(n);
+        long start = size - n;
+        while (bb.hasRemaining())
+            if (in.read(bb, start + bb.position()) < 0)
+                return -1;
+        byte[] tail = bb.array();
+        int i = skipSpaceBack(tail, n, true);
+        i = matchBack(tail, i, END_GPX);
+        if (i < 0)
+            return -1;
+        i = skipSpaceBack(tail, i, true);
+        i = matchBack(tail, i, END_TRK);
+        if (i < 0)
+            return -1;
+        // Take the indentation with it, so the new segment is laid out like the rest
+        return start + skipSpaceBack(tail, i, false);
+    }
+
+    /**
+     * Find the last occurrence of an end tag in a stream, without holding the stream in memory
+     *
+     * @param in  the stream to search; it is read to the end
+     * @param tag the name of the element, e.g. "trk"
+     * @return the offset of the "&lt;/" of the last end tag, or -1 if there isn't one
+     * @throws IOException if there's a problem reading
+     */
+    public static long findLastEndTag(InputStream in, String tag) throws IOException {
+        byte[] pattern = ("</" + tag + ">").getBytes("UTF-8");
+        // Ring of the last pattern.length bytes read
+        byte[] window = new byte[pattern.length];
+        byte[] buf = new byte[COPY_BYTES];
+        long offset = 0, found = -1;
+        int r;
+        while ((r = in.read(buf)) > 0) {
+            for (int i = 0; i < r; i++, offset++) {
+                window[(int) (offset % pattern.length)] = buf[i];
+                if (offset + 1 < pattern.length || buf[i] != pattern[pattern.length - 1])
+                    continue;
+                long first = offset + 1 - pattern.length;
+                int k = 0;
+                while (k < pattern.length && window[(int) ((first + k) % pattern.length)] == pattern[k])
+                    k++;
+                if (k == pattern.length)
+                    found = first;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Copy bytes from one stream to another
+     *
+     * @param in  the stream to read
+     * @param out the stream to write
+     * @param len the number of bytes to copy, or Long.MAX_VALUE to copy to the end of in
+     * @throws IOException if there's a problem, or in ends before len bytes are copied
+     */
+    public static void copy(InputStream in, OutputStream out, long len) throws IOException {
+        byte[] buf = new byte[COPY_BYTES];
+        while (len > 0) {
+            int r = in.read(buf, 0, (int) Math.min(buf.length, len));
+            if (r < 0) {
+                if (len == Long.MAX_VALUE)
+                    return;
+                throw new IOException("Unexpected end of stream");
+            }
+            out.write(buf, 0, r);
+            if (len != Long.MAX_VALUE)
+                len -= r;
+        }
+    }
+
+    // Move back from i over whitespace, optionally including line breaks
+    private static int skipSpaceBack(byte[] buf, int i, boolean lines) {
+        while (i > 0) {
+            byte c = buf[i - 1];
+            if (c != ' ' && c != '\t' && (!lines || (c != '\n' && c != '\r')))
+                break;
+            i--;
+        }
+        return i;
+    }
+
+    // If the bytes before i are the pattern, return the index of the start of the pattern
+    private static int matchBack(byte[] buf, int i, byte[] pattern) {
+        int start = i - pattern.length;
+        if (start < 0)
+            return -1;
+        for (int k = 0; k < pattern.length; k++)
+            if (buf[start + k] != pattern[k])
+                return -1;
+        return start;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.location;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming writer for GPX documents. Writes XML straight to the output as it goes, so the size
+ * of the document is not limited by memory. The layout (indentation, attribute order, namespace
+ * declarations, empty elements) is the same as serialising the equivalent DOM with an indenting
+ * Transformer, so the output is byte-for-byte the same as the DOM export it replaces.
+ * <p>
+ * Attributes are written in the order they are given, so give them in alphabetical order to
+ * match a Transformer.
+ */
+public class GPXWriter {
+    private static final String INDENT = "    ";
+
+    private final Writer mOut;
+    // Depth of the element currently open
+    private int mDepth = 0;
+    // True while the start tag of the innermost element is still open for attributes
+    private boolean mInStartTag = false;
+    // Namespace to be declared when the open start tag is closed
+    private String mStartTagNS = null;
+    // Each writer has its own formatter, so concurrent exports don't share one
+    private final GPX.TimestampFormat mTimestampFormat = new GPX.TimestampFormat();
+    private final char[] mTimestamp = new char[GPX.TIMESTAMP_CHARS];
+
+    /**
+     * @param out where to write the document. Should be buffered.
+     */
+    public GPXWriter(Writer out) {
+        mOut = out;
+    }
+
+    /**
+     * Write the XML declaration and open the gpx and trk elements
+     *
+     * @param creator name of the creating application
+     * @throws IOException if there's a problem writing
+     */
+    public void startDocument(String creator) throws IOException {
+        mOut.write("<?xml version=\"1.1\" encoding=\"UTF-8\"?>");
+        startElement("gpx", GPX.NS_GPX);
+        attribute("creator", creator);
+        attribute("version", "1.1");
+        startElement("trk");
+    }
+
+    /**
+     * Continue writing a document that was started elsewhere, for example one that has been
+     * truncated at GPXAppender#findTrackTail
+     *
+     * @param depth the number of elements already open; 2 when inside gpx and trk, 1 when only
+     *              inside gpx
+     */
+    public void continueDocument(int depth) {
+        mDepth = depth;
+        mInStartTag = false;
+    }
+
+    /**
+     * Close the trk and gpx elements, and flush the output
+     *
+     * @throws IOException if there's a problem writing
+     */
+    public void endDocument() throws IOException {
+        endElement("trk");
+        endElement("gpx");
+        mOut.flush();
+    }
+
+    /**
+     * Open an element in the default namespace. Attributes may be added until the next element
+     * is started or this one is ended.
+     *
+     * @param name element name
+     * @throws IOException if there's a problem writing
+     */
+    public void startElement(String name) throws IOException {
+        startElement(name, null);
+    }
+
+    /**
+     * Open an element that declares a default namespace
+     *
+     * @param name element name
+     * @param ns   namespace URI, or null to use the enclosing default namespace
+     * @throws IOException if there's a problem writing
+     */
+    public void startElement(String name, String ns) throws IOException {
+        closeStartTag();
+        indent();
+        mOut.write('<');
+        mOut.write(name);
+        mInStartTag = true;
+        mStartTagNS = ns;
+        mDepth++;
+    }
+
+    /**
+     * Add an attribute to the element just started
+     *
+     * @param name  attribute name
+     * @param value attribute value, will be escaped
+     * @throws IOException if there's a problem writing
+     */
+    public void attribute(String name, String value) throws IOException {
+        if (!mInStartTag)
+            throw new IllegalStateException("No start tag open for " + name);
+        mOut.write(' ');
+        mOut.write(name);
+        mOut.write("=\"");
+        escape(value, true);
+        mOut.write('"');
+    }
+
+    /**
+     * Write an element that has only text content, e.g. &lt;ele&gt;1.0&lt;/ele&gt;
+     *
+     * @param name element name
+     * @param text text content, will be escaped
+     * @throws IOException if there's a problem writing
+     */
+    public void textElement(String name, String text) throws IOException {
+        closeStartTag();
+        indent();
+        mOut.write('<');
+        mOut.write(name);
+        mOut.write('>');
+        escape(text, false);
+        mOut.write("</");
+        mOut.write(name);
+        mOut.write(">\n");
+    }
+
+    /**
+     * Write an element that has a timestamp as its content, e.g.
+     * &lt;time&gt;2020-09-13T12:26:40.123Z&lt;/time&gt;
+     *
+     * @param name   element name
+     * @param millis time, in ms since the epoch
+     * @throws IOException if there's a problem writing
+     */
+    public void timeElement(String name, long millis) throws IOException {
+        closeStartTag();
+        indent();
+        mOut.write('<');
+        mOut.write(name);
+        mOut.write('>');
+        mOut.write(mTimestamp, 0, mTimestampFormat.format(millis, mTimestamp, 0));
+        mOut.write("</");
+        mOut.write(name);
+        mOut.write(">\n");
+    }
+
+    /**
+     * Close the innermost open element
+     *
+     * @param name element name
+     * @throws IOException if there's a problem writing
+     */
+    public void endElement(String name) throws IOException {
+        mDepth--;
+        if (mInStartTag) {
+            writeStartTagNS();
+            mOut.write("/>\n");
+            mInStartTag = false;
+            return;
+        }
+        indent();
+        mOut.write("</");
+        mOut.write(name);
+        mOut.write(">\n");
+    }
+
+    private void writeStartTagNS() throws IOException {
+        if (mStartTagNS != null) {
+            mOut.write(" xmlns=\"");
+            escape(mStartTagNS, true);
+            mOut.write('"');
+            mStartTagNS = null;
+        }
+    }
+
+    // Finish the open start tag, if there is one, before writing content
+    private void closeStartTag() throws IOException {
+        if (!mInStartTag)
+            return;
+        writeStartTagNS();
+        mOut.write(">\n");
+        mInStartTag = false;
+    }
+
+    private void indent() throws IOException {
+        for (int i = 0; i < mDepth; i++)
+            mOut.write(INDENT);
+    }
+
+    private void escape(String s, boolean inAttribute) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&':
+                    mOut.write("&amp;");
+                    break;
+                case '<':
+                    mOut.write("&lt;");
+                    break;
+                case '>':
+                    mOut.write("&gt;");
+                    break;
+                case '"':
+                    if (inAttribute)
+                        mOut.write("&quot;");
+                    else
+                        mOut.write(c);
+                    break;
+                default:
+                    mOut.write(c);
+            }
+        }
+    }
+}
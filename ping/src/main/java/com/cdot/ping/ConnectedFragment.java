@@ -54,19 +54,19 @@ public class ConnectedFragment extends Fragment {
     private ConnectedFragmentBinding mBinding;
     // Handle broadcasts from the service
     private boolean mReceiverRegistered = false;
-    private Sample mLastSample = new Sample();
+    private volatile Sample mLastSample = new Sample();
     // Used to calculate the incoming sample rate
-    private Boolean mHaveNewSamples = false; // display update required?
+    private volatile boolean mHaveNewSamples = false; // display update required?
 
     private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            if (LoggingService.ACTION_SAMPLE.equals(action)) {
-                onSonarSample(intent.getParcelableExtra(LoggingService.EXTRA_SAMPLE_DATA));
-            } else if (MainActivity.ACTION_RECONFIGURE.equals(action)) {
+            if (MainActivity.ACTION_RECONFIGURE.equals(action)) {
                 Log.d(TAG, "Received ACTION_RECONFIGURE");
                 mBinding.sonarV.resetScale();
+                // The service may not have been bound when we started
+                registerSampleListener();
             }
         }
     };
@@ -77,7 +77,6 @@ public class ConnectedFragment extends Fragment {
     public ConnectedFragment() {
         mIntentFilter = new IntentFilter();
         //mIntentFilter.addAction(SonarSamplerTwo.ACTION_BT_STATE);
-        mIntentFilter.addAction(LoggingService.ACTION_SAMPLE);
         mIntentFilter.addAction(MainActivity.ACTION_RECONFIGURE);
     }
 
@@ -104,22 +103,39 @@ public class ConnectedFragment extends Fragment {
         }
     }
 
-    // Handle incoming sample from the sonar service
-    private void onSonarSample(Sample data) {
-        if (data == null)
-            return;
+    // Handle incoming samples from the logging service. Called on the service's writer thread.
+    private final LoggingService.SampleBatchListener mSampleListener = new LoggingService.SampleBatchListener() {
+        @Override // LoggingService.SampleBatchListener
+        public void onSamples(Sample[] samples, int len) {
+            if (len == 0)
+                return;
+
+            //Log.d(TAG, "Sonar samples received");
+            mLastSample = samples[len - 1];
+            mHaveNewSamples = true;
+
+            // Don't do this from the display timer, we want a different feedback schedule
+            ConnectedFragmentBinding binding = mBinding;
+            if (binding != null)
+                for (int i = 0; i < len; i++)
+                    binding.sonarV.sample(samples[i]);
+        }
+    };
 
-        /*
-         * when we get two samples, the sample frequency is given by the time between those two samples.
-         * In a given time, then number of samples received in that time.
-         */
-        //Log.d(TAG, "Sonar sample received");
-        mLastSample = data;
-        mHaveNewSamples = true;
+    private void registerSampleListener() {
+        LoggingService svc = getLoggingService();
+        if (svc != null) {
+            svc.setSampleBatchListener(mSampleListener);
+            ConnectedFragmentBinding binding = mBinding;
+            if (binding != null)
+                binding.sonarV.setPipelineStats(svc.getPipelineStats());
+        }
+    }
 
-        // Don't do this from the display timer, we want a different feedback schedule
-        if (mBinding != null)
-            mBinding.sonarV.sample(mLastSample);
+    private void unregisterSampleListener() {
+        LoggingService svc = getLoggingService();
+        if (svc != null && svc.getSampleBatchListener() == mSampleListener)
+            svc.setSampleBatchListener(null);
     }
 
     // When switching to SettingsFragment, this is NOT called!
@@ -169,6 +185,8 @@ public class ConnectedFragment extends Fragment {
         Log.d(TAG, "onStart " + this);
         super.onStart();
         registerBroadcastReceiver();
+        mBinding.sonarV.start(); // restart background rendering thread stopped by onStop
+        registerSampleListener();
         // Start the sample data thread. Wake it every 2 seconds for an update.
         mDisplayThread = new DisplayThread();
         // Force a display update when returning from SettingsFragment
@@ -185,6 +203,7 @@ public class ConnectedFragment extends Fragment {
             mDisplayThread = null;
         }
         mBinding.sonarV.stop(); // shut down background rendering thread
+        unregisterSampleListener();
         unregisterBroadcastReceiver();
         super.onStop();
     }
@@ -198,6 +217,7 @@ public class ConnectedFragment extends Fragment {
     public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
         // Inflate the menu; this adds items to the action bar if it is present.
         inflater.inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.menu_pipeline_stats).setVisible(BuildConfig.DEBUG);
     }
 
     @Override // Fragment
@@ -209,6 +229,9 @@ public class ConnectedFragment extends Fragment {
             tx.commit();
         } else if (item.getItemId() == R.id.menu_write_gpx) {
             getMainActivity().writeGPX();
+        } else if (item.getItemId() == R.id.menu_pipeline_stats) {
+            // Shown over this fragment, so samples keep being delivered and rendered
+            new PipelineStatsFragment().show(getParentFragmentManager(), PipelineStatsFragment.TAG);
         }
 
         return super.onOptionsItemSelected(item);
@@ -92,7 +92,8 @@ public class MainActivity extends AppCompatActivity {
                             mPrefs.getInt(Settings.PREF_MIN_DEPTH_CHANGE) / 1000f,
                             mPrefs.getInt(Settings.PREF_MIN_POS_CHANGE) / 1000f,
                             mPrefs.getInt(Settings.PREF_SAMPLER_TIMEOUT),
-                            mPrefs.getInt(Settings.PREF_MAX_SAMPLES));
+                            mPrefs.getInt(Settings.PREF_MAX_SAMPLES),
+                            mPrefs.getCommitPolicy());
                 }
             }
         }
@@ -280,7 +281,11 @@ public class MainActivity extends AppCompatActivity {
     private void permissionsGranted() {
         // must be non-null before device service can be started
         BluetoothAdapter bta = BluetoothAdapter.getDefaultAdapter();
-        if (bta == null) {
+        if (mLoggingService != null && mLoggingService.mSonarSampler != null
+                && mLoggingService.mSonarSampler.isSimulated())
+            // Replaying a capture doesn't need bluetooth
+            connectSonarDevice();
+        else if (bta == null) {
             Log.e(TAG, "No bluetooth on this device");
             Toast.makeText(this, R.string.help_no_bluetooth, Toast.LENGTH_LONG).show();
         } else if (bta.isEnabled())
@@ -304,6 +309,15 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        if (mLoggingService.mSonarSampler != null && mLoggingService.mSonarSampler.isSimulated()) {
+            // There's no device to find when replaying a capture. Start the replay, unless it's
+            // already running.
+            if (mLoggingService.mSonarSampler.getConnectionState() == SonarBluetooth.BT_STATE_DISCONNECTED)
+                mLoggingService.mSonarSampler.connect(null);
+            switchToConnectedFragment();
+            return;
+        }
+
         boolean ac = mPrefs.getBoolean(Settings.PREF_AUTOCONNECT);
         if (ac) {
             // if autoconnect is enabled, we might be able to shortcut the discovery process
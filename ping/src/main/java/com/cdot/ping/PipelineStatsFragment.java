@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping;
+
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.fragment.app.DialogFragment;
+
+import com.cdot.ping.databinding.PipelineStatsFragmentBinding;
+import com.cdot.ping.samplers.LoggingService;
+
+/**
+ * Debug screen showing the latencies and counts of samples from the sonar to the screen, as
+ * recorded by the logging service's PipelineStats. Refreshed every second while it is shown.
+ * It's a dialog over the ConnectedFragment, which has to stay started for samples to be
+ * delivered to it and rendered.
+ */
+public class PipelineStatsFragment extends DialogFragment {
+    public static final String TAG = PipelineStatsFragment.class.getSimpleName();
+
+    // Time between refreshes of the report
+    private static final long REFRESH_INTERVAL = 1000; // ms
+
+    private PipelineStatsFragmentBinding mBinding;
+
+    // Refreshes the report, and reschedules itself until the view is destroyed
+    private final Runnable mRefresher = new Runnable() {
+        @Override // Runnable
+        public void run() {
+            if (mBinding == null)
+                return;
+            LoggingService svc = getLoggingService();
+            mBinding.statsTV.setText(svc == null ? "?" : svc.getPipelineStats().dump());
+            mBinding.statsTV.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    private LoggingService getLoggingService() {
+        MainActivity a = (MainActivity) getActivity();
+        return a == null ? null : a.getLoggingService();
+    }
+
+    @Override // Fragment
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        mBinding = PipelineStatsFragmentBinding.inflate(inflater, container, false);
+        mBinding.resetB.setOnClickListener(view -> {
+            LoggingService svc = getLoggingService();
+            if (svc != null)
+                svc.getPipelineStats().reset();
+            mRefresher.run();
+        });
+        return mBinding.pipelineStatsFragmentL;
+    }
+
+    @Override // Fragment
+    public void onStart() {
+        super.onStart();
+        mRefresher.run();
+    }
+
+    @Override // Fragment
+    public void onStop() {
+        mBinding.statsTV.removeCallbacks(mRefresher);
+        super.onStop();
+    }
+
+    @Override // Fragment
+    public void onDestroyView() {
+        mBinding = null;
+        super.onDestroyView();
+    }
+}
@@ -24,6 +24,7 @@ import android.content.SharedPreferences;
 import androidx.preference.PreferenceManager;
 
 import com.cdot.ping.samplers.Sample;
+import com.cdot.utils.CommitPolicy;
 
 import java.util.HashMap;
 
@@ -68,10 +69,26 @@ public class Settings {
     public static final int NOISE_HIGH = 3;
     public static final String PREF_MAX_SAMPLES = "maxSamples";
     public static final int MAX_SAMPLES_MIN = 500 * 1024 / Sample.BYTES; // 500Kb file
-    public static final int MAX_SAMPLES_MAX = 1024 * 1024 * 1024 / Sample.BYTES; // 1Gb file
+    public static final int MAX_SAMPLES_MAX = (int) (16L * 1024 * 1024 * 1024 / Sample.BYTES); // 16Gb file
+    // How often the sample cache is committed to storage
+    public static final String PREF_COMMIT_POLICY = "commitPolicy"; // COMMIT_*, index into commit_options
+    public static final int COMMIT_EVERY_SAMPLE = 0;
+    public static final int COMMIT_EVERY_10_SAMPLES = 1;
+    public static final int COMMIT_EVERY_SECOND = 2;
+    public static final int COMMIT_ON_FLUSH = 3;
+    // Keep the sample cache in a SegmentedFileByteFIFO, rather than a single file
+    public static final String PREF_SEGMENTED_CACHE = "segmentedCache";
+    // Compress the samples in the sample cache, using a SampleBlockCodec
+    public static final String PREF_COMPRESSED_CACHE = "compressedCache";
     public static final String PREF_SAMPLER_TIMEOUT = "samplerTimeout";
     public static final int SAMPLER_TIMEOUT_MIN = 0; // 0 means "never"
     public static final int SAMPLER_TIMEOUT_MAX = 10 * 60 * 1000; // 10 minutes in ms
+    // Record the raw packets and locations from a device to a capture file, for SonarReplay
+    public static final String PREF_CAPTURE = "capture";
+    // Speed a capture is replayed at, as a multiple of real time. 0 means as fast as possible.
+    public static final String PREF_REPLAY_SPEED = "replaySpeed";
+    public static final int REPLAY_SPEED_MIN = 0;
+    public static final int REPLAY_SPEED_MAX = 1000;
     public static final String PREF_DEVICE = "device";
     public static final String PREF_AUTOCONNECT = "autoconnect";
     public static final String PREF_ZOOM_LEVEL = "zoom";
@@ -86,13 +103,18 @@ public class Settings {
             put(PREF_MIN_DEPTH_CHANGE, 250); // mm
             put(PREF_MIN_POS_CHANGE, 500); // mm
             put(PREF_MAX_SAMPLES, 10 * MEGABYTE / Sample.BYTES); // 10Mb
+            put(PREF_COMMIT_POLICY, COMMIT_EVERY_SECOND);
             put(PREF_SAMPLER_TIMEOUT, 0); // never
+            put(PREF_REPLAY_SPEED, 1); // real time
         }
     };
     // Default values for integer preferences
     private static final HashMap<String, Boolean> booleanDefaults = new HashMap<String, Boolean>() {
         {
             put(PREF_AUTOCONNECT, true);
+            put(PREF_SEGMENTED_CACHE, false);
+            put(PREF_COMPRESSED_CACHE, false);
+            put(PREF_CAPTURE, false);
         }
     };
     // Default values for float preferences
@@ -148,6 +170,24 @@ public class Settings {
         }
     }
 
+    /**
+     * Get the commit policy for the sample cache, as set by PREF_COMMIT_POLICY
+     *
+     * @return the commit policy
+     */
+    public CommitPolicy getCommitPolicy() {
+        switch (getInt(PREF_COMMIT_POLICY)) {
+            case COMMIT_EVERY_SAMPLE:
+                return CommitPolicy.EVERY_WRITE;
+            case COMMIT_EVERY_10_SAMPLES:
+                return CommitPolicy.everyRecords(10);
+            case COMMIT_ON_FLUSH:
+                return CommitPolicy.ON_FLUSH;
+            default:
+                return CommitPolicy.everyMillis(1000);
+        }
+    }
+
     /**
      * Get the current value of a preference.
      *
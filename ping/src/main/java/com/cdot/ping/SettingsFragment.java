@@ -67,7 +67,8 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         // in the MainActivity when the preference screen is navigated away from.
         // implement Preference.OnPreferenceChangeListener
         Preference.OnPreferenceChangeListener sul = (pref, newVal) -> {
-            if (pref.getKey().equals(Settings.PREF_NOISE) || pref.getKey().equals(Settings.PREF_RANGE))
+            if (pref.getKey().equals(Settings.PREF_NOISE) || pref.getKey().equals(Settings.PREF_RANGE)
+                    || pref.getKey().equals(Settings.PREF_COMMIT_POLICY))
                 newVal = Integer.valueOf((String) newVal);
             getMainActivity().onSettingChanged(pref.getKey(), newVal);
             return true;
@@ -152,6 +153,21 @@ public class SettingsFragment extends PreferenceFragmentCompat {
         });
         inter.initialise(Settings.MAX_SAMPLES_MIN, Settings.MAX_SAMPLES_MAX, prefs.getInt(Settings.PREF_MAX_SAMPLES));
 
+        intList = findPreference(Settings.PREF_COMMIT_POLICY);
+        intList.setOnPreferenceChangeListener(sul);
+        intList.setTitleRewriter(new TitleRewriter() {
+            public String rewriteValue(Object value) {
+                return getResources().getStringArray(R.array.commit_options)[Integer.parseInt(value.toString())];
+            }
+        });
+        intList.setValue(prefs.getInt(Settings.PREF_COMMIT_POLICY));
+
+        checkbox = findPreference(Settings.PREF_SEGMENTED_CACHE);
+        checkbox.setChecked(prefs.getBoolean(Settings.PREF_SEGMENTED_CACHE));
+
+        checkbox = findPreference(Settings.PREF_COMPRESSED_CACHE);
+        checkbox.setChecked(prefs.getBoolean(Settings.PREF_COMPRESSED_CACHE));
+
         inter = findPreference(Settings.PREF_SAMPLER_TIMEOUT);
         inter.setOnPreferenceChangeListener(sul);
         inter.setTitleRewriter(new TitleRewriter() {
@@ -161,5 +177,18 @@ public class SettingsFragment extends PreferenceFragmentCompat {
             }
         });
         inter.initialise(Settings.SAMPLER_TIMEOUT_MIN, Settings.SAMPLER_TIMEOUT_MAX, prefs.getInt(Settings.PREF_SAMPLER_TIMEOUT));
+
+        checkbox = findPreference(Settings.PREF_CAPTURE);
+        checkbox.setChecked(prefs.getBoolean(Settings.PREF_CAPTURE));
+
+        inter = findPreference(Settings.PREF_REPLAY_SPEED);
+        inter.setOnPreferenceChangeListener(sul);
+        inter.setTitleRewriter(new TitleRewriter() {
+            public String rewriteValue(Object value) {
+                int speed = Integer.parseInt(value.toString());
+                return speed == 0 ? getString(R.string.replay_flat_out) : String.format("%dx", speed);
+            }
+        });
+        inter.initialise(Settings.REPLAY_SPEED_MIN, Settings.REPLAY_SPEED_MAX, prefs.getInt(Settings.PREF_REPLAY_SPEED));
     }
 }
@@ -29,17 +29,21 @@ import android.graphics.Rect;
 import android.graphics.Shader;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.View;
 
 import androidx.annotation.NonNull;
 
 import com.cdot.ping.samplers.LoggingService;
+import com.cdot.ping.samplers.PipelineStats;
 import com.cdot.ping.samplers.Sample;
+import com.cdot.ping.samplers.SampleBatch;
 import com.cdot.ping.samplers.SampleCache;
+import com.cdot.ping.samplers.SampleCursor;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.Thread.interrupted;
 
@@ -54,7 +58,8 @@ public class SonarView extends View {
     private static final int BITMAP_HEIGHT = 1920; // reasonable guesstimate of the max height of the screen
     private static final int BITMAP_BOTTOM = BITMAP_HEIGHT - 1; // bottom pixel index
     private static final int BITMAP_WIDTH = BITMAP_HEIGHT; // might be rotated, so can't be less than height
-    private static final int BITMAP_RIGHT = BITMAP_WIDTH - 1; // rightmost pixel index
+    // Number of samples read from the cache at a time when redrawing
+    private static final int REDRAW_CHUNK_SAMPLES = 512;
     private final Paint mWaterPaint;  // used for water
     private final Paint mBottomPaint; // used for the bottom
     private final Paint mDepthPaint;  // depth bars. Scaled and centred on the measured depth, to show the reported error
@@ -63,21 +68,43 @@ public class SonarView extends View {
     private final Paint mFishPaint;   // fish bars. Scaled and centred like mDepthPaint
     private final Shader mFishShader;
     private final Matrix mFishMat = new Matrix(); // used to transform the fish gradient
-    // The bitmap we actually draw to
+    // The bitmap we actually draw to. It is used as a circular strip: each sample is drawn in its
+    // own column at mHead, which moves right and wraps round, so nothing already drawn has to move.
     private final Bitmap mOffscreenBitmap;
     // Canvas that we use to draw to mOffscreenBitmap
     private final Canvas mOffscreenCanvas;
-    // Drawing canvas rect for the areas of the image to be drawn
-    private final Rect mOffscreenBitmapRect;
+    // Areas of the strip to draw, and where to draw them on the screen. The visible part of the
+    // strip may wrap round, in which case it is drawn in two parts.
+    private final Rect mOldSrcRect = new Rect(), mOldDstRect = new Rect();
+    private final Rect mNewSrcRect = new Rect(), mNewDstRect = new Rect();
     // Screen canvas rect for the area to draw to
     private final Rect mScreenRect;
     private final Settings mSettings;
-    private final ConcurrentLinkedQueue<Sample> mSampleQueue = new ConcurrentLinkedQueue<>();
+    private final LinkedBlockingQueue<Sample> mSampleQueue = new LinkedBlockingQueue<>();
+    // Frame clock for the UI thread, used to invalidate at most once per vsync
+    private final Choreographer mChoreographer;
+    // Set while a frame callback is posted and hasn't run yet
+    private final AtomicBoolean mFramePending = new AtomicBoolean(false);
+    // Invalidates the view on the next vsync after the strip has been drawn to
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override // Choreographer.FrameCallback
+        public void doFrame(long frameTimeNanos) {
+            mFramePending.set(false);
+            invalidate();
+        }
+    };
     Context mContext;
-    private Thread mRenderThread;
+    // Draws queued samples into the strip, only running between start() and stop()
+    private volatile Thread mRenderThread;
+    // Told when samples have been drawn, may be null
+    private volatile PipelineStats mPipelineStats;
 
     // Sample bar width in backing-bitmap pixels
     private int mSampleWidthPx = BITMAP_WIDTH / 500;
+    // Width of the strip in use, a whole number of samples
+    private volatile int mStripWidth = BITMAP_WIDTH;
+    // Column the next sample will be drawn at, just right of the newest sample
+    private volatile int mHead = 0;
     // Max depth displayed
     private float mMaxDepth = 36;
 
@@ -92,7 +119,6 @@ public class SonarView extends View {
         mOffscreenBitmap = Bitmap.createBitmap(BITMAP_WIDTH, BITMAP_HEIGHT, Bitmap.Config.RGB_565);
         mOffscreenCanvas.setBitmap(mOffscreenBitmap);
 
-        mOffscreenBitmapRect = new Rect(0, 0, BITMAP_WIDTH, BITMAP_HEIGHT);
         mScreenRect = new Rect(0, 0, BITMAP_WIDTH, BITMAP_HEIGHT);
 
         mWaterPaint = new Paint();
@@ -119,59 +145,38 @@ public class SonarView extends View {
         mFishShader = new LinearGradient(0, 0, 0, 1, Color.LTGRAY, Color.GRAY, Shader.TileMode.MIRROR);
         mFishPaint.setShader(mFishShader);
 
+        // The view is constructed on the UI thread, so this is the UI thread's Choreographer
+        mChoreographer = Choreographer.getInstance();
+
         resetScale();
+    }
 
-        mRenderThread = new Thread(new Runnable() {
-            public void run() {
-                while (!interrupted()) {
-                    if (mSampleQueue.size() > 0) {
-                        synchronized (SonarView.this) {
-                            int n = mSampleQueue.size();
-
-                            // Scroll the drawing bitmap to accommodate the queued samples
-                            Rect srcRect = new Rect(n, 0, BITMAP_RIGHT, BITMAP_BOTTOM);
-                            Rect destRect = new Rect(0, 0, BITMAP_RIGHT - n * mSampleWidthPx, BITMAP_BOTTOM);
-                            mOffscreenCanvas.drawBitmap(mOffscreenBitmap, srcRect, destRect, null);
-
-                            // Draw the water
-                            mOffscreenCanvas.drawRect(BITMAP_RIGHT - n * mSampleWidthPx, 0, BITMAP_RIGHT, BITMAP_BOTTOM, mWaterPaint);
-
-                            int left = BITMAP_RIGHT - mSampleWidthPx;
-                            for (; n > 0; n--) {
-                                Sample sample = mSampleQueue.poll();
-                                drawSample(sample, left);
-                                left -= mSampleWidthPx;
-                            }
-                        }
-
-                        post(() -> invalidate());
-                    } else {
-                        try {
-                            Thread.sleep(250);
-                        } catch (InterruptedException ignore) {
-                        }
-                    }
-                }
-            }
-        });
-        mRenderThread.start();
+    // Invalidate on the next vsync, unless that has already been asked for. Safe to call from
+    // any thread.
+    private void requestFrame() {
+        if (mFramePending.compareAndSet(false, true))
+            mChoreographer.postFrameCallback(mFrameCallback);
     }
 
     private synchronized void redrawAll() {
-        mOffscreenCanvas.drawRect(0, 0, BITMAP_RIGHT, BITMAP_BOTTOM, mWaterPaint);
+        mOffscreenCanvas.drawRect(0, 0, BITMAP_WIDTH, BITMAP_HEIGHT, mWaterPaint);
+        mStripWidth = (BITMAP_WIDTH / mSampleWidthPx) * mSampleWidthPx;
+        mHead = 0;
 
         // Try and open the sample file
         try {
-            SampleCache samf = new SampleCache(new File(mContext.getExternalFilesDir(null), LoggingService.CACHEFILE_NAME), true);
-            int nSams = Math.min(BITMAP_WIDTH / mSampleWidthPx, samf.getUsedSamples());
+            SampleCache samf = LoggingService.openCacheForReading(mContext);
+            SampleCache.Range newest = samf.getNewest(BITMAP_WIDTH / mSampleWidthPx);
+            int nSams = newest.getSamples();
             if (nSams > 0) {
-                Sample[] sama = new Sample[nSams];
-                samf.snapshot(sama, 0, nSams);
-                int left = BITMAP_RIGHT - nSams * mSampleWidthPx;
-                for (int sami = sama.length - nSams; sami < sama.length; sami++) {
-                    drawSample(sama[sami], left);
-                    left += mSampleWidthPx;
-                }
+                // Read the newest samples out of the cache a batch at a time, without making Samples
+                SampleCursor cursor = new SampleCursor(samf, REDRAW_CHUNK_SAMPLES);
+                cursor.seek(newest);
+                SampleBatch batch = new SampleBatch(REDRAW_CHUNK_SAMPLES);
+                int left = 0;
+                while (batch.fill(cursor) > 0)
+                    left = drawSamples(batch, left);
+                mHead = left >= mStripWidth ? 0 : left;
             }
             samf.close();
         } catch (IOException ioe) {
@@ -179,11 +184,24 @@ public class SonarView extends View {
     }
 
     private void drawSample(Sample sample, int left) {
+        drawSample(sample.depth, sample.strength, sample.fishDepth, sample.fishStrength, left);
+    }
+
+    // Draw a batch of samples left to right, starting at left. Returns the left of the next sample.
+    private int drawSamples(SampleBatch batch, int left) {
+        for (int i = 0; i < batch.size(); i++) {
+            drawSample(batch.depth[i], batch.strength[i], batch.fishDepth[i], batch.fishStrength[i], left);
+            left += mSampleWidthPx;
+        }
+        return left;
+    }
+
+    private void drawSample(float depth, int strength, float fishDepth, int fishStrength, int left) {
         // Strength is interpreted as a percentage of measured depth. Convert to an error in metres
-        float depthError = sample.depth * (100 - sample.strength) / 100;
-        float depthBottom = (sample.depth + depthError) * BITMAP_HEIGHT / mMaxDepth;
-        float depthMid = sample.depth * BITMAP_HEIGHT / mMaxDepth;
-        float depthTop = (sample.depth - depthError) * BITMAP_HEIGHT / mMaxDepth;
+        float depthError = depth * (100 - strength) / 100;
+        float depthBottom = (depth + depthError) * BITMAP_HEIGHT / mMaxDepth;
+        float depthMid = depth * BITMAP_HEIGHT / mMaxDepth;
+        float depthTop = (depth - depthError) * BITMAP_HEIGHT / mMaxDepth;
 
         int right = left + mSampleWidthPx;
 
@@ -192,7 +210,7 @@ public class SonarView extends View {
         else
             mOffscreenCanvas.drawRect(left, depthBottom, right, BITMAP_BOTTOM, mBottomPaint);
 
-        if (sample.depth <= 0)
+        if (depth <= 0)
             return;
 
         mDepthMat.setScale(1, Math.abs(depthTop - depthBottom));
@@ -203,11 +221,11 @@ public class SonarView extends View {
         else
             mOffscreenCanvas.drawRect(left, depthTop, right, depthBottom, mDepthPaint);
 
-        if (sample.fishDepth > 0 && sample.depth > sample.fishDepth) {
-            float fishError = sample.fishDepth * (100 - sample.fishStrength) / 100f;
-            float fishBottom = (sample.fishDepth + fishError) * BITMAP_HEIGHT / mMaxDepth;
-            float fishMid = sample.fishDepth * BITMAP_HEIGHT / mMaxDepth;
-            float fishTop = (sample.fishDepth - fishError) * BITMAP_HEIGHT / mMaxDepth;
+        if (fishDepth > 0 && depth > fishDepth) {
+            float fishError = fishDepth * (100 - fishStrength) / 100f;
+            float fishBottom = (fishDepth + fishError) * BITMAP_HEIGHT / mMaxDepth;
+            float fishMid = fishDepth * BITMAP_HEIGHT / mMaxDepth;
+            float fishTop = (fishDepth - fishError) * BITMAP_HEIGHT / mMaxDepth;
 
             mFishMat.setScale(1, Math.abs(fishTop - fishBottom));
             mFishMat.postTranslate(0, fishMid);
@@ -230,17 +248,72 @@ public class SonarView extends View {
     @Override // View
     public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        // Render the drawing bitmap on the screen. We let the depth scale, but make a 1:1 relationship
-        // between screen pixels and samples over the width.
-        mOffscreenBitmapRect.left = BITMAP_WIDTH - mScreenRect.right;
-        if (mOffscreenBitmapRect.left < 0)
-            // in the unlikely event the screen is wider than the background bitmap
-            mOffscreenBitmapRect.left = 0;
-        canvas.drawBitmap(mOffscreenBitmap, mOffscreenBitmapRect, mScreenRect, null);
+        // Render the newest part of the strip on the screen, ending at the head. We let the depth
+        // scale, but make a 1:1 relationship between screen pixels and samples over the width.
+        int head = mHead;
+        int strip = mStripWidth;
+        // In the unlikely event the screen is wider than the strip, the strip is stretched
+        int visible = Math.min(mScreenRect.right, strip);
+        int oldWidth = visible - head; // width of the part before the wrap, if it wraps
+        int split = 0; // screen x where the part after the wrap starts
+        if (oldWidth > 0) {
+            split = oldWidth * mScreenRect.right / visible;
+            mOldSrcRect.set(strip - oldWidth, 0, strip, BITMAP_HEIGHT);
+            mOldDstRect.set(0, 0, split, mScreenRect.bottom);
+            canvas.drawBitmap(mOffscreenBitmap, mOldSrcRect, mOldDstRect, null);
+        }
+        if (head > 0) {
+            mNewSrcRect.set(Math.max(0, head - visible), 0, head, BITMAP_HEIGHT);
+            mNewDstRect.set(split, 0, mScreenRect.right, mScreenRect.bottom);
+            canvas.drawBitmap(mOffscreenBitmap, mNewSrcRect, mNewDstRect, null);
+        }
     }
 
     /**
-     * Must be called to terminate the rendering thread when the view is finished with
+     * Start the rendering thread, if it isn't already running. Samples are ignored until it is.
+     */
+    void start() {
+        if (mRenderThread != null)
+            return;
+        // The render thread sleeps until a sample is queued, then draws everything that has been
+        // queued into the strip and asks for a frame. Samples that arrive before the frame is
+        // drawn are picked up by the same frame.
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (!interrupted()) {
+                    Sample sample;
+                    try {
+                        sample = mSampleQueue.take();
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                    synchronized (SonarView.this) {
+                        PipelineStats stats = mPipelineStats;
+                        int head = mHead;
+                        // Draw each sample over the oldest column in the strip
+                        do {
+                            mOffscreenCanvas.drawRect(head, 0, head + mSampleWidthPx, BITMAP_HEIGHT, mWaterPaint);
+                            drawSample(sample, head);
+                            if (stats != null)
+                                stats.reached(PipelineStats.RENDERED, sample);
+                            head += mSampleWidthPx;
+                            if (head >= mStripWidth)
+                                head = 0;
+                        } while ((sample = mSampleQueue.poll()) != null);
+                        mHead = head;
+                    }
+                    requestFrame();
+                }
+                Log.d(TAG, "renderThread stopped");
+            }
+        });
+        mRenderThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Must be called to terminate the rendering thread when the view is no longer visible.
+     * Samples queued but not drawn are discarded. It can be restarted by start().
      */
     void stop() {
         if (mRenderThread != null) {
@@ -248,6 +321,9 @@ public class SonarView extends View {
             mRenderThread.interrupt();
             mRenderThread = null;
         }
+        mSampleQueue.clear();
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        mFramePending.set(false);
     }
 
     /**
@@ -258,6 +334,7 @@ public class SonarView extends View {
         int nf = (int) (BITMAP_WIDTH * mSettings.getFloat(Settings.PREF_ZOOM_LEVEL)) / BITMAP_WIDTH;
         mSampleWidthPx = (nf < 1) ? 1 : nf;
         redrawAll();
+        requestFrame();
     }
 
     void zoom(float factor) {
@@ -266,9 +343,19 @@ public class SonarView extends View {
     }
 
     /**
-     * Handle an incoming sample
+     * Set the statistics to record samples in as they are drawn
+     *
+     * @param stats the statistics, or null to stop recording
+     */
+    void setPipelineStats(PipelineStats stats) {
+        mPipelineStats = stats;
+    }
+
+    /**
+     * Handle an incoming sample. Dropped if the rendering thread isn't running.
      */
     void sample(@NonNull Sample sample) {
-        mSampleQueue.add(sample);
+        if (mRenderThread != null)
+            mSampleQueue.add(sample);
     }
 }
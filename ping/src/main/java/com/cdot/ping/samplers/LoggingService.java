@@ -18,7 +18,6 @@
  */
 package com.cdot.ping.samplers;
 
-import android.app.ActivityManager;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -38,30 +37,47 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import com.cdot.location.GPX;
+import com.cdot.location.GPXAppender;
+import com.cdot.location.GPXWriter;
 import com.cdot.location.LocationSampler;
+import com.cdot.ping.BuildConfig;
 import com.cdot.ping.MainActivity;
 import com.cdot.ping.R;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
+import com.cdot.ping.Settings;
+import com.cdot.utils.CommitPolicy;
+import com.cdot.utils.ConcurrentFileByteFIFO;
+import com.cdot.utils.ConcurrentRingFIFO;
+import com.cdot.utils.RateLimiter;
+import com.cdot.utils.SegmentedFileByteFIFO;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Date;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Log incoming samples to a file.
@@ -78,8 +94,6 @@ import javax.xml.transform.stream.StreamResult;
  */
 public class LoggingService extends Service implements LocationSampler.SampleListener {
     protected static final String CLASS_NAME = LoggingService.class.getCanonicalName();
-    public static final String ACTION_SAMPLE = CLASS_NAME + ".action_sample";
-    public static final String EXTRA_SAMPLE_DATA = CLASS_NAME + ".sample_data";
     // Extra to tell us if we arrived in onStartCommand from the Notification
     protected static final String EXTRA_STARTED_FROM_NOTIFICATION =
             CLASS_NAME + ".started_from_notification";
@@ -97,8 +111,33 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
      * For Ping, every 500ms should be plenty.
      */
     private static final long LOCATION_UPDATE_INTERVAL = 500;
+    // Number of samples that can be waiting for the writer. At ~8Hz this is a couple of minutes.
+    private static final int WRITE_QUEUE_SIZE = 1024;
+    // Maximum number of samples the writer will add to the cache in one go
+    private static final int WRITE_BATCH_SIZE = 64;
+    // How long the writer sleeps when idle before checking if the cache is due a commit
+    private static final long WRITER_IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Number of samples read from the cache at a time when exporting
+    private static final int EXPORT_CHUNK_SAMPLES = 4096;
+    // Minimum time between updates to the foreground notification
+    private static final long NOTIFICATION_INTERVAL = 1000;
     // Name of sample cache file. Always stored in getExternalFilesDir()
     public static String CACHEFILE_NAME = "ping.log";
+    // Suffix of the file a cache is converted into, when it is in the original sample format or
+    // its compression has been changed
+    private static final String UPGRADE_SUFFIX = ".upgrade";
+    // Name of the directory holding a segmented sample cache. Always stored in getExternalFilesDir()
+    public static String CACHEDIR_NAME = "ping.segments";
+    // Name of a capture file that, in a debug build, is replayed by SonarReplay in place of a
+    // real sonar. Always stored in getExternalFilesDir()
+    public static String REPLAY_FILE_NAME = "replay.cap";
+    // Capture files are named with this format of the time the service started
+    private static final String CAPTURE_FILE_FORMAT = "'capture-'yyyyMMdd-HHmmss'.cap'";
+    // A segmented cache is split into about this many segments when it is created
+    private static final int CACHE_SEGMENTS = 64;
+    // Limits on the size of a segment, in samples
+    private static final int MIN_SEGMENT_SAMPLES = 1024;
+    private static final int MAX_SEGMENT_SAMPLES = 1024 * 1024;
     private final IBinder mBinder = new LoggingServiceBinder();
     /**
      * Public to allow access to device control methods
@@ -111,6 +150,16 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
      */
     protected boolean mJustAConfigurationChange = false;
     protected NotificationManager mNotificationManager;
+    // Guards the foreground notification. It is started and stopped on the main thread and
+    // refreshed on the writer thread, and a refresh mustn't re-post it after it has been stopped.
+    private final Object mNotificationLock = new Object();
+    // True between startForeground and stopForeground. Guarded by mNotificationLock
+    private boolean mInForeground = false;
+    // Limits the rate of notification updates while in the foreground. Guarded by mNotificationLock
+    private final RateLimiter mNotificationLimiter = new RateLimiter(NOTIFICATION_INTERVAL);
+    // State and text last shown in the notification, used to skip updates that change nothing.
+    // Guarded by mNotificationLock
+    private String mNotifiedState, mNotifiedText;
     private LocationSampler mLocationSampler;
     // True to keep this service running even when all clients are unbound
     // and logging is disabled. If it is false, the service will die whenever all clients unbind,
@@ -120,28 +169,180 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
     private double mLoggedSampleRate = 0; // rolling average sampling rate
     private long mTotalSamplesLogged = 0;
     private long mLastSampleTime = System.currentTimeMillis();
-    private SampleCache mCache;
+    private volatile SampleCache mCache;
+    // File or directory of the sample cache the running service has open, or null if it has none.
+    // Readers open this, rather than the store the settings ask for, which may not have been
+    // switched to yet.
+    private static volatile File sOpenStore = null;
+    // Resizes the cache, one at a time in the order they were asked for, off the caller's thread.
+    // Also closes the cache, so that it isn't closed under a resize.
+    private final ExecutorService mResizer = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, TAG + " resize"));
+    // Capacity in samples last asked for by configure, or 0 if it hasn't been called
+    private volatile int mRequestedSamples = 0;
+    // Commit policy last asked for by configure, or null if it hasn't been called
+    private volatile CommitPolicy mRequestedPolicy = null;
+    // Samples waiting to be written. Filled by the sonar thread, emptied by mWriter
+    private final ConcurrentRingFIFO<Sample> mWriteQueue = new ConcurrentRingFIFO<>(WRITE_QUEUE_SIZE);
+    private WriterThread mWriter;
+    // Latency and counts of samples from the sonar to the screen
+    private final PipelineStats mPipelineStats = new PipelineStats();
+    // Number of times the sonar thread found mWriteQueue more than half full
+    private volatile long mWriteQueueBackPressure = 0;
+    // Bound client to be told about samples as they are written
+    private volatile SampleBatchListener mSampleBatchListener;
+
+    // Open the sample cache file, creating it if it doesn't exist. A cache written by an older
+    // version, in the original sample format, is upgraded so that all sample fields are logged,
+    // and a cache that isn't compressed as asked for is converted. A cache that has never been
+    // added to takes the compression asked for. New cache files are framed, so samples added
+    // since the last commit survive a crash.
+    private SampleCache openCache(int maxSamples, CommitPolicy policy, boolean compressed) throws IOException {
+        File file = getCacheStore(this, false);
+        SampleCache cache;
+        try {
+            cache = new SampleCache(new ConcurrentFileByteFIFO(file, false,
+                    ConcurrentFileByteFIFO.Engine.MAPPED, policy), compressed);
+        } catch (FileNotFoundException fnfe) {
+            return new SampleCache(new ConcurrentFileByteFIFO(file, 1024L * Sample.BYTES,
+                    ConcurrentFileByteFIFO.Engine.MAPPED, policy, true), compressed);
+        }
+        if (cache.isExtended() && cache.isCompressed() == compressed)
+            return cache;
+        try {
+            convertCache(cache, file, maxSamples, compressed);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Problem converting log file " + ioe);
+        }
+        return new SampleCache(new ConcurrentFileByteFIFO(file, false,
+                ConcurrentFileByteFIFO.Engine.MAPPED, policy), compressed);
+    }
+
+    // Copy the samples in a cache to a new file in the current format, compressed or not, and
+    // rename it over the old file. Closes the old cache. A compressed cache holds several times
+    // as many samples as its capacity, so the new file is made big enough for all of them, up
+    // to maxSamples.
+    private void convertCache(SampleCache old, File file, int maxSamples, boolean compressed) throws IOException {
+        int used = old.getUsedSamples();
+        Log.d(TAG, "Converting " + used + " samples in " + file);
+        File temp = new File(file.getPath() + UPGRADE_SUFFIX);
+        try {
+            if (temp.exists() && !temp.delete())
+                throw new IOException("Can't delete " + temp);
+            int capacity = Math.max(old.getCapacitySamples(), Math.min(used, maxSamples));
+            if (used > capacity)
+                Log.d(TAG, "Only the newest " + capacity + " samples will be kept");
+            SampleCache cache = new SampleCache(new ConcurrentFileByteFIFO(temp, (long) capacity * Sample.BYTES,
+                    ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH, true), compressed);
+            old.copyTo(cache);
+            cache.close();
+        } finally {
+            old.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Can't rename " + temp + " to " + file);
+        }
+    }
+
+    // Open the segmented sample cache, creating it if it doesn't exist. The segment size is fixed
+    // when it is created, so it is chosen to suit the capacity it will have. Whether it is
+    // compressed is also fixed when it is created.
+    private SampleCache openSegmentedCache(int maxSamples, CommitPolicy policy, boolean compressed) throws IOException {
+        File dir = getCacheStore(this, true);
+        try {
+            return new SampleCache(new SegmentedFileByteFIFO(dir, false, policy), compressed);
+        } catch (FileNotFoundException fnfe) {
+            long segment = Math.max(MIN_SEGMENT_SAMPLES, Math.min(MAX_SEGMENT_SAMPLES, maxSamples / CACHE_SEGMENTS)) * Sample.BYTES;
+            // Dropping a segment shouldn't leave part of a compressed block behind
+            if (compressed)
+                segment = (segment + SampleBlockCodec.BLOCK_BYTES - 1) / SampleBlockCodec.BLOCK_BYTES * SampleBlockCodec.BLOCK_BYTES;
+            return new SampleCache(new SegmentedFileByteFIFO(dir, (long) maxSamples * Sample.BYTES,
+                    segment, policy), compressed);
+        }
+    }
+
+    // Open the sample cache the settings ask for. Called on the writer thread, as converting a
+    // cache may have to copy all of it; samples queue for the writer meanwhile.
+    private void openConfiguredCache(Settings settings) {
+        int maxSamples = settings.getInt(Settings.PREF_MAX_SAMPLES);
+        CommitPolicy policy = settings.getCommitPolicy();
+        boolean compressed = settings.getBoolean(Settings.PREF_COMPRESSED_CACHE);
+        boolean segmented = settings.getBoolean(Settings.PREF_SEGMENTED_CACHE);
+        SampleCache cache;
+        try {
+            if (segmented)
+                cache = openSegmentedCache(maxSamples, policy, compressed);
+            else
+                cache = openCache(maxSamples, policy, compressed);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Problem opening log file " + ioe);
+            return;
+        }
+        sOpenStore = getCacheStore(this, segmented);
+        mCache = cache;
+        // Apply any configuration that arrived while the cache was being opened
+        CommitPolicy requested = mRequestedPolicy;
+        if (requested != null)
+            cache.setCommitPolicy(requested);
+        requestResize();
+    }
+
+    // Get the sample cache, if the writer has opened it
+    private SampleCache getOpenCache() throws IOException {
+        SampleCache cache = mCache;
+        if (cache == null)
+            throw new IOException("Sample cache is not open");
+        return cache;
+    }
+
+    /**
+     * Open the sample cache the service is writing, for reading alongside it
+     *
+     * @param cxt context to find the cache and settings in
+     * @return the cache, opened readOnly
+     * @throws IOException if the cache doesn't exist, or there's a problem reading it
+     */
+    public static SampleCache openCacheForReading(Context cxt) throws IOException {
+        File store = sOpenStore;
+        if (store == null)
+            // The service hasn't opened the cache, so it will be the one the settings ask for
+            store = getCacheStore(cxt, new Settings(cxt).getBoolean(Settings.PREF_SEGMENTED_CACHE));
+        if (store.getName().equals(CACHEDIR_NAME))
+            return new SampleCache(new SegmentedFileByteFIFO(store, true, CommitPolicy.ON_FLUSH));
+        return new SampleCache(store, true);
+    }
+
+    // Get the file, or directory if segmented, that the sample cache is kept in
+    private static File getCacheStore(Context cxt, boolean segmented) {
+        return new File(cxt.getExternalFilesDir(null), segmented ? CACHEDIR_NAME : CACHEFILE_NAME);
+    }
 
     @Override // Service
     public void onCreate() {
         Log.d(TAG, "onCreate");
 
-//        mSonarSampler = new SonarBluetooth(this, new SonarBLE(this));
-        mSonarSampler = new SonarBluetooth(this, new SonarBLE(this));
-        mLocationSampler = new LocationSampler(this, this, LOCATION_UPDATE_INTERVAL);
-
-        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        try {
-            mCache = new SampleCache(new File(getExternalFilesDir(null), CACHEFILE_NAME), false);
-        } catch (FileNotFoundException fnfe) {
+        Settings settings = new Settings(this);
+        File replay = new File(getExternalFilesDir(null), REPLAY_FILE_NAME);
+        if (BuildConfig.DEBUG && replay.exists())
+            mSonarSampler = new SonarBluetooth(this, new SonarReplay(replay, settings.getInt(Settings.PREF_REPLAY_SPEED)));
+        else
+            mSonarSampler = new SonarBluetooth(this, new SonarBLE(this));
+        if (settings.getBoolean(Settings.PREF_CAPTURE)) {
+            String name = new SimpleDateFormat(CAPTURE_FILE_FORMAT, Locale.US).format(new Date());
             try {
-                mCache = new SampleCache(new File(getExternalFilesDir(null), CACHEFILE_NAME), 1024);
+                mSonarSampler.startCapture(new File(getExternalFilesDir(null), name));
             } catch (IOException ioe) {
-                Log.e(TAG, "Problem creating log file " + ioe);
+                Log.e(TAG, "Problem starting capture " + ioe);
             }
-        } catch (IOException ioe) {
-            Log.e(TAG, "Problem opening log file " + ioe);
         }
+        mLocationSampler = new LocationSampler(this, this, LOCATION_UPDATE_INTERVAL);
+
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        // The writer opens the cache
+        mWriter = new WriterThread(settings);
+        mWriter.start();
+
         // Android O requires a Notification Channel.
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             CharSequence name = getString(R.string.app_name);
@@ -192,8 +393,8 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         // Called when a client (MainActivity in case of this sample) comes to the foreground
         // and binds with this service. The service should cease to be a foreground service
         // when that happens.
-        Log.d(TAG, "onBind() conf " + mJustAConfigurationChange + " fg " + isRunningInForeground());
-        stopForeground(true);
+        Log.d(TAG, "onBind() conf " + mJustAConfigurationChange + " fg " + mInForeground);
+        leaveForeground();
         mSonarSampler.broadcastStatus();
         mJustAConfigurationChange = false;
         //mLocationSampler.onBind();
@@ -205,8 +406,8 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         // Called when a client (MainActivity in case of this sample) returns to the foreground
         // and binds once again with this service. The service should cease to be a foreground
         // service when that happens.
-        Log.d(TAG, "onRebind() conf " + mJustAConfigurationChange + " fg " + isRunningInForeground());
-        stopForeground(true);
+        Log.d(TAG, "onRebind() conf " + mJustAConfigurationChange + " fg " + mInForeground);
+        leaveForeground();
         mSonarSampler.broadcastStatus();
         mJustAConfigurationChange = false;
         super.onRebind(intent);
@@ -220,7 +421,12 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
             Log.d(TAG, "Unbinding due to a configuration change");
         } else if (KEEP_ALIVE) {
             Log.d(TAG, "Starting foreground service");
-            startForeground(NOTIFICATION_1D, getNotification());
+            synchronized (mNotificationLock) {
+                mNotifiedState = getNotificationState();
+                mNotifiedText = getNotificationText();
+                startForeground(NOTIFICATION_1D, getNotification(mNotifiedState, mNotifiedText));
+                mInForeground = true;
+            }
             playSound(R.raw.whoop);
         } else {
             // Service no longer required. Given KEEP_ALIVE=true, this is unreachable.
@@ -235,6 +441,14 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         return true; // Ensures onRebind() is called when a client re-binds.
     }
 
+    // Stop being a foreground service, and remove the notification
+    private void leaveForeground() {
+        synchronized (mNotificationLock) {
+            stopForeground(true);
+            mInForeground = false;
+        }
+    }
+
     void playSound(int sound) {
         Uri soundUri = Uri.parse(ContentResolver.SCHEME_ANDROID_RESOURCE + "://" + getApplicationContext().getPackageName() + "/" + sound);
         MediaPlayer mp = new MediaPlayer();
@@ -252,6 +466,23 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         Log.d(TAG, "onDestroy");
         mSonarSampler.close();
         mLocationSampler.stopSampling();
+        if (mWriter != null) {
+            mWriter.cancel();
+            mWriter = null;
+        }
+        final SampleCache cache = mCache;
+        mCache = null;
+        sOpenStore = null;
+        if (cache != null) {
+            mResizer.execute(() -> {
+                try {
+                    cache.close();
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Problem closing log file " + ioe);
+                }
+            });
+        }
+        mResizer.shutdown();
     }
 
     public BluetoothDevice getConnectedDevice() {
@@ -260,8 +491,32 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         return mSonarSampler.getBluetoothDevice();
     }
 
+    // Returns the connection state shown in the notification title
+    private String getNotificationState() {
+        Resources r = getResources();
+        String rationale = mSonarSampler.mBluetoothStateReason < 0 ? "" : r.getStringArray(R.array.bt_reason)[mSonarSampler.mBluetoothStateReason];
+        return String.format(r.getStringArray(R.array.bt_state)[mSonarSampler.getConnectionState()], rationale);
+    }
+
+    // Returns the description of the last logged sample shown in the notification
+    private String getNotificationText() {
+        Resources r = getResources();
+        StringBuilder samText = new StringBuilder();
+        Sample sam = mSonarSampler.mLastLoggedSample;
+        if (sam == null)
+            samText.append(r.getString(R.string.depth_unknown));
+        else {
+            samText.append(r.getString(R.string.val_depth, sam.depth));
+            samText.append(" ")
+                    .append(r.getString(R.string.val_latitude, sam.latitude))
+                    .append(" ")
+                    .append(r.getString(R.string.val_longitude, sam.longitude));
+        }
+        return samText.toString();
+    }
+
     // Returns the {@link NotificationCompat} displayed in the notification drawers.
-    private Notification getNotification() {
+    private Notification getNotification(String state, String samText) {
         Intent intent = new Intent(this, this.getClass());
 
         // Tell onStartCommand it was called from the Notification
@@ -274,23 +529,8 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         // The PendingIntent to launch activity.
         PendingIntent activityPendingIntent = PendingIntent.getActivity(this, 0,
                 new Intent(this, MainActivity.class), 0);
-        Resources r = getResources();
-
-        String rationale = mSonarSampler.mBluetoothStateReason < 0 ? "" : r.getStringArray(R.array.bt_reason)[mSonarSampler.mBluetoothStateReason];
-        String state = String.format(r.getStringArray(R.array.bt_state)[mSonarSampler.getConnectionState()], rationale);
 
         String title = getString(R.string.notification_title, DateFormat.getDateTimeInstance().format(new Date()), state);
-        StringBuilder samText = new StringBuilder();
-        Sample sam = mSonarSampler.mLastLoggedSample;
-        if (sam == null)
-            samText.append(r.getString(R.string.depth_unknown));
-        else {
-            samText.append(r.getString(R.string.val_depth, sam.depth));
-            samText.append(" ")
-                    .append(r.getString(R.string.val_latitude, sam.latitude))
-                    .append(" ")
-                    .append(r.getString(R.string.val_longitude, sam.longitude));
-        }
 
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
                 // This will restore the activity
@@ -310,14 +550,20 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         return builder.build();
     }
 
-    // Returns true if this is currently a foreground service.
-    private boolean isRunningInForeground() {
-        ActivityManager manager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-        for (ActivityManager.RunningServiceInfo service : manager.getRunningServices(Integer.MAX_VALUE)) {
-            if (getClass().getName().equals(service.service.getClassName()) && service.foreground)
-                return true;
+    // Update the notification if running as a foreground service. Called on the writer thread,
+    // both when samples are written and when it is idle, so the last change is always shown.
+    private void refreshNotification() {
+        synchronized (mNotificationLock) {
+            if (!mInForeground || !mNotificationLimiter.tryAcquire(System.currentTimeMillis()))
+                return;
+            String state = getNotificationState();
+            String text = getNotificationText();
+            if (state.equals(mNotifiedState) && text.equals(mNotifiedText))
+                return;
+            mNotifiedState = state;
+            mNotifiedText = text;
+            mNotificationManager.notify(NOTIFICATION_1D, getNotification(state, text));
         }
-        return false;
     }
 
     // Called from LocationSampler when a new location has been identified - really package-private
@@ -326,8 +572,15 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         mSonarSampler.setLocation(loc);
     }
 
-    // Called from SonarSampler
-    void logSample(Sample sample) {
+    /**
+     * Called from SonarSampler to log a sample. The sample is queued for the writer thread, so
+     * this never waits for the disk. If the writer has fallen so far behind that the queue is
+     * full the sample is rejected, and the caller should offer a later sample instead.
+     *
+     * @param sample the sample to log. Must not be modified after it is passed in.
+     * @return false if the sample was dropped
+     */
+    boolean logSample(Sample sample) {
         // "real" device has a sample rate around 8Hz
         long now = System.currentTimeMillis();
         if (now > mLastSampleTime) {
@@ -337,22 +590,128 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         }
         mLastSampleTime = now;
 
-        if (mCache != null) {
-            try {
-                mCache.add(sample);
-            } catch (IOException ioe) {
-                Log.e(TAG, "logSample " + ioe);
+        if (!mWriteQueue.offer(sample)) {
+            mPipelineStats.dropped();
+            return false;
+        }
+        mPipelineStats.reached(PipelineStats.QUEUED, sample);
+        if (mWriteQueue.size() > WRITE_QUEUE_SIZE / 2)
+            mWriteQueueBackPressure++;
+        WriterThread writer = mWriter;
+        if (writer != null && writer.mIdle)
+            LockSupport.unpark(writer);
+        return true;
+    }
+
+    // Called on the writer thread once a batch of samples has been added to the cache
+    private void onSamplesWritten(Sample[] samples, int len) {
+        for (int i = 0; i < len; i++)
+            mPipelineStats.reached(PipelineStats.STORED, samples[i]);
+        SampleBatchListener listener = mSampleBatchListener;
+        if (listener != null) {
+            listener.onSamples(samples, len);
+            for (int i = 0; i < len; i++)
+                mPipelineStats.reached(PipelineStats.DELIVERED, samples[i]);
+        }
+        refreshNotification();
+    }
+
+    /**
+     * Get the latencies and counts of samples on their way from the sonar to the screen
+     *
+     * @return the statistics, which are live
+     */
+    public PipelineStats getPipelineStats() {
+        return mPipelineStats;
+    }
+
+    /**
+     * Set the listener to be told about samples as they are logged. Only one listener is
+     * supported; it replaces any previous listener.
+     *
+     * @param listener the listener, or null to stop listening
+     */
+    public void setSampleBatchListener(SampleBatchListener listener) {
+        mSampleBatchListener = listener;
+    }
+
+    /**
+     * Get the current sample batch listener
+     *
+     * @return the listener, may be null
+     */
+    public SampleBatchListener getSampleBatchListener() {
+        return mSampleBatchListener;
+    }
+
+    /**
+     * The single writer for the sample cache. Drains samples queued by logSample in batches, so
+     * the sonar thread never has to wait for storage.
+     */
+    private class WriterThread extends Thread {
+        // Set while the thread is parked waiting for samples
+        volatile boolean mIdle = false;
+        private volatile boolean mCancelled = false;
+        private final Sample[] mBatch = new Sample[WRITE_BATCH_SIZE];
+        // Settings to open the cache with
+        private final Settings mSettings;
+
+        WriterThread(Settings settings) {
+            super(TAG + " writer");
+            mSettings = settings;
+        }
+
+        @Override // Thread
+        public void run() {
+            openConfiguredCache(mSettings);
+            while (!mCancelled) {
+                if (writeBatch() > 0)
+                    continue;
+                mIdle = true;
+                // Re-check after advertising idleness, so a sample queued meanwhile isn't missed
+                if (mWriteQueue.isEmpty() && !mCancelled)
+                    LockSupport.parkNanos(this, WRITER_IDLE_NANOS);
+                mIdle = false;
+                refreshNotification();
+                if (mCache != null) {
+                    try {
+                        mCache.commitIfDue();
+                    } catch (IOException ioe) {
+                        Log.e(TAG, "Problem committing log file " + ioe);
+                    }
+                }
             }
+            // Don't lose anything still queued
+            while (writeBatch() > 0) ;
         }
 
-        // Update notification content if running as a foreground service.
-        if (isRunningInForeground()) {
-            mNotificationManager.notify(NOTIFICATION_1D, getNotification());
-        } else {
-            //Log.d(TAG, "Broadcasting sample");
-            Intent intent = new Intent(ACTION_SAMPLE);
-            intent.putExtra(EXTRA_SAMPLE_DATA, sample);
-            sendBroadcast(intent);
+        // Move the next batch from the queue to the cache. Returns the number of samples moved.
+        private int writeBatch() {
+            int n = mWriteQueue.drain(mBatch, 0, WRITE_BATCH_SIZE);
+            if (n == 0)
+                return 0;
+            if (mCache != null) {
+                try {
+                    mCache.add(mBatch, 0, n);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "logSample " + ioe);
+                }
+            }
+            onSamplesWritten(mBatch, n);
+            for (int i = 0; i < n; i++)
+                mBatch[i] = null;
+            return n;
+        }
+
+        // Stop the thread once the queue is written, and wait for it to finish
+        void cancel() {
+            mCancelled = true;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (InterruptedException ie) {
+                Log.e(TAG, "Interrupted waiting for writer " + ie);
+            }
         }
     }
 
@@ -366,52 +725,187 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
      * @param minDeltaPos   min location change, in metres
      * @param sampleTimeout timeout waiting for a sample before we abandon the connection and try a different device. 0 means never.
      * @param maxSamples    number of samples that must be accomodated in the sample buffer
+     * @param commitPolicy  how often the sample buffer is committed to storage
      */
-    public void configure(int sensitivity, int noise, int range, float minDeltaDepth, float minDeltaPos, int sampleTimeout, int maxSamples) {
+    public void configure(int sensitivity, int noise, int range, float minDeltaDepth, float minDeltaPos, int sampleTimeout, int maxSamples, CommitPolicy commitPolicy) {
         mSonarSampler.configure(sensitivity, noise, range, minDeltaDepth, minDeltaPos, sampleTimeout);
-        if (mCache == null)
-            return;
-        try {
-            mCache.setCapacitySamples(maxSamples);
-        } catch (IOException ioe) {
-            Log.e(TAG, "Problem changing log size " + ioe);
-        }
+        // If the cache is still being opened, these are applied once it is
+        mRequestedPolicy = commitPolicy;
+        mRequestedSamples = maxSamples;
+        SampleCache cache = mCache;
+        if (cache != null)
+            cache.setCommitPolicy(commitPolicy);
+        requestResize();
+    }
+
+    // Resize the cache to the capacity last asked for. Resizing may have to copy the whole cache,
+    // so it is done by mResizer, and logging carries on meanwhile. If several resizes are asked
+    // for while one is running, only the last is applied.
+    private void requestResize() {
+        mResizer.execute(() -> {
+            SampleCache cache = mCache;
+            int samples = mRequestedSamples;
+            if (cache == null || samples == 0 || samples == cache.getCapacitySamples())
+                return;
+            try {
+                cache.setCapacitySamples(samples);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Problem changing log size " + ioe);
+            }
+        });
     }
 
     /**
      * Write GPX XML for all cached samples to the given Uri. All samples are written, whether they
-     * has already been written or not.
+     * has already been written or not. If the Uri already holds a GPX document, the samples are
+     * added to it as a new track segment.
      *
      * @param uri the uri to create the GPX document at
      */
     public void writeGPX(Uri uri) throws IOException {
-        Document gpxDocument = GPX.openDocument(getContentResolver(), uri, getResources().getString(R.string.app_name));
+        // Make sure everything exported is also safely in the cache
+        SampleCache cache = getOpenCache();
+        cache.flush();
+        writeGPX(uri, cache, cache.getRange());
+    }
+
+    /**
+     * Write GPX XML for the cached samples in a time range to the given Uri. The samples are
+     * found using the cache's time index, so only the samples in the range are read. As for
+     * #writeGPX(Uri), an existing GPX document gets a new track segment.
+     *
+     * @param uri        the uri to create the GPX document at
+     * @param fromMillis earliest sample time to write, epoch ms
+     * @param toMillis   latest sample time to write (inclusive), epoch ms
+     */
+    public void writeGPX(Uri uri, long fromMillis, long toMillis) throws IOException {
+        SampleCache cache = getOpenCache();
+        cache.flush();
+        writeGPX(uri, cache, cache.query(fromMillis, toMillis));
+    }
 
-        // Create new trkseg element for this trace
-        Element gpxTrk = (Element) gpxDocument.getElementsByTagNameNS(GPX.NS_GPX, "trk").item(0);
-        Element gpxTrkseg = gpxDocument.createElementNS(GPX.NS_GPX, "trkseg");
-        gpxTrk.appendChild(gpxTrkseg);
+    // Write the samples in a range of the cache. The cache is passed down rather than read from
+    // mCache, which onDestroy may clear while the export is running on another thread.
+    private void writeGPX(Uri uri, SampleCache cache, SampleCache.Range range) throws IOException {
+        if (GPX.hasContent(getContentResolver(), uri)) {
+            if (!spliceGPX(uri, cache, range))
+                copyGPX(uri, cache, range);
+        } else
+            writeNewGPX(uri, cache, range);
+        Log.d(TAG, "GPX written");
+    }
+
+    // Write a new GPX document with a single trkseg
+    private void writeNewGPX(Uri uri, SampleCache cache, SampleCache.Range range) throws IOException {
+        AssetFileDescriptor afd = getContentResolver().openAssetFileDescriptor(uri, "wt");
+        Writer out = new BufferedWriter(new OutputStreamWriter(afd.createOutputStream(), "UTF-8"));
+        GPXWriter gpx = new GPXWriter(out);
+        gpx.startDocument(getResources().getString(R.string.app_name));
+        writeGPXSegment(gpx, cache, range);
+        gpx.endDocument();
+        out.close();
+        afd.close();
+    }
+
+    // Add a trkseg to an existing GPX document in place, by overwriting the end of the document.
+    // Returns false if the document doesn't end the way we expect, or can't be written in place.
+    private boolean spliceGPX(Uri uri, SampleCache cache, SampleCache.Range range) throws IOException {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = getContentResolver().openFileDescriptor(uri, "rw");
+        } catch (FileNotFoundException | UnsupportedOperationException | SecurityException e) {
+            return false;
+        }
+        try {
+            FileDescriptor fd = pfd.getFileDescriptor();
+            long tail;
+            try {
+                tail = GPXAppender.findTrackTail(new FileInputStream(fd).getChannel());
+            } catch (IOException ioe) {
+                // Not seekable, e.g. a pipe
+                Log.d(TAG, "Can't splice GPX " + ioe);
+                return false;
+            }
+            if (tail < 0)
+                return false;
+            FileChannel channel = new FileOutputStream(fd).getChannel();
+            channel.position(tail);
+            Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), "UTF-8"));
+            GPXWriter gpx = new GPXWriter(out);
+            gpx.continueDocument(2);
+            writeGPXSegment(gpx, cache, range);
+            gpx.endDocument();
+            // The new tail may be shorter than the old one if that had trailing space
+            channel.truncate(channel.position());
+            return true;
+        } finally {
+            pfd.close();
+        }
+    }
 
-        Sample[] snap = new Sample[mCache.getUsedSamples()];
-        mCache.snapshot(snap, 0, snap.length);
-        for (Sample s : snap)
-            gpxTrkseg.appendChild(s.toGPX(gpxDocument));
+    // Add a trkseg to an existing GPX document by copying it to a temporary file, inserting the
+    // segment on the way through, then copying it back
+    private void copyGPX(Uri uri, SampleCache cache, SampleCache.Range range) throws IOException {
+        ContentResolver cr = getContentResolver();
+        int depth = 2; // inside gpx and trk
+        long insertAt;
+        try (InputStream in = cr.openInputStream(uri)) {
+            insertAt = GPXAppender.findLastEndTag(in, "trk");
+        }
+        if (insertAt < 0) {
+            // No track, so add one at the end of the gpx element
+            depth = 1;
+            try (InputStream in = cr.openInputStream(uri)) {
+                insertAt = GPXAppender.findLastEndTag(in, "gpx");
+            }
+        }
+        if (insertAt < 0)
+            // Don't overwrite something we don't understand
+            throw new IOException(uri + " is not a GPX document");
 
+        File temp = File.createTempFile("ping", ".gpx", getCacheDir());
         try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-
-            DOMSource source = new DOMSource(gpxDocument);
-            AssetFileDescriptor afd = getContentResolver().openAssetFileDescriptor(uri, "w");
-            StreamResult result = new StreamResult(afd.createOutputStream());
-            transformer.transform(source, result);
-            afd.close();
-            Log.d(TAG, "GPX written");
-        } catch (TransformerException tce) {
-            Log.e(TAG, "writeGPX failed " + tce);
+            try (InputStream in = cr.openInputStream(uri);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                GPXAppender.copy(in, out, insertAt);
+                Writer w = new OutputStreamWriter(out, "UTF-8");
+                GPXWriter gpx = new GPXWriter(w);
+                gpx.continueDocument(depth);
+                if (depth == 1)
+                    gpx.startElement("trk");
+                writeGPXSegment(gpx, cache, range);
+                if (depth == 1)
+                    gpx.endElement("trk");
+                w.flush();
+                GPXAppender.copy(in, out, Long.MAX_VALUE);
+            }
+            try (InputStream in = new FileInputStream(temp);
+                 OutputStream out = cr.openOutputStream(uri, "wt")) {
+                GPXAppender.copy(in, out, Long.MAX_VALUE);
+            }
+        } finally {
+            if (!temp.delete())
+                Log.e(TAG, "Failed to delete " + temp);
         }
     }
 
+    // Write a trkseg containing the samples in the range
+    private void writeGPXSegment(GPXWriter gpx, SampleCache cache, SampleCache.Range range) throws IOException {
+        gpx.startElement("trkseg");
+        writeGPXSamples(gpx, cache, range);
+        gpx.endElement("trkseg");
+    }
+
+    // Stream the samples in the range, reading the cache a batch at a time so memory use is bounded
+    // however big the cache is
+    private void writeGPXSamples(GPXWriter gpx, SampleCache cache, SampleCache.Range range) throws IOException {
+        SampleCursor cursor = new SampleCursor(cache, EXPORT_CHUNK_SAMPLES);
+        cursor.seek(range);
+        SampleBatch batch = new SampleBatch(EXPORT_CHUNK_SAMPLES);
+        while (batch.fill(cursor) > 0)
+            batch.writeGPX(gpx);
+    }
+
     /**
      * Get the current average logged sampling rate, in Hz
      *
@@ -439,13 +933,49 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         return mTotalSamplesLogged;
     }
 
+    /**
+     * Get the number of samples that were dropped because the writer couldn't keep up, since the
+     * pipeline stats were last reset
+     *
+     * @return samples dropped
+     */
+    public long getSamplesDropped() {
+        return mPipelineStats.getDropped();
+    }
+
+    /**
+     * Get the number of samples that were queued while the writer queue was more than half full
+     *
+     * @return samples queued under back-pressure
+     */
+    public long getWriteQueueBackPressure() {
+        return mWriteQueueBackPressure;
+    }
+
     /**
      * Get cache usage as a percentage of the available capacity
      *
      * @return a percentage
      */
     public float getCacheUsage() {
-        return 100.0f * mCache.getUsedSamples() / mCache.getCapacitySamples();
+        SampleCache cache = mCache;
+        return cache == null ? 0 : 100.0f * cache.getUsedFraction();
+    }
+
+    /**
+     * Interface to a bound client that wants to see samples as they are logged. Samples are
+     * delivered in batches, in the order they were logged, straight from the writer thread, so
+     * there is no per-sample broadcast or unparcelling.
+     */
+    public interface SampleBatchListener {
+        /**
+         * Called on the writer thread when a batch of samples has been logged. Must return
+         * quickly. The samples may be kept, but the array is reused and must not be.
+         *
+         * @param samples the samples, oldest first
+         * @param len     the number of samples in the batch
+         */
+        void onSamples(Sample[] samples, int len);
     }
 
     /**
@@ -455,5 +985,21 @@ public class LoggingService extends Service implements LocationSampler.SampleLis
         public LoggingService getService() {
             return LoggingService.this;
         }
+
+        /**
+         * Get a plain text report of the pipeline latencies and sample counts, see PipelineStats
+         *
+         * @return the report
+         */
+        public String dumpPipelineStats() {
+            return mPipelineStats.dump();
+        }
+
+        /**
+         * Restart the pipeline statistics from nothing
+         */
+        public void resetPipelineStats() {
+            mPipelineStats.reset();
+        }
     }
 }
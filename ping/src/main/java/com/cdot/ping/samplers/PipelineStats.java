@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import com.cdot.utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of samples through the pipeline from the sonar to the screen, and counts of samples
+ * at each end. Each sample is stamped with Sample#received when its packet arrives; as it
+ * reaches each stage the time since then is recorded in the stage's histogram. Recording
+ * doesn't allocate or lock, so it can stay on in release builds.
+ */
+public class PipelineStats {
+    // Stages, in the order samples reach them
+    public static final int QUEUED = 0; // queued for the writer by LoggingService#logSample
+    public static final int STORED = 1; // added to the SampleCache
+    public static final int DELIVERED = 2; // given to the SampleBatchListener
+    public static final int RENDERED = 3; // drawn by the SonarView render thread
+    private static final String[] STAGE_NAMES = {"queued", "stored", "delivered", "rendered"};
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_NAMES.length];
+    private final AtomicLong mReceived = new AtomicLong(); // good packets decoded
+    private final AtomicLong mDropped = new AtomicLong(); // samples dropped by a full write queue
+
+    public PipelineStats() {
+        for (int i = 0; i < mStages.length; i++)
+            mStages[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Count a good packet received from the sonar
+     */
+    public void received() {
+        mReceived.incrementAndGet();
+    }
+
+    /**
+     * Count a sample dropped because the writer couldn't keep up
+     */
+    public void dropped() {
+        mDropped.incrementAndGet();
+    }
+
+    /**
+     * Record a sample reaching a stage
+     *
+     * @param stage  QUEUED, STORED, DELIVERED or RENDERED
+     * @param sample the sample. Ignored unless it was stamped when its packet was received.
+     */
+    public void reached(int stage, Sample sample) {
+        if (sample.received != 0)
+            mStages[stage].record(System.nanoTime() - sample.received);
+    }
+
+    /**
+     * Get the latencies of samples reaching a stage
+     *
+     * @param stage QUEUED, STORED, DELIVERED or RENDERED
+     * @return histogram of nanoseconds since the packets were received
+     */
+    public LatencyHistogram getLatency(int stage) {
+        return mStages[stage];
+    }
+
+    /**
+     * @return number of good packets received
+     */
+    public long getReceived() {
+        return mReceived.get();
+    }
+
+    /**
+     * @return number of samples queued to be logged
+     */
+    public long getLogged() {
+        return mStages[QUEUED].getCount();
+    }
+
+    /**
+     * @return number of samples dropped because the writer couldn't keep up
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return number of samples drawn as they arrived
+     */
+    public long getRendered() {
+        return mStages[RENDERED].getCount();
+    }
+
+    /**
+     * Start again from nothing
+     */
+    public void reset() {
+        mReceived.set(0);
+        mDropped.set(0);
+        for (LatencyHistogram h : mStages)
+            h.reset();
+    }
+
+    /**
+     * Get a plain text report of the counts and latencies
+     *
+     * @return the report, one line per count or stage
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("received ").append(getReceived()).append('\n');
+        sb.append("logged ").append(getLogged()).append('\n');
+        sb.append("dropped ").append(getDropped()).append('\n');
+        sb.append("rendered ").append(getRendered()).append('\n');
+        for (int i = 0; i < mStages.length; i++)
+            sb.append(STAGE_NAMES[i]).append(' ').append(mStages[i].summariseNanos()).append('\n');
+        return sb.toString();
+    }
+}
@@ -23,6 +23,7 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import com.cdot.location.GPX;
+import com.cdot.location.GPXWriter;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -32,8 +33,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Date;
-import java.util.TimeZone;
 
 public class Sample implements Parcelable {
     public static final String TAG = Sample.class.getSimpleName();
@@ -50,12 +49,21 @@ public class Sample implements Parcelable {
         }
     };
 
-    // Number of bytes in a serialised sample
-    public static final int BYTES = Long.BYTES // time
+    // Number of bytes in a sample serialised in the original format, which only has the time,
+    // position, depth and strength
+    public static final int V1_BYTES = Long.BYTES // time
             + 2 * Double.BYTES // lat, long
             + Float.BYTES // depth
             + 1; // strength
 
+    // Number of bytes in a serialised sample. The original format is extended with the rest of
+    // the fields in fixed point.
+    public static final int BYTES = V1_BYTES
+            + Short.BYTES // fish depth, cm
+            + 1 // fish strength
+            + Short.BYTES // temperature, hundredths of a degree C
+            + 1; // battery
+
     public static String NS_PING = "http://cdot.github.io/Ping/GPX"; // Ping namespace
 
     public long time; // epoch ms
@@ -64,12 +72,15 @@ public class Sample implements Parcelable {
     public float depth; // m
     public int strength; // %
 
-    // Remaining fileds are not serialised
     public float temperature; // C
     public float fishDepth; // m
     public int fishStrength; // %
     public byte battery; // %
 
+    // System.nanoTime() when the packet the sample came from arrived, for PipelineStats. 0 if
+    // unknown. Not serialised.
+    public long received;
+
     public Sample() {
         time = System.currentTimeMillis();
         depth = 0;
@@ -99,6 +110,24 @@ public class Sample implements Parcelable {
         strength = s;
     }
 
+    /**
+     * Construct a copy of another sample
+     *
+     * @param s sample to copy
+     */
+    public Sample(Sample s) {
+        time = s.time;
+        latitude = s.latitude;
+        longitude = s.longitude;
+        depth = s.depth;
+        strength = s.strength;
+        temperature = s.temperature;
+        fishDepth = s.fishDepth;
+        fishStrength = s.fishStrength;
+        battery = s.battery;
+        received = s.received;
+    }
+
     // Parcels are used to send samples internally
     protected Sample(Parcel in) {
         time = in.readLong();
@@ -115,15 +144,23 @@ public class Sample implements Parcelable {
     /**
      * Create from a serialised data stream
      *
-     * @param dis the input stream
+     * @param dis   the input stream
+     * @param bytes size of the serialised sample, BYTES, or V1_BYTES for the original format
      */
-    static Sample fromDataStream(DataInputStream dis) throws IOException {
+    static Sample fromDataStream(DataInputStream dis, int bytes) throws IOException {
         long time = dis.readLong();
         double latitude = dis.readDouble();
         double longitude = dis.readDouble();
         float depth = dis.readFloat();
         int strength = dis.readUnsignedByte();
-        return new Sample(time, latitude, longitude, depth, strength);
+        Sample sample = new Sample(time, latitude, longitude, depth, strength);
+        if (bytes == BYTES) {
+            sample.fishDepth = dis.readUnsignedShort() / 100f;
+            sample.fishStrength = dis.readUnsignedByte();
+            sample.temperature = dis.readShort() / 100f;
+            sample.battery = dis.readByte();
+        }
+        return sample;
     }
 
     /**
@@ -131,17 +168,25 @@ public class Sample implements Parcelable {
      *
      * @param buff   buffer containing sample data
      * @param offset start of the sample we're interested in
+     * @param bytes  size of the serialised sample, BYTES, or V1_BYTES for the original format
      */
-    static Sample fromByteArray(byte[] buff, int offset) throws IOException {
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buff, offset, BYTES));
-        return Sample.fromDataStream(dis);
+    static Sample fromByteArray(byte[] buff, int offset, int bytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buff, offset, bytes));
+        return Sample.fromDataStream(dis, bytes);
+    }
+
+    // Convert to fixed point with a scale, clamping to the range of an integer of the given size
+    static int toFixed(float value, float scale, int min, int max) {
+        return Math.max(min, Math.min(max, Math.round(value * scale)));
     }
 
     /**
      * Serialise to a byte buffer
+     *
+     * @param bytes size of the serialised sample, BYTES, or V1_BYTES for the original format
      */
-    byte[] toByteArray() {
-        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+    byte[] toByteArray(int bytes) {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream(bytes);
         DataOutputStream dos = new DataOutputStream(bs);
         try {
             dos.writeLong(time);
@@ -149,6 +194,12 @@ public class Sample implements Parcelable {
             dos.writeDouble(longitude);
             dos.writeFloat(depth);
             dos.writeByte(strength);
+            if (bytes == BYTES) {
+                dos.writeShort(toFixed(fishDepth, 100, 0, 0xFFFF));
+                dos.writeByte(fishStrength);
+                dos.writeShort(toFixed(temperature, 100, Short.MIN_VALUE, Short.MAX_VALUE));
+                dos.writeByte(battery);
+            }
         } catch (IOException ioe) {
             Log.e(TAG, "getBytes error " + ioe);
         }
@@ -183,10 +234,7 @@ public class Sample implements Parcelable {
         GPX_trkpt.appendChild(GPX_ele);
 
         Element GPX_time = doc.createElementNS(GPX.NS_GPX, "time");
-        Date date = new Date(time);
-        GPX.ISO_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("Z"));
-        String text = GPX.ISO_DATE_FORMAT.format(date);
-        GPX_time.setTextContent(text);
+        GPX_time.setTextContent(GPX.formatTimestamp(time));
         GPX_trkpt.appendChild(GPX_time);
 
         Element GPX_extensions = doc.createElementNS(GPX.NS_GPX, "extensions");
@@ -207,4 +255,39 @@ public class Sample implements Parcelable {
         GPX_trkpt.appendChild(GPX_extensions);
         return GPX_trkpt;
     }
+
+    /**
+     * Write the sample as a GPX trkpt. The output is the same as serialising #toGPX
+     *
+     * @param w the writer to write to
+     * @throws IOException if there's a problem writing
+     */
+    public void writeGPX(GPXWriter w) throws IOException {
+        writeGPX(w, time, latitude, longitude, depth, strength, fishDepth, fishStrength);
+    }
+
+    // Write a trkpt from sample fields, shared with SampleCursor
+    static void writeGPX(GPXWriter w, long time, double latitude, double longitude, float depth,
+                         int strength, float fishDepth, int fishStrength) throws IOException {
+        w.startElement("trkpt");
+        w.attribute("lat", Double.toString(latitude));
+        w.attribute("lon", Double.toString(longitude));
+
+        w.textElement("ele", Double.toString(depth < 0 ? 0 : depth));
+
+        w.timeElement("time", time);
+
+        w.startElement("extensions");
+        w.startElement("ping", NS_PING);
+        // Attributes in the order a Transformer would write them
+        if (fishDepth > 0)
+            w.attribute("fdepth", Double.toString(fishDepth));
+        if (fishStrength > 0)
+            w.attribute("fstrength", Integer.toString(fishStrength));
+        if (strength > 0)
+            w.attribute("strength", Integer.toString(strength));
+        w.endElement("ping");
+        w.endElement("extensions");
+        w.endElement("trkpt");
+    }
 }
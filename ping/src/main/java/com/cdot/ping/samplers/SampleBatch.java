@@ -0,0 +1,198 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import com.cdot.location.GPX;
+import com.cdot.location.GPXWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A batch of samples held as parallel arrays of their fields, rather than an array of Sample
+ * objects. Filling a batch from a SampleCursor creates no objects, and loops over a batch read
+ * each field from contiguous memory, so whole caches can be processed a batch at a time in
+ * constant memory.
+ * <pre>
+ * SampleBatch batch = new SampleBatch(4096);
+ * cursor.seek(range);
+ * while (batch.fill(cursor) &gt; 0)
+ *     batch.writeGPX(gpx);
+ * </pre>
+ * The arrays are public so loops can use them directly; only the first size() entries are
+ * meaningful.
+ */
+public class SampleBatch {
+    /**
+     * Header line for #writeCSV, naming the columns
+     */
+    public static final String CSV_HEADER = "time,latitude,longitude,depth,strength,fishDepth,fishStrength,temperature,battery\n";
+
+    public final long[] time; // epoch ms
+    public final double[] latitude; // degrees
+    public final double[] longitude; // degrees
+    public final float[] depth; // m
+    public final int[] strength; // %
+    public final float[] fishDepth; // m
+    public final int[] fishStrength; // %
+    public final float[] temperature; // C
+    public final byte[] battery; // %
+    // Number of samples in the batch
+    private int mSize = 0;
+    // Used to format times for CSV
+    private GPX.TimestampFormat mTimestampFormat;
+    private char[] mTimestamp;
+
+    /**
+     * @param capacity the most samples the batch can hold
+     */
+    public SampleBatch(int capacity) {
+        time = new long[capacity];
+        latitude = new double[capacity];
+        longitude = new double[capacity];
+        depth = new float[capacity];
+        strength = new int[capacity];
+        fishDepth = new float[capacity];
+        fishStrength = new int[capacity];
+        temperature = new float[capacity];
+        battery = new byte[capacity];
+    }
+
+    /**
+     * @return the number of samples in the batch
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the most samples the batch can hold
+     */
+    public int capacity() {
+        return time.length;
+    }
+
+    /**
+     * Empty the batch
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Add a sample to the end of the batch
+     *
+     * @param s the sample
+     * @throws ArrayIndexOutOfBoundsException if the batch is full
+     */
+    public void add(Sample s) {
+        set(mSize, s.time, s.latitude, s.longitude, s.depth, s.strength, s.fishDepth, s.fishStrength,
+                s.temperature, s.battery);
+        mSize++;
+    }
+
+    /**
+     * Refill the batch with the next samples from a cursor, replacing what it held
+     *
+     * @param cursor the cursor to read from. Left on the last sample read.
+     * @return the number of samples read, 0 when the cursor has no more
+     * @throws IOException if there's a problem reading the cache
+     */
+    public int fill(SampleCursor cursor) throws IOException {
+        mSize = 0;
+        while (mSize < time.length && cursor.next()) {
+            set(mSize, cursor.time(), cursor.latitude(), cursor.longitude(), cursor.depth(), cursor.strength(),
+                    cursor.fishDepth(), cursor.fishStrength(), cursor.temperature(), cursor.battery());
+            mSize++;
+        }
+        return mSize;
+    }
+
+    private void set(int i, long t, double lat, double lon, float d, int s, float fd, int fs, float temp, byte b) {
+        time[i] = t;
+        latitude[i] = lat;
+        longitude[i] = lon;
+        depth[i] = d;
+        strength[i] = s;
+        fishDepth[i] = fd;
+        fishStrength[i] = fs;
+        temperature[i] = temp;
+        battery[i] = b;
+    }
+
+    /**
+     * Make a Sample from the batch
+     *
+     * @param i index of the sample
+     * @return a new Sample
+     */
+    public Sample getSample(int i) {
+        Sample s = new Sample(time[i], latitude[i], longitude[i], depth[i], strength[i]);
+        s.fishDepth = fishDepth[i];
+        s.fishStrength = fishStrength[i];
+        s.temperature = temperature[i];
+        s.battery = battery[i];
+        return s;
+    }
+
+    /**
+     * Write the samples in the batch as GPX trkpts. See Sample#writeGPX
+     *
+     * @param w the writer to write to
+     * @throws IOException if there's a problem writing
+     */
+    public void writeGPX(GPXWriter w) throws IOException {
+        for (int i = 0; i < mSize; i++)
+            Sample.writeGPX(w, time[i], latitude[i], longitude[i], depth[i], strength[i], fishDepth[i], fishStrength[i]);
+    }
+
+    /**
+     * Write the samples in the batch as CSV lines, in the order of the columns in CSV_HEADER.
+     * Times are ISO 8601 UTC, as in GPX.
+     *
+     * @param w the writer to write to. Should be buffered.
+     * @throws IOException if there's a problem writing
+     */
+    public void writeCSV(Writer w) throws IOException {
+        if (mTimestampFormat == null) {
+            mTimestampFormat = new GPX.TimestampFormat();
+            mTimestamp = new char[GPX.TIMESTAMP_CHARS];
+        }
+        for (int i = 0; i < mSize; i++) {
+            w.write(mTimestamp, 0, mTimestampFormat.format(time[i], mTimestamp, 0));
+            w.write(',');
+            w.write(Double.toString(latitude[i]));
+            w.write(',');
+            w.write(Double.toString(longitude[i]));
+            w.write(',');
+            w.write(Float.toString(depth[i]));
+            w.write(',');
+            w.write(Integer.toString(strength[i]));
+            w.write(',');
+            w.write(Float.toString(fishDepth[i]));
+            w.write(',');
+            w.write(Integer.toString(fishStrength[i]));
+            w.write(',');
+            w.write(Float.toString(temperature[i]));
+            w.write(',');
+            w.write(Integer.toString(battery[i]));
+            w.write('\n');
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses samples for a compressed SampleCache. Consecutive samples differ very little, so
+ * instead of storing each sample whole, samples are grouped into blocks of BLOCK_BYTES. Each
+ * block starts with a keyframe holding a whole sample, and the samples after it are stored as
+ * zig-zag varint deltas from the sample before. Blocks start at logical positions that are
+ * multiples of BLOCK_BYTES, so the block holding any position is known, and the keyframes make
+ * an index that can be binary searched without reading the rest of the log.
+ * <p>
+ * Positions are stored as fixed point 1e-7 degrees, depths in mm, fish depths in cm and
+ * temperatures in hundredths of a degree, so a compressed sample is rounded to that precision.
+ * <p>
+ * A keyframe is KEYFRAME_BYTES long, holding the sample number (the number of samples ever
+ * added before it), time, latitude, longitude, depth, strength, fish depth, fish strength,
+ * temperature and battery. Each delta then holds:
+ * <ul>
+ * <li>a flags byte, saying which of the strength, fish depth, fish strength, temperature and
+ * battery have changed</li>
+ * <li>the change in the time between samples (so a steady sample rate costs one byte)</li>
+ * <li>the changes in latitude, longitude and depth</li>
+ * <li>the changes in whichever other fields the flags say have changed</li>
+ * </ul>
+ * If a delta doesn't fit in the rest of a block, an END byte is written and the rest of the block
+ * is skipped, and the sample starts a new block as a keyframe.
+ * <p>
+ * A codec keeps the last sample encoded or decoded, so it can be used to encode or decode, but
+ * not both at once.
+ */
+public class SampleBlockCodec {
+    // Size of a block
+    public static final int BLOCK_BYTES = 1024;
+    // Size of a keyframe at the start of a block
+    public static final int KEYFRAME_BYTES = 2 * Long.BYTES // sample number, time
+            + 3 * Integer.BYTES // latitude, longitude, depth
+            + 1 // strength
+            + Short.BYTES // fish depth
+            + 1 // fish strength
+            + Short.BYTES // temperature
+            + 1; // battery
+    // Longest encoding of a delta
+    static final int MAX_DELTA_BYTES = 1 + 4 * 10 + 5 * 5;
+    // Most bytes #encode can write for one sample; the end of a block, and a keyframe
+    public static final int MAX_ENCODED_BYTES = BLOCK_BYTES + KEYFRAME_BYTES;
+
+    // Flags saying which fields are in a delta
+    private static final int STRENGTH = 1;
+    private static final int FISH_DEPTH = 2;
+    private static final int FISH_STRENGTH = 4;
+    private static final int TEMPERATURE = 8;
+    private static final int BATTERY = 16;
+    // In place of the flags, marks the end of the deltas in a block
+    private static final int END = 0xFF;
+
+    // Scales of the fixed point numbers
+    private static final double DEGREES = 1e7;
+    private static final float DEPTH_MM = 1000;
+    private static final float FISH_DEPTH_CM = 100;
+    private static final float TEMPERATURE_HUNDREDTHS = 100;
+
+    // The last sample encoded or decoded, in fixed point
+    private long mNumber = -1; // sample number
+    private long mTime;
+    private long mInterval; // time since the sample before
+    private int mLatitude, mLongitude, mDepth;
+    private int mStrength, mFishDepth, mFishStrength, mTemperature, mBattery;
+    // Bytes left in the block being encoded
+    private int mBlockLeft = 0;
+    // Set if the next sample must start a new block
+    private boolean mMustStartBlock = true;
+    // Holds a delta while it is encoded, to see if it will fit in the block
+    private final ByteBuffer mDelta = ByteBuffer.allocate(MAX_DELTA_BYTES);
+
+    /**
+     * Start encoding. The next sample encoded will start a new block, after skipping what's
+     * left of the current block.
+     *
+     * @param number    sample number of the next sample
+     * @param blockLeft number of bytes left in the current block, 0 if at the start of a block
+     */
+    public void startEncoding(long number, int blockLeft) {
+        mNumber = number - 1;
+        mBlockLeft = blockLeft;
+        mMustStartBlock = true;
+    }
+
+    /**
+     * Carry on encoding a block that has already been decoded up to the end of its data, so the
+     * codec holds its last sample
+     *
+     * @param blockLeft number of bytes left in the block
+     */
+    public void resumeEncoding(int blockLeft) {
+        mBlockLeft = blockLeft;
+        mMustStartBlock = false;
+    }
+
+    /**
+     * Encode a sample following the last one encoded
+     *
+     * @param s   the sample
+     * @param out buffer to encode into, with at least MAX_ENCODED_BYTES remaining
+     */
+    public void encode(Sample s, ByteBuffer out) {
+        int latitude = (int) Math.round(s.latitude * DEGREES);
+        int longitude = (int) Math.round(s.longitude * DEGREES);
+        int depth = Sample.toFixed(s.depth, DEPTH_MM, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        int fishDepth = Sample.toFixed(s.fishDepth, FISH_DEPTH_CM, 0, 0xFFFF);
+        int temperature = Sample.toFixed(s.temperature, TEMPERATURE_HUNDREDTHS, Short.MIN_VALUE, Short.MAX_VALUE);
+        int strength = s.strength & 0xFF;
+        int fishStrength = s.fishStrength & 0xFF;
+        int battery = s.battery;
+        mNumber++;
+
+        if (mBlockLeft > 0 && !mMustStartBlock) {
+            long interval = s.time - mTime;
+            int flags = (strength != mStrength ? STRENGTH : 0)
+                    | (fishDepth != mFishDepth ? FISH_DEPTH : 0)
+                    | (fishStrength != mFishStrength ? FISH_STRENGTH : 0)
+                    | (temperature != mTemperature ? TEMPERATURE : 0)
+                    | (battery != mBattery ? BATTERY : 0);
+            mDelta.clear();
+            mDelta.put((byte) flags);
+            putVarLong(mDelta, interval - mInterval);
+            putVarLong(mDelta, (long) latitude - mLatitude);
+            putVarLong(mDelta, (long) longitude - mLongitude);
+            putVarLong(mDelta, (long) depth - mDepth);
+            if ((flags & STRENGTH) != 0)
+                putVarLong(mDelta, strength - mStrength);
+            if ((flags & FISH_DEPTH) != 0)
+                putVarLong(mDelta, fishDepth - mFishDepth);
+            if ((flags & FISH_STRENGTH) != 0)
+                putVarLong(mDelta, fishStrength - mFishStrength);
+            if ((flags & TEMPERATURE) != 0)
+                putVarLong(mDelta, temperature - mTemperature);
+            if ((flags & BATTERY) != 0)
+                putVarLong(mDelta, battery - mBattery);
+            mDelta.flip();
+            if (mDelta.remaining() <= mBlockLeft) {
+                mBlockLeft -= mDelta.remaining();
+                out.put(mDelta);
+                mInterval = interval;
+                set(s.time, latitude, longitude, depth, strength, fishDepth, fishStrength, temperature, battery);
+                return;
+            }
+        }
+
+        if (mBlockLeft > 0) {
+            // End the block, and skip the rest of it
+            out.put((byte) END);
+            for (int i = 1; i < mBlockLeft; i++)
+                out.put((byte) 0);
+        }
+
+        // Start a new block
+        out.putLong(mNumber);
+        out.putLong(s.time);
+        out.putInt(latitude);
+        out.putInt(longitude);
+        out.putInt(depth);
+        out.put((byte) strength);
+        out.putShort((short) fishDepth);
+        out.put((byte) fishStrength);
+        out.putShort((short) temperature);
+        out.put((byte) battery);
+        mBlockLeft = BLOCK_BYTES - KEYFRAME_BYTES;
+        mMustStartBlock = false;
+        mInterval = 0;
+        set(s.time, latitude, longitude, depth, strength, fishDepth, fishStrength, temperature, battery);
+    }
+
+    /**
+     * Decode the next sample in a block
+     *
+     * @param in         buffer holding the block, positioned at the next sample. Its limit is
+     *                   the end of the data.
+     * @param blockStart index in the buffer of the start of the block
+     * @return false if there are no more samples in the block, in which case in is not moved
+     */
+    public boolean decode(ByteBuffer in, int blockStart) {
+        int p = in.position();
+        if (p == blockStart) {
+            if (in.remaining() < KEYFRAME_BYTES)
+                return false;
+            mNumber = in.getLong();
+            mTime = in.getLong();
+            mLatitude = in.getInt();
+            mLongitude = in.getInt();
+            mDepth = in.getInt();
+            mStrength = in.get() & 0xFF;
+            mFishDepth = in.getShort() & 0xFFFF;
+            mFishStrength = in.get() & 0xFF;
+            mTemperature = in.getShort();
+            mBattery = in.get();
+            mInterval = 0;
+            return true;
+        }
+        if (p >= in.limit() || p - blockStart >= BLOCK_BYTES)
+            return false;
+        int flags = in.get(p) & 0xFF;
+        if (flags == END)
+            return false;
+        in.position(p + 1);
+        mNumber++;
+        mInterval += getVarLong(in);
+        mTime += mInterval;
+        mLatitude += getVarLong(in);
+        mLongitude += getVarLong(in);
+        mDepth += getVarLong(in);
+        if ((flags & STRENGTH) != 0)
+            mStrength += getVarLong(in);
+        if ((flags & FISH_DEPTH) != 0)
+            mFishDepth += getVarLong(in);
+        if ((flags & FISH_STRENGTH) != 0)
+            mFishStrength += getVarLong(in);
+        if ((flags & TEMPERATURE) != 0)
+            mTemperature += getVarLong(in);
+        if ((flags & BATTERY) != 0)
+            mBattery += getVarLong(in);
+        return true;
+    }
+
+    private void set(long time, int latitude, int longitude, int depth, int strength, int fishDepth,
+                     int fishStrength, int temperature, int battery) {
+        mTime = time;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mDepth = depth;
+        mStrength = strength;
+        mFishDepth = fishDepth;
+        mFishStrength = fishStrength;
+        mTemperature = temperature;
+        mBattery = battery;
+    }
+
+    /**
+     * @return the number of the last sample; the number of samples added to the log before it
+     */
+    public long number() {
+        return mNumber;
+    }
+
+    /**
+     * @return time of the last sample, epoch ms
+     */
+    public long time() {
+        return mTime;
+    }
+
+    /**
+     * @return latitude of the last sample, degrees
+     */
+    public double latitude() {
+        return mLatitude / DEGREES;
+    }
+
+    /**
+     * @return longitude of the last sample, degrees
+     */
+    public double longitude() {
+        return mLongitude / DEGREES;
+    }
+
+    /**
+     * @return depth of the last sample, m
+     */
+    public float depth() {
+        return mDepth / DEPTH_MM;
+    }
+
+    /**
+     * @return strength of the last sample, %
+     */
+    public int strength() {
+        return mStrength;
+    }
+
+    /**
+     * @return fish depth of the last sample, m
+     */
+    public float fishDepth() {
+        return mFishDepth / FISH_DEPTH_CM;
+    }
+
+    /**
+     * @return fish strength of the last sample, %
+     */
+    public int fishStrength() {
+        return mFishStrength;
+    }
+
+    /**
+     * @return temperature of the last sample, C
+     */
+    public float temperature() {
+        return mTemperature / TEMPERATURE_HUNDREDTHS;
+    }
+
+    /**
+     * @return battery level of the last sample, %
+     */
+    public byte battery() {
+        return (byte) mBattery;
+    }
+
+    // Write a zig-zag varint, so small negative numbers are as short as small positive ones
+    private static void putVarLong(ByteBuffer out, long v) {
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7FL) != 0) {
+            out.put((byte) ((z & 0x7F) | 0x80));
+            z >>>= 7;
+        }
+        out.put((byte) z);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long z = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            z |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                break;
+        }
+        return (z >>> 1) ^ -(z & 1);
+    }
+}
@@ -18,18 +18,94 @@
  */
 package com.cdot.ping.samplers;
 
+import com.cdot.utils.ByteFIFO;
+import com.cdot.utils.CommitPolicy;
 import com.cdot.utils.ConcurrentFileByteFIFO;
+import com.cdot.utils.ConcurrentFileByteFIFO.Engine;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
- * A circular sample log using a CircularByteLog to store in a disk file.
+ * A circular sample log, stored on disk using a ByteFIFO. By default this is a
+ * ConcurrentFileByteFIFO, but any ByteFIFO can be used, such as a SegmentedFileByteFIFO.
+ * <p>
+ * Samples can be found by time using a sparse index that holds the time of every
+ * INDEX_INTERVAL'th sample. The index is built the first time it is needed, and kept up to date
+ * as samples are added. It assumes samples are added in time order.
+ * <p>
+ * A log can instead be compressed using a SampleBlockCodec, so samples vary in size and the same
+ * number of bytes holds several times as many samples. Logical positions are still byte
+ * positions, but a sample can only be read by decoding its block from the start, and the samples
+ * in a block that has been partly discarded can't be read at all. A compressed log doesn't need
+ * the time index, as the block keyframes can be binary searched. Capacities of a compressed log
+ * are given in samples of Sample#BYTES, so it holds more samples than its capacity.
  */
-public class SampleCache extends ConcurrentFileByteFIFO {
+public class SampleCache {
+    // One in every INDEX_INTERVAL samples is indexed
+    static final int INDEX_INTERVAL = 256;
+
+    /**
+     * A run of samples in the log, given as logical byte positions. See
+     * ByteFIFO#getStartPosition
+     */
+    public static class Range {
+        public final long start; // position of the first sample
+        public final long end;   // position after the last sample
+        private final int mSamples;
+
+        Range(long start, long end, int samples) {
+            this.start = start;
+            this.end = end;
+            mSamples = samples;
+        }
+
+        /**
+         * @return the number of samples in the range
+         */
+        public int getSamples() {
+            return mSamples;
+        }
+    }
+
+    // Record formats of the log. See ByteFIFO#getRecordFormat
+    static final int FORMAT_V1 = 0; // Sample.V1_BYTES
+    static final int FORMAT_EXTENDED = 1; // Sample.BYTES
+    static final int FORMAT_COMPRESSED = 2; // SampleBlockCodec
+    // Number of samples read and added at a time by #copyTo
+    private static final int COPY_CHUNK_SAMPLES = 64;
+
+    // Where the samples are stored
+    private final ByteFIFO mLog;
+    // Size of a sample in the log, depending on its record format. Sample.BYTES if compressed.
+    private final int mSampleBytes;
+    // Set if the log is compressed
+    private final boolean mCompressed;
+    // Set if the log has never been added to, and its format has never been set. The format is
+    // set by the first add.
+    private boolean mMustSetFormat = false;
+
+    // Compresses samples as they are added. null until the first add.
+    private SampleBlockCodec mEncoder = null;
+    private ByteBuffer mEncoded;
+    // Decodes blocks to find samples in a compressed log
+    private final SampleBlockCodec mDecoder;
+    private ByteBuffer mBlock;
+    // Sample number of the sample found by #locate
+    private long mLocated;
+
+    // Sparse time index, a ring of the times of samples number (mIndexFirst + i) * INDEX_INTERVAL,
+    // where samples are numbered by logical position. null until first needed.
+    private long[] mIndex = null;
+    private int mIndexHead;
+    private int mIndexSize;
+    private long mIndexFirst;
+    // Buffer for reading the samples between index entries
+    private byte[] mIndexScan;
 
     /**
      * Construct a new sample log. The log file may not pre-exist.
@@ -39,7 +115,20 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @throws IOException if the file already exists, or there's problem writing it
      */
     public SampleCache(File file, int maxSize) throws IOException {
-        super(file, maxSize * Sample.BYTES);
+        this(new ConcurrentFileByteFIFO(file, (long) maxSize * Sample.BYTES));
+    }
+
+    /**
+     * Construct a new sample log using a specific storage engine. The log file may not pre-exist.
+     *
+     * @param file    file to store the log in
+     * @param maxSize initial maximum size of the log, in samples. Can be changed using #setCapacitySamples
+     * @param engine  storage engine to use
+     * @param policy  when to force changes to disk
+     * @throws IOException if the file already exists, or there's problem writing it
+     */
+    public SampleCache(File file, int maxSize, Engine engine, CommitPolicy policy) throws IOException {
+        this(new ConcurrentFileByteFIFO(file, (long) maxSize * Sample.BYTES, engine, policy));
     }
 
     /**
@@ -50,7 +139,89 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @throws IOException if the log doesn't exist, or there's a problem reading it
      */
     public SampleCache(File file, boolean readOnly) throws IOException {
-        super(file, readOnly);
+        this(new ConcurrentFileByteFIFO(file, readOnly));
+    }
+
+    /**
+     * Open an existing sample log using a specific storage engine
+     *
+     * @param file     file containing the log
+     * @param readOnly if true, file will be opened for read, otherwise for read-write
+     * @param engine   storage engine to use
+     * @param policy   when to force changes to disk
+     * @throws IOException if the log doesn't exist, or there's a problem reading it
+     */
+    public SampleCache(File file, boolean readOnly, Engine engine, CommitPolicy policy) throws IOException {
+        this(new ConcurrentFileByteFIFO(file, readOnly, engine, policy));
+    }
+
+    /**
+     * Keep the sample log in an already open ByteFIFO. The log takes ownership of it, and
+     * closing the log closes it. Samples are stored in the format recorded in the ByteFIFO, so a
+     * log written by an older version, that only has the fields of Sample#V1_BYTES, can still be
+     * read and added to. A log that has never been added to gets the current format.
+     *
+     * @param log where to store the samples
+     * @throws IOException if the log is in a format this version doesn't know
+     */
+    public SampleCache(ByteFIFO log) throws IOException {
+        this(log, false);
+    }
+
+    /**
+     * Keep the sample log in an already open ByteFIFO, as #SampleCache(ByteFIFO), choosing
+     * whether a log that has never been added to is compressed. Logs that have already been
+     * added to keep their format.
+     *
+     * @param log        where to store the samples
+     * @param compressed if true, and the log has never been added to, compress it
+     * @throws IOException if the log is in a format this version doesn't know
+     */
+    public SampleCache(ByteFIFO log, boolean compressed) throws IOException {
+        mLog = log;
+        int format = log.getRecordFormat();
+        mSampleBytes = format == FORMAT_V1 && log.getEndPosition() > 0 ? Sample.V1_BYTES : Sample.BYTES;
+        if (format == FORMAT_V1 && log.getEndPosition() == 0) {
+            mMustSetFormat = true;
+            mCompressed = compressed;
+        } else if (format == FORMAT_V1 || format == FORMAT_EXTENDED)
+            mCompressed = false;
+        else if (format == FORMAT_COMPRESSED)
+            mCompressed = true;
+        else
+            throw new IOException("Unsupported sample format " + format);
+        mDecoder = mCompressed ? new SampleBlockCodec() : null;
+        mLog.setRecordBytes(mCompressed ? 1 : mSampleBytes);
+    }
+
+    /**
+     * Determine if the log is compressed
+     *
+     * @return true if the log is compressed using a SampleBlockCodec
+     */
+    public boolean isCompressed() {
+        return mCompressed;
+    }
+
+    /**
+     * Get the size of each sample in the log. This is Sample#BYTES, unless the log was written
+     * by an older version, when it is Sample#V1_BYTES. Samples in a compressed log vary in size,
+     * and this is Sample#BYTES, the size used to give its capacity in samples.
+     *
+     * @return the number of bytes per sample
+     */
+    public int getSampleBytes() {
+        return mSampleBytes;
+    }
+
+    /**
+     * Determine if the samples in the log have all their fields, or just those in the
+     * original format. See #getSampleBytes
+     *
+     * @return true if the samples have all their fields
+     */
+    public boolean isExtended() {
+        return mSampleBytes == Sample.BYTES;
     }
 
     /**
@@ -59,7 +230,7 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @return the max size in samples; the log should never be bigger than this
      */
     public int getCapacitySamples() {
-        return getCapacityBytes() / Sample.BYTES;
+        return (int) (mLog.getCapacityBytes() / mSampleBytes);
     }
 
     /**
@@ -70,16 +241,125 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @throws IOException if there's a problem with the log file
      */
     public void setCapacitySamples(int nsamples) throws IOException {
-        setCapacityBytes(nsamples * Sample.BYTES);
+        mLog.setCapacityBytes((long) nsamples * mSampleBytes);
     }
 
     /**
-     * Get the used size of the log
+     * Get the used size of the log. For a compressed log this is the number of samples that can
+     * be read, which only means decoding the newest block.
      *
      * @return the used in samples
+     * @throws IOException if there's a problem reading a compressed log
+     */
+    public synchronized int getUsedSamples() throws IOException {
+        if (!mCompressed)
+            return (int) (mLog.getUsedBytes() / mSampleBytes);
+        long first = firstBlock();
+        if (first >= getEndPosition())
+            return 0;
+        long firstNumber = readKeyframe(first);
+        locate(Long.MAX_VALUE, false);
+        return (int) (mLocated - firstNumber);
+    }
+
+    /**
+     * Get how full the log is. Unlike #getUsedSamples, this is the same for a compressed log.
+     *
+     * @return the fraction of the capacity used, 0..1
+     */
+    public float getUsedFraction() {
+        return (float) mLog.getUsedBytes() / mLog.getCapacityBytes();
+    }
+
+    /**
+     * Get the logical position of the oldest sample. See ByteFIFO#getStartPosition
+     *
+     * @return the byte position of the oldest sample
+     */
+    public long getStartPosition() {
+        return mLog.getStartPosition();
+    }
+
+    /**
+     * Get the logical position just after the newest sample. See ByteFIFO#getEndPosition
+     *
+     * @return the byte position the next sample added will have
+     */
+    public long getEndPosition() {
+        return mLog.getEndPosition();
+    }
+
+    /**
+     * Change the commit policy
+     *
+     * @param policy the new policy
+     */
+    public void setCommitPolicy(CommitPolicy policy) {
+        mLog.setCommitPolicy(policy);
+    }
+
+    /**
+     * Commit any uncommitted changes if the CommitPolicy says they are due.
+     * See ByteFIFO#commitIfDue
+     *
+     * @throws IOException if there's a problem writing the log
+     */
+    public void commitIfDue() throws IOException {
+        mLog.commitIfDue();
+    }
+
+    /**
+     * Commit all changes made so far to disk, whatever the CommitPolicy
+     *
+     * @throws IOException if there's a problem writing the log
+     */
+    public void flush() throws IOException {
+        mLog.flush();
+    }
+
+    /**
+     * Close the log, flushing and freeing any resources. This will make the log unusable.
+     *
+     * @throws IOException if there's a problem writing the log
+     */
+    public void close() throws IOException {
+        mLog.close();
+    }
+
+    /**
+     * Adds len bytes of serialised samples at pos from buf to the log. Cannot be used in
+     * readOnly mode.
+     *
+     * @param buf buffer to write from
+     * @param pos index in buf
+     * @param len length to write, a whole number of samples
+     * @throws IOException if there's a problem with the log file
+     * @throws IllegalStateException if the log is compressed
+     */
+    public synchronized void add(byte[] buf, int pos, int len) throws IOException {
+        if (mCompressed)
+            throw new IllegalStateException("Can't add serialised samples to a compressed log");
+        setFormat();
+        mLog.add(buf, pos, len);
+        indexAdded(buf, pos, len);
+    }
+
+    // Set the record format of a log that has never been added to
+    private void setFormat() throws IOException {
+        if (mMustSetFormat) {
+            mLog.setRecordFormat(mCompressed ? FORMAT_COMPRESSED : FORMAT_EXTENDED);
+            mMustSetFormat = false;
+        }
+    }
+
+    /**
+     * Adds a buffer of serialised samples to the log. Cannot be used in readOnly mode.
+     *
+     * @param buf buffer to write from, a whole number of samples
+     * @throws IOException if there's a problem with the log file
      */
-    public int getUsedSamples() {
-        return getUsedBytes() / Sample.BYTES;
+    public synchronized void add(byte[] buf) throws IOException {
+        add(buf, 0, buf.length);
     }
 
     /**
@@ -88,7 +368,10 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @throws IOException if there's a problem with the log file
      */
     public void add(Sample sample) throws IOException {
-        add(sample.toByteArray());
+        if (mCompressed)
+            add(new Sample[]{sample}, 0, 1);
+        else
+            add(sample.toByteArray(mSampleBytes));
     }
 
     /**
@@ -97,57 +380,439 @@ public class SampleCache extends ConcurrentFileByteFIFO {
      * @throws IOException if there's a problem with the log file
      */
     public void add(Sample[] samples) throws IOException {
-        for (Sample s : samples)
-            add(s);
+        add(samples, 0, samples.length);
+    }
+
+    /**
+     * Adds a run of samples to the log as a single write, so the log is only locked and the
+     * commit policy only consulted once. Cannot be used in readOnly mode
+     *
+     * @param samples array of samples
+     * @param pos     index of the first sample to add
+     * @param len     number of samples to add
+     * @throws IOException if there's a problem with the log file
+     */
+    public void add(Sample[] samples, int pos, int len) throws IOException {
+        if (mCompressed) {
+            addCompressed(samples, pos, len);
+            return;
+        }
+        byte[] buf = new byte[len * mSampleBytes];
+        for (int i = 0; i < len; i++)
+            System.arraycopy(samples[pos + i].toByteArray(mSampleBytes), 0, buf, i * mSampleBytes, mSampleBytes);
+        add(buf);
+    }
+
+    /**
+     * Add all the samples in this log that can be read to another log, oldest first, in the
+     * other log's format. Used to convert a log to a different format.
+     *
+     * @param to the log to add the samples to
+     * @return the number of samples copied
+     * @throws IOException if there's a problem reading this log or writing the other
+     */
+    public int copyTo(SampleCache to) throws IOException {
+        SampleCursor cursor = new SampleCursor(this, COPY_CHUNK_SAMPLES);
+        cursor.seek(getRange());
+        Sample[] batch = new Sample[COPY_CHUNK_SAMPLES];
+        int n = 0, copied = 0;
+        while (cursor.next()) {
+            batch[n++] = cursor.getSample();
+            if (n == batch.length) {
+                to.add(batch, 0, n);
+                copied += n;
+                n = 0;
+            }
+        }
+        if (n > 0)
+            to.add(batch, 0, n);
+        return copied + n;
+    }
+
+    // Compress samples and add them to the log. Large runs are added in several writes.
+    private synchronized void addCompressed(Sample[] samples, int pos, int len) throws IOException {
+        setFormat();
+        if (mEncoder == null)
+            startEncoder();
+        try {
+            mEncoded.clear();
+            for (int i = 0; i < len; i++) {
+                if (mEncoded.remaining() < SampleBlockCodec.MAX_ENCODED_BYTES) {
+                    mLog.add(mEncoded.array(), 0, mEncoded.position());
+                    mEncoded.clear();
+                }
+                mEncoder.encode(samples[pos + i], mEncoded);
+            }
+            mLog.add(mEncoded.array(), 0, mEncoded.position());
+        } catch (IOException | RuntimeException e) {
+            // The encoder may be ahead of the log; start again from what's in the log
+            mEncoder = null;
+            throw e;
+        }
+    }
+
+    // Set up the encoder to carry on from the end of the log
+    private void startEncoder() throws IOException {
+        SampleBlockCodec encoder = new SampleBlockCodec();
+        long end = getEndPosition();
+        long block = end - end % SampleBlockCodec.BLOCK_BYTES;
+        int blockLeft = (int) (block + SampleBlockCodec.BLOCK_BYTES - end) % SampleBlockCodec.BLOCK_BYTES;
+        if (blockLeft > 0 && block >= firstBlock()) {
+            // Carry on the newest block
+            decodeBlock(block, encoder);
+            encoder.resumeEncoding(blockLeft);
+        } else if (block - SampleBlockCodec.BLOCK_BYTES >= firstBlock()) {
+            // The newest block is full; number samples on from it
+            decodeBlock(block - SampleBlockCodec.BLOCK_BYTES, encoder);
+            encoder.startEncoding(encoder.number() + 1, 0);
+        } else
+            // Nothing that can be read, so numbering can start again. Skip what's left of the block.
+            encoder.startEncoding(0, blockLeft);
+        mEncoded = ByteBuffer.allocate(4 * SampleBlockCodec.MAX_ENCODED_BYTES);
+        mEncoder = encoder;
+    }
+
+    // Position of the first block in a compressed log that hasn't been even partly discarded
+    private long firstBlock() {
+        long start = getStartPosition();
+        return (start + SampleBlockCodec.BLOCK_BYTES - 1) / SampleBlockCodec.BLOCK_BYTES * SampleBlockCodec.BLOCK_BYTES;
+    }
+
+    // Read the block at a logical position into mBlock, ready to decode
+    private void readBlock(long block) throws IOException {
+        if (mBlock == null)
+            mBlock = ByteBuffer.allocate(SampleBlockCodec.BLOCK_BYTES);
+        mBlock.clear();
+        mLog.snapshot(block, mBlock);
+        mBlock.flip();
+    }
+
+    // Decode all the samples in a block, leaving the codec holding the last of them
+    private void decodeBlock(long block, SampleBlockCodec codec) throws IOException {
+        readBlock(block);
+        while (codec.decode(mBlock, 0))
+            ;
+    }
+
+    // Read the sample number from the keyframe of a block
+    private long readKeyframe(long block) throws IOException {
+        readBlock(block);
+        return mBlock.getLong(0);
     }
 
     /**
      * Read (and remove) the oldest samples from the buffer. Cannot be used in readOnly mode.
+     * <p>
+     * A compressed log can only discard whole blocks, as a sample can't be decoded without the
+     * start of its block. The block holding the last sample removed is discarded whole, so any
+     * newer samples in it are lost.
      *
      * @param len the number of samples to read
      * @return the samples removed, oldest first
      * @throws IOException if there's a problem with the log file, or a buffer underflow
      */
     public Sample[] removeSamples(int len) throws IOException {
-        byte[] buff = new byte[len * Sample.BYTES];
-        remove(buff, 0, buff.length);
+        if (mCompressed)
+            return removeCompressed(len);
+        byte[] buff = new byte[len * mSampleBytes];
+        mLog.remove(buff, 0, buff.length);
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buff));
         Sample[] samples = new Sample[len];
         for (int i = 0; i < len; i++)
-            samples[i] = Sample.fromDataStream(dis);
+            samples[i] = Sample.fromDataStream(dis, mSampleBytes);
         return samples;
     }
 
     /**
      * Read (and remove) the oldest sample from the buffer. Cannot be used in readOnly mode.
+     * In a compressed log the rest of its block is discarded with it, see #removeSamples.
      *
      * @return the sample removed
      * @throws IOException if there's a problem with the log file
      */
     public Sample removeSample() throws IOException {
-        byte[] buff = new byte[Sample.BYTES];
-        if (remove(buff, 0, Sample.BYTES) < Sample.BYTES)
+        if (mCompressed)
+            return removeCompressed(1)[0];
+        byte[] buff = new byte[mSampleBytes];
+        if (mLog.remove(buff, 0, mSampleBytes) < mSampleBytes)
             throw new BufferUnderflowException();
-        return Sample.fromByteArray(buff, 0);
+        return Sample.fromByteArray(buff, 0, mSampleBytes);
+    }
+
+    // Read the oldest samples in a compressed log, then discard the blocks they are in
+    private synchronized Sample[] removeCompressed(int len) throws IOException {
+        Sample[] samples = new Sample[len];
+        if (len == 0)
+            return samples;
+        SampleCursor cursor = new SampleCursor(this, len);
+        cursor.seek(getRange());
+        for (int i = 0; i < len; i++) {
+            if (!cursor.next())
+                throw new BufferUnderflowException();
+            samples[i] = cursor.getSample();
+        }
+        long last = cursor.position();
+        long end = getEndPosition();
+        long discard = Math.min(last - last % SampleBlockCodec.BLOCK_BYTES + SampleBlockCodec.BLOCK_BYTES, end);
+        byte[] buf = new byte[SampleBlockCodec.BLOCK_BYTES];
+        long start;
+        while ((start = getStartPosition()) < discard)
+            mLog.remove(buf, 0, (int) Math.min(buf.length, discard - start));
+        if (discard == end)
+            // The block being added to has gone, so the next add starts a new one
+            mEncoder = null;
+        return samples;
     }
 
     /**
-     * Snapshot the current state of the log. This is the only way to retrieve buffer contents in
-     * readonly mode.
+     * Non-destructive read of the newest samples in the log. This is the only way to retrieve
+     * buffer contents in readonly mode.
      *
-     * @param buf buffer to fill with samples
+     * @param buf buffer to fill with samples, oldest first
      * @param pos position in buf to start writing
      * @param len maximum number of samples to return
      * @return the number of samples read
      * @throws IOException if there's a problem accessing the underlying file
      */
     public int snapshot(Sample[] buf, int pos, int len) throws IOException {
-        byte[] bytes = new byte[len * Sample.BYTES];
-        int r = super.snapshot(bytes, 0, bytes.length);
-        int nSamples = r / Sample.BYTES;
+        Range r = getNewest(len);
+        return snapshot(r.start, buf, pos, len);
+    }
+
+    /**
+     * Non-destructive read of samples from a logical position. Used to read the log in chunks.
+     * See ByteFIFO#getStartPosition
+     *
+     * @param from logical byte position of the first sample to read
+     * @param buf  buffer to fill with samples
+     * @param pos  position in buf to start writing
+     * @param len  maximum number of samples to return
+     * @return the number of samples read, 0 if from is at the end of the log
+     * @throws BufferUnderflowException if the sample at from has already been discarded
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    public int snapshot(long from, Sample[] buf, int pos, int len) throws IOException {
+        if (mCompressed) {
+            if (from < getStartPosition())
+                throw new BufferUnderflowException();
+            SampleCursor cursor = new SampleCursor(this, len);
+            cursor.seek(from, getEndPosition());
+            int nSamples = 0;
+            while (nSamples < len && cursor.next())
+                buf[pos + nSamples++] = cursor.getSample();
+            return nSamples;
+        }
+        byte[] bytes = new byte[len * mSampleBytes];
+        int nSamples = mLog.snapshot(from, bytes, 0, bytes.length) / mSampleBytes;
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
         for (int i = 0; i < nSamples; i++)
-            buf[i] = Sample.fromDataStream(dis);
-        return r;
+            buf[pos + i] = Sample.fromDataStream(dis, mSampleBytes);
+        return nSamples;
+    }
+
+    /**
+     * Non-destructive read of serialised samples from a logical position into a ByteBuffer.
+     * See ByteFIFO#snapshot(long, ByteBuffer). Samples in a compressed log are read a block at
+     * a time, and decoded using a SampleBlockCodec.
+     *
+     * @param from logical byte position of the first sample to read
+     * @param dst  buffer to fill, from its position up to its limit
+     * @return the number of bytes read, 0 if from is at the end of the log
+     * @throws BufferUnderflowException if the sample at from has already been discarded
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    public int snapshot(long from, ByteBuffer dst) throws IOException {
+        return mLog.snapshot(from, dst);
+    }
+
+    /**
+     * Find the samples in a time range, using the time index. The cost is proportional to the
+     * log of the number of samples in the log, not the number of samples.
+     *
+     * @param fromMillis earliest time of interest, epoch ms
+     * @param toMillis   latest time of interest (inclusive), epoch ms
+     * @return the range of samples with times from fromMillis to toMillis. Read them using
+     * #snapshot(long, Sample[], int, int)
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    public synchronized Range query(long fromMillis, long toMillis) throws IOException {
+        if (mCompressed) {
+            long from = locate(fromMillis, true);
+            long fromNumber = mLocated;
+            long to = toMillis == Long.MAX_VALUE ? getEndPosition() : locate(toMillis + 1, true);
+            if (toMillis == Long.MAX_VALUE)
+                locate(Long.MAX_VALUE, false);
+            return new Range(from, to, (int) (mLocated - fromNumber));
+        }
+        long first = getStartPosition() / mSampleBytes;
+        long last = getEndPosition() / mSampleBytes;
+        if (mIndex == null)
+            buildIndex(first, last);
+        trimIndex(first);
+        long from = findSample(fromMillis, first, last);
+        long to = toMillis == Long.MAX_VALUE ? last : findSample(toMillis + 1, from, last);
+        return new Range(from * mSampleBytes, to * mSampleBytes, (int) (to - from));
+    }
+
+    /**
+     * Get the range of all the samples in the log that can be read
+     *
+     * @return the range of samples
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    public synchronized Range getRange() throws IOException {
+        if (!mCompressed)
+            return new Range(getStartPosition(), getEndPosition(), getUsedSamples());
+        long first = Math.min(firstBlock(), getEndPosition());
+        return new Range(first, getEndPosition(), getUsedSamples());
+    }
+
+    /**
+     * Get the range of the newest samples in the log
+     *
+     * @param nSamples the number of samples wanted
+     * @return the range of the newest nSamples samples, or all the samples if there are fewer
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    public synchronized Range getNewest(int nSamples) throws IOException {
+        long end = getEndPosition();
+        if (!mCompressed) {
+            long from = Math.max(getStartPosition(), end - (long) nSamples * mSampleBytes);
+            return new Range(from, end, (int) ((end - from) / mSampleBytes));
+        }
+        locate(Long.MAX_VALUE, false);
+        long from = locate(mLocated - nSamples, false);
+        long fromNumber = mLocated;
+        locate(Long.MAX_VALUE, false);
+        return new Range(from, end, (int) (mLocated - fromNumber));
+    }
+
+    // Find the first sample in a compressed log with a time (if byTime) or sample number >= key,
+    // by binary searching the block keyframes and decoding the block before. Sets mLocated to
+    // the number of the sample found, or the number the next sample added will get if there
+    // isn't one.
+    private long locate(long key, boolean byTime) throws IOException {
+        long end = getEndPosition();
+        long lo = firstBlock() / SampleBlockCodec.BLOCK_BYTES;
+        long hi = (end + SampleBlockCodec.BLOCK_BYTES - 1) / SampleBlockCodec.BLOCK_BYTES;
+        mLocated = 0;
+        if (lo >= hi)
+            return end;
+        // Find the first block with a keyframe at or after key
+        long first = lo, last = hi;
+        while (first < last) {
+            long mid = (first + last) >>> 1;
+            readBlock(mid * SampleBlockCodec.BLOCK_BYTES);
+            if (mBlock.getLong(byTime ? Long.BYTES : 0) < key)
+                first = mid + 1;
+            else
+                last = mid;
+        }
+        // The sample is in the block before that, or is that keyframe
+        if (first > lo) {
+            long block = (first - 1) * SampleBlockCodec.BLOCK_BYTES;
+            readBlock(block);
+            int p = 0;
+            while (mDecoder.decode(mBlock, 0)) {
+                if ((byTime ? mDecoder.time() : mDecoder.number()) >= key) {
+                    mLocated = mDecoder.number();
+                    return block + p;
+                }
+                p = mBlock.position();
+            }
+            mLocated = mDecoder.number() + 1;
+        }
+        if (first == hi)
+            return end;
+        long block = first * SampleBlockCodec.BLOCK_BYTES;
+        mLocated = readKeyframe(block);
+        return block;
+    }
+
+    // Find the number of the first sample in [first, last) with a time >= millis, or last if
+    // there isn't one
+    private long findSample(long millis, long first, long last) throws IOException {
+        // Find the first index entry at or after millis
+        int lo = 0, hi = mIndexSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getIndex(mid) < millis)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        // The sample is between that entry and the one before, so scan the samples in between
+        long from = Math.max(first, lo == 0 ? first : (mIndexFirst + lo - 1) * INDEX_INTERVAL);
+        long to = Math.min(last, lo == mIndexSize ? last : (mIndexFirst + lo) * INDEX_INTERVAL);
+        for (long n = from; n < to; ) {
+            int len = (int) Math.min(to - n, mIndexScan.length / mSampleBytes);
+            int r = mLog.snapshot(n * mSampleBytes, mIndexScan, 0, len * mSampleBytes) / mSampleBytes;
+            if (r == 0)
+                break;
+            for (int i = 0; i < r; i++, n++)
+                if (getTime(mIndexScan, i * mSampleBytes) >= millis)
+                    return n;
+        }
+        return to;
+    }
+
+    // Build the index by reading the time of every INDEX_INTERVAL'th sample in [first, last)
+    private void buildIndex(long first, long last) throws IOException {
+        mIndex = new long[16];
+        mIndexHead = 0;
+        mIndexSize = 0;
+        mIndexScan = new byte[INDEX_INTERVAL * mSampleBytes];
+        byte[] time = new byte[Long.BYTES];
+        for (long n = (first + INDEX_INTERVAL - 1) / INDEX_INTERVAL * INDEX_INTERVAL; n < last; n += INDEX_INTERVAL) {
+            mLog.snapshot(n * mSampleBytes, time, 0, time.length);
+            addIndex(n, getTime(time, 0));
+        }
+    }
+
+    // Index any samples that were just added from buf
+    private void indexAdded(byte[] buf, int pos, int len) {
+        if (mIndex == null)
+            return;
+        long end = getEndPosition();
+        long start = end - len;
+        long n = (start / mSampleBytes + INDEX_INTERVAL - 1) / INDEX_INTERVAL * INDEX_INTERVAL;
+        for (; n * mSampleBytes + Long.BYTES <= end; n += INDEX_INTERVAL)
+            addIndex(n, getTime(buf, pos + (int) (n * mSampleBytes - start)));
+        // Don't hang on to entries for samples that have been discarded
+        trimIndex(getStartPosition() / mSampleBytes);
+    }
+
+    private void addIndex(long n, long time) {
+        if (mIndexSize == 0)
+            mIndexFirst = n / INDEX_INTERVAL;
+        if (mIndexSize == mIndex.length) {
+            long[] bigger = new long[mIndex.length * 2];
+            for (int i = 0; i < mIndexSize; i++)
+                bigger[i] = getIndex(i);
+            mIndex = bigger;
+            mIndexHead = 0;
+        }
+        mIndex[(mIndexHead + mIndexSize++) % mIndex.length] = time;
+    }
+
+    // Drop index entries for samples before sample number first
+    private void trimIndex(long first) {
+        while (mIndexSize > 0 && mIndexFirst * INDEX_INTERVAL < first) {
+            mIndexHead = (mIndexHead + 1) % mIndex.length;
+            mIndexSize--;
+            mIndexFirst++;
+        }
+    }
+
+    private long getIndex(int i) {
+        return mIndex[(mIndexHead + i) % mIndex.length];
+    }
+
+    // Get the time from a serialised sample
+    private static long getTime(byte[] buf, int offset) {
+        long t = 0;
+        for (int i = 0; i < Long.BYTES; i++)
+            t = (t << 8) | (buf[offset + i] & 0xFF);
+        return t;
     }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import com.cdot.location.GPXWriter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable cursor for reading samples from a SampleCache without creating a Sample for each.
+ * Samples are read a chunk at a time into a direct ByteBuffer, and the getters decode fields
+ * straight out of that buffer, so a cache of any size can be read in constant memory.
+ * <pre>
+ * SampleCursor c = new SampleCursor(cache, 1024);
+ * c.seek(range);
+ * while (c.next())
+ *     draw(c.time(), c.depth());
+ * </pre>
+ * A cursor is not thread safe, but the cache can be added to while it is being read. If samples
+ * are discarded from the cache before the cursor gets to them, the cursor skips to the oldest
+ * sample still in the cache.
+ * <p>
+ * If the cache is compressed, whole blocks are read into the buffer and each sample is decoded
+ * by next(), using a SampleBlockCodec.
+ */
+public class SampleCursor {
+    // Offsets of fields in a serialised sample. See Sample#toByteArray
+    private static final int TIME = 0;
+    private static final int LATITUDE = TIME + Long.BYTES;
+    private static final int LONGITUDE = LATITUDE + Double.BYTES;
+    private static final int DEPTH = LONGITUDE + Double.BYTES;
+    private static final int STRENGTH = DEPTH + Float.BYTES;
+    // Only in the extended format
+    private static final int FISH_DEPTH = STRENGTH + 1;
+    private static final int FISH_STRENGTH = FISH_DEPTH + Short.BYTES;
+    private static final int TEMPERATURE = FISH_STRENGTH + 1;
+    private static final int BATTERY = TEMPERATURE + Short.BYTES;
+
+    private final SampleCache mCache;
+    // Size of each sample, see SampleCache#getSampleBytes
+    private final int mSampleBytes;
+    private final boolean mExtended;
+    // Decodes samples if the cache is compressed, otherwise null
+    private final SampleBlockCodec mCodec;
+    private final ByteBuffer mBuffer;
+    // Logical position of the first sample in mBuffer
+    private long mBufferPosition;
+    // Logical position of the next sample to read into mBuffer, and of the end of the samples
+    private long mNext;
+    private long mEnd;
+    // Offset of the current sample in mBuffer, or -1 before the first call to next()
+    private int mOffset;
+    // If compressed, logical position of the first sample to read, and offset in mBuffer of
+    // the block being decoded
+    private long mFrom;
+    private int mBlockOffset;
+
+    /**
+     * @param cache        the cache to read
+     * @param chunkSamples the number of samples to read from the cache at a time
+     */
+    public SampleCursor(SampleCache cache, int chunkSamples) {
+        mCache = cache;
+        mSampleBytes = cache.getSampleBytes();
+        mExtended = cache.isExtended();
+        int bytes = chunkSamples * mSampleBytes;
+        if (cache.isCompressed()) {
+            mCodec = new SampleBlockCodec();
+            int blocks = (bytes + SampleBlockCodec.BLOCK_BYTES - 1) / SampleBlockCodec.BLOCK_BYTES;
+            bytes = blocks * SampleBlockCodec.BLOCK_BYTES;
+        } else
+            mCodec = null;
+        mBuffer = ByteBuffer.allocateDirect(bytes);
+        mBuffer.limit(0);
+        mOffset = -1;
+    }
+
+    /**
+     * Position the cursor before the first sample in a range. See SampleCache#query
+     *
+     * @param range the samples to read
+     */
+    public void seek(SampleCache.Range range) {
+        seek(range.start, range.end);
+    }
+
+    /**
+     * Position the cursor before the sample at a logical position. See
+     * ByteFIFO#getStartPosition
+     *
+     * @param from logical position of the first sample to read
+     * @param end  logical position after the last sample to read
+     */
+    public void seek(long from, long end) {
+        mFrom = from;
+        // A compressed sample can only be decoded from the start of its block
+        mNext = mCodec == null ? from : from - from % SampleBlockCodec.BLOCK_BYTES;
+        mEnd = end;
+        mBuffer.limit(0);
+        mOffset = -1;
+    }
+
+    /**
+     * Move to the next sample
+     *
+     * @return false if there are no more samples in the range
+     * @throws IOException if there's a problem reading the cache
+     */
+    public boolean next() throws IOException {
+        if (mCodec != null)
+            return nextCompressed();
+        if (mOffset >= 0)
+            mOffset += mSampleBytes;
+        if (mOffset >= 0 && mOffset < mBuffer.limit())
+            return true;
+        while (mNext < mEnd) {
+            mBuffer.clear();
+            mBuffer.limit((int) Math.min(mBuffer.capacity(), mEnd - mNext));
+            int n;
+            try {
+                n = mCache.snapshot(mNext, mBuffer);
+            } catch (BufferUnderflowException bue) {
+                // The cache is full and samples were discarded while we were reading
+                mNext = mCache.getStartPosition();
+                continue;
+            }
+            n -= n % mSampleBytes;
+            mBuffer.limit(n);
+            if (n == 0)
+                break;
+            mBufferPosition = mNext;
+            mNext += n;
+            mOffset = 0;
+            return true;
+        }
+        mBuffer.limit(0);
+        mOffset = -1;
+        mNext = mEnd;
+        return false;
+    }
+
+    // Decode the next sample from a compressed cache
+    private boolean nextCompressed() throws IOException {
+        while (true) {
+            if (mOffset >= 0) {
+                int p = mBuffer.position();
+                if (mCodec.decode(mBuffer, mBlockOffset)) {
+                    long position = mBufferPosition + p;
+                    if (position >= mEnd)
+                        break;
+                    mOffset = p;
+                    if (position >= mFrom)
+                        return true;
+                    continue;
+                }
+                // Move to the next block in the buffer
+                mBlockOffset += SampleBlockCodec.BLOCK_BYTES;
+                if (mBlockOffset < mBuffer.limit()) {
+                    mBuffer.position(mBlockOffset);
+                    continue;
+                }
+                mNext = mBufferPosition + mBlockOffset;
+            }
+            if (mNext >= mEnd)
+                break;
+            mBuffer.clear();
+            int n;
+            try {
+                n = mCache.snapshot(mNext, mBuffer);
+            } catch (BufferUnderflowException bue) {
+                // The block was discarded while we were reading; skip to the first whole block
+                long start = mCache.getStartPosition() + SampleBlockCodec.BLOCK_BYTES - 1;
+                mNext = start - start % SampleBlockCodec.BLOCK_BYTES;
+                mOffset = -1;
+                continue;
+            }
+            if (n == 0)
+                break;
+            mBuffer.flip();
+            mBufferPosition = mNext;
+            mBlockOffset = 0;
+            mOffset = 0;
+        }
+        mBuffer.limit(0);
+        mOffset = -1;
+        mNext = mEnd;
+        return false;
+    }
+
+    /**
+     * @return the logical position of the current sample
+     */
+    public long position() {
+        return mBufferPosition + mOffset;
+    }
+
+    /**
+     * @return time of the current sample, epoch ms
+     */
+    public long time() {
+        return mCodec != null ? mCodec.time() : mBuffer.getLong(mOffset + TIME);
+    }
+
+    /**
+     * @return latitude of the current sample, degrees
+     */
+    public double latitude() {
+        return mCodec != null ? mCodec.latitude() : mBuffer.getDouble(mOffset + LATITUDE);
+    }
+
+    /**
+     * @return longitude of the current sample, degrees
+     */
+    public double longitude() {
+        return mCodec != null ? mCodec.longitude() : mBuffer.getDouble(mOffset + LONGITUDE);
+    }
+
+    /**
+     * @return depth of the current sample, m
+     */
+    public float depth() {
+        return mCodec != null ? mCodec.depth() : mBuffer.getFloat(mOffset + DEPTH);
+    }
+
+    /**
+     * @return strength of the current sample, %
+     */
+    public int strength() {
+        return mCodec != null ? mCodec.strength() : mBuffer.get(mOffset + STRENGTH) & 0xFF;
+    }
+
+    /**
+     * @return fish depth of the current sample, m. 0 if the cache is in the original format.
+     */
+    public float fishDepth() {
+        if (mCodec != null)
+            return mCodec.fishDepth();
+        return mExtended ? (mBuffer.getShort(mOffset + FISH_DEPTH) & 0xFFFF) / 100f : 0;
+    }
+
+    /**
+     * @return fish strength of the current sample, %. 0 if the cache is in the original format.
+     */
+    public int fishStrength() {
+        if (mCodec != null)
+            return mCodec.fishStrength();
+        return mExtended ? mBuffer.get(mOffset + FISH_STRENGTH) & 0xFF : 0;
+    }
+
+    /**
+     * @return temperature of the current sample, C. 0 if the cache is in the original format.
+     */
+    public float temperature() {
+        if (mCodec != null)
+            return mCodec.temperature();
+        return mExtended ? mBuffer.getShort(mOffset + TEMPERATURE) / 100f : 0;
+    }
+
+    /**
+     * @return battery level of the current sample, %. 0 if the cache is in the original format.
+     */
+    public byte battery() {
+        if (mCodec != null)
+            return mCodec.battery();
+        return mExtended ? mBuffer.get(mOffset + BATTERY) : 0;
+    }
+
+    /**
+     * Make a Sample holding the current sample
+     *
+     * @return a new Sample
+     */
+    public Sample getSample() {
+        Sample s = new Sample(time(), latitude(), longitude(), depth(), strength());
+        s.fishDepth = fishDepth();
+        s.fishStrength = fishStrength();
+        s.temperature = temperature();
+        s.battery = battery();
+        return s;
+    }
+
+    /**
+     * Write the current sample as a GPX trkpt. See Sample#writeGPX
+     *
+     * @param w the writer to write to
+     * @throws IOException if there's a problem writing
+     */
+    public void writeGPX(GPXWriter w) throws IOException {
+        Sample.writeGPX(w, time(), latitude(), longitude(), depth(), strength(), fishDepth(), fishStrength());
+    }
+}
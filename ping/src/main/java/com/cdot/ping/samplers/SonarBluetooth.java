@@ -28,8 +28,9 @@ import androidx.annotation.NonNull;
 import com.cdot.ping.BuildConfig;
 import com.cdot.ping.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Date;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
@@ -99,7 +100,7 @@ public class SonarBluetooth implements ConnectionObserver {
     // The most recent location given to the sampler, must never be null
     private Location mCurrentLocation = new Location(TAG);
     // The location most recently written to the log
-    private Location mLastLoggedLocation = mCurrentLocation;
+    private final Location mLastLoggedLocation = new Location(TAG);
     // Min location change before a sample update will be fired
     private float mMinDeltaPos = 1; //m
     // Activity timeout
@@ -110,6 +111,8 @@ public class SonarBluetooth implements ConnectionObserver {
     // Sampling statistics
     private long mLastSampleTime;
     private long mTotalSamplesReceived;
+    // Records the packets and locations, when capturing
+    private volatile SonarCapture.Recorder mCapture = null;
 
     SonarBluetooth(LoggingService service, BTImplementation impl) {
         mService = service;
@@ -117,21 +120,31 @@ public class SonarBluetooth implements ConnectionObserver {
         impl.setCommon(this);
     }
 
-    // Convert a double encoded in two bytes as realpart/fracpart to a double
-    private static float b2f(byte real, byte frac) {
-        int r = (int) real & 0xFF, f = (int) frac & 0xFF;
-        return ((float) r + (float) f / 100.0f);
-    }
-
+    /**
+     * Connect to a device
+     *
+     * @param device the device to connect to. May be null for an implementation that doesn't
+     *               need one, such as SonarReplay.
+     */
     public void connect(BluetoothDevice device) {
-        Log.d(TAG, "Initiating connect request " + device.getName());
+        String name = device != null ? device.getName() : "null";
+        Log.d(TAG, "Initiating connect request " + name);
         resetSampleRate();
         mImplementation.connectToDevice(device)
-                .done(dev -> Log.d(TAG, "Connection to " + device.getName() + " done"))
-                .fail((dev, e) -> Log.e(TAG, "Connection to " + device.getName() + " failed " + e))
+                .done(dev -> Log.d(TAG, "Connection to " + name + " done"))
+                .fail((dev, e) -> Log.e(TAG, "Connection to " + name + " failed " + e))
                 .enqueue();
     }
 
+    /**
+     * Is the connection simulated, so there's no device to look for?
+     *
+     * @return true if the implementation is a SonarReplay
+     */
+    public boolean isSimulated() {
+        return mImplementation instanceof SonarReplay;
+    }
+
     public void disconnect() {
         mImplementation.disconnectFromDevice()
                 .done(device -> Log.d(TAG, "Disconnected from " + (device != null ? device.getName() : "null")))
@@ -139,10 +152,52 @@ public class SonarBluetooth implements ConnectionObserver {
     }
 
     public void close() {
+        stopCapture();
         mImplementation.close();
         mImplementation = null;
     }
 
+    /**
+     * Start recording the packets received and the locations used to a capture file, which can
+     * be replayed using SonarReplay. Any capture already running is stopped.
+     *
+     * @param file capture file to create
+     * @throws IOException if the file can't be created
+     */
+    void startCapture(File file) throws IOException {
+        stopCapture();
+        mCapture = new SonarCapture.Recorder(file);
+        Log.d(TAG, "Capturing to " + file);
+    }
+
+    /**
+     * Stop recording a capture file, if one is being recorded
+     */
+    void stopCapture() {
+        SonarCapture.Recorder capture = mCapture;
+        if (capture == null)
+            return;
+        mCapture = null;
+        try {
+            capture.close();
+        } catch (IOException ioe) {
+            Log.e(TAG, "Problem closing capture " + ioe);
+        }
+    }
+
+    // Record the current location in the capture, if there is one
+    private void captureLocation() {
+        SonarCapture.Recorder capture = mCapture;
+        if (capture == null)
+            return;
+        try {
+            capture.writeLocation(System.currentTimeMillis(), mCurrentLocation.getLatitude(), mCurrentLocation.getLongitude());
+        } catch (IOException ioe) {
+            Log.e(TAG, "Capture failed " + ioe);
+            stopCapture();
+        }
+    }
+
     public int getConnectionState() {
         return mImplementation.getConnectionState();
     }
@@ -227,6 +282,20 @@ public class SonarBluetooth implements ConnectionObserver {
         connect(device);
     }
 
+    /**
+     * Called by a simulated device, such as SonarReplay, when it has nothing more to send.
+     * Reported the same way as the remote device disconnecting, but as nothing will come of
+     * reconnecting, there's no attempt to.
+     *
+     * @param device the device that finished, may be null
+     */
+    void onDeviceFinished(BluetoothDevice device) {
+        Log.d(TAG, "onDeviceFinished");
+        cancelTimeout();
+        broadcastStateChange(SonarBluetooth.BT_STATE_DISCONNECTED, ConnectionObserver.REASON_TERMINATE_PEER_USER);
+        mService.playSound(R.raw.boom);
+    }
+
     // Disconnect timeout. If we don't get another sample within a timeout period, disconnect.
     private void startTimeout() {
         if (mSampleTimeout <= 0 || mTimeoutTimer != null)
@@ -266,8 +335,10 @@ public class SonarBluetooth implements ConnectionObserver {
      * @param loc location to set
      */
     void setLocation(Location loc) {
-        if (!mLocationsFromPingTest)
+        if (!mLocationsFromPingTest) {
             mCurrentLocation = loc;
+            captureLocation();
+        }
     }
 
     /**
@@ -346,6 +417,11 @@ public class SonarBluetooth implements ConnectionObserver {
 
     // Handler for sample notifications coming from the sonar device
     class SonarHandler implements ProfileDataCallback {
+        private final SonarPacketDecoder mDecoder = new SonarPacketDecoder();
+        // Every packet is decoded into this; it is only copied if the sample is logged
+        private final Sample mPacketSample = new Sample();
+        // Unexpected bytes seen in the previous packet
+        private int mReportedMysteries = 0;
 
         private String report(byte[] bytes) {
             StringBuilder mess = new StringBuilder("Packet ");
@@ -356,66 +432,43 @@ public class SonarBluetooth implements ConnectionObserver {
 
         @Override // ProfileDataCallback
         public void onDataReceived(@NonNull final BluetoothDevice device, @NonNull final Data data) {
+            long received = System.nanoTime();
             byte[] bytes = data.getValue();
-            byte id0 = bytes[0];
-            byte id1 = bytes[1];
-            if (bytes.length != 18 || id0 != ID0 || id1 != ID1) {
-                Log.e(TAG, "Bad signature " + report(bytes));
-                //onInvalidDataReceived(device, data);
-                return;
+            SonarCapture.Recorder capture = mCapture;
+            if (capture != null && bytes.length == SonarPacketDecoder.PACKET_BYTES) {
+                try {
+                    capture.writePacket(System.currentTimeMillis(), bytes, 0);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Capture failed " + ioe);
+                    stopCapture();
+                }
             }
-
-            int checksum = 0;
-            for (int i = 0; i < 17; i++)
-                checksum = (checksum + bytes[i]) & 0xFF;
-            int packcs = (int) bytes[17] & 0xFF;
-            if (packcs != checksum) {
-                // It's ok to ignore this, we will see the trace in the debug but otherwise
-                // it won't stop us
-                Log.e(TAG, "Bad checksum " + packcs + " != " + checksum + " " + report(bytes));
-                return;
+            Sample sample = mPacketSample;
+            switch (mDecoder.decode(bytes, 0, bytes.length, sample)) {
+                case SonarPacketDecoder.BAD_SIGNATURE:
+                    Log.e(TAG, "Bad signature " + report(bytes));
+                    //onInvalidDataReceived(device, data);
+                    return;
+                case SonarPacketDecoder.BAD_CHECKSUM:
+                    // It's ok to ignore this, we will see the trace in the debug but otherwise
+                    // it won't stop us
+                    Log.e(TAG, "Bad checksum " + ((int) bytes[17] & 0xFF) + " != "
+                            + SonarPacketDecoder.checksum(bytes, 0) + " " + report(bytes));
+                    return;
             }
 
-            Sample sample = new Sample();
-
-            // bytes[2], bytes[3] unknown, always seem to be 0
-            if (bytes[2] != 0) Log.d(TAG, "Mysterious[2] " + report(bytes));
-            if (bytes[3] != 0) Log.d(TAG, "Mysterious[3] " + report(bytes));
-
-            if ((bytes[4] & 0xF7) != 0) Log.d(TAG, "Mysterious[4] " + report(bytes));
-
-            sample.time = new Date().getTime();
-            boolean isDry = (bytes[4] & 0x8) != 0;
-
-            // bytes[5] unknown, seems to be always 9 (1001)
-            if (bytes[5] != 9) Log.d(TAG, "Mysterious[5] " + report(bytes));
-            // Convert fish depth to metres. We set a negative depth to flag when the device is out of water
-            sample.depth = isDry ? -0.01f : ft2m * b2f(bytes[6], bytes[7]);
-            // Data is coming from a byte, so naturally constrained to 255
-            // Erchang SW: 30-40, "large weed", 40-50 "medium weed", and 50-60 "small weed". Any
-            // value outside these ranges is "no weed". By setting MAX_STRENGTH to 256, we are
-            // mapping these to: 11%-15%, 16%-19%, 20%-24%. Whether these percentages are pre-scaled
-            // to the depth is unknown, but doesn't really matter for our purposes.
-            sample.strength = 100 * ((int) bytes[8] & 0xFF) / 256;
-            // Convert fish depth to metres
-            sample.fishDepth = ft2m * b2f(bytes[9], bytes[10]);
-            // Fish strength is in a nibble, so constrained to the range 0-15. Erchang interprets
-            // this as  0 "no fish", 1 "small fish", 2 "medium fish", 3 "large fish or shoal".
-            // Any other value is interpreted as "small fish".
-            sample.fishStrength = 100 * ((int) bytes[11] & 0xF) / 16;
-            // Max battery strength is 6. Scale to an integer percentage
-            sample.battery = (byte) (100 * ((bytes[11] >> 4) & 0xF) / 6);
-            // Convert temperature to sensible celcius
-            sample.temperature = (b2f(bytes[12], bytes[13]) - 32.0f) * 5.0f / 9.0f;
-
-            // bytes[14], bytes[15], bytes[16] always 0
-            if (bytes[14] != 0) Log.d(TAG, "Mysterious[14] " + report(bytes));
-            if (bytes[15] != 0) Log.d(TAG, "Mysterious[15] " + report(bytes));
-            if (bytes[16] != 0) Log.d(TAG, "Mysterious[16] " + report(bytes));
-            // bytes[17] is a checksum of bytes[0]..bytes[16]
-
-            //Log.d(TAG, report(data));
+            // Only report unexpected bytes when they change, not on every packet
+            int mysteries = mDecoder.getMysteries();
+            if (mysteries != mReportedMysteries) {
+                if (mysteries != 0)
+                    Log.d(TAG, "Mysterious " + report(bytes));
+                mReportedMysteries = mysteries;
+            }
 
+            sample.received = received;
+            if (mService != null)
+                mService.getPipelineStats().received();
+            sample.time = System.currentTimeMillis();
             sample.latitude = mCurrentLocation.getLatitude();
             sample.longitude = mCurrentLocation.getLongitude();
 
@@ -446,12 +499,14 @@ public class SonarBluetooth implements ConnectionObserver {
                     Log.d(TAG, reason.toString());
                 }
 
-                mMustLogNextSample = false;
-                mLastLoggedSample = sample;
-                mLastLoggedLocation = new Location(mCurrentLocation);
-
-                if (mService != null)
-                    mService.logSample(sample);
+                Sample logged = new Sample(sample);
+                if (mService == null || mService.logSample(logged)) {
+                    mMustLogNextSample = false;
+                    mLastLoggedSample = logged;
+                    mLastLoggedLocation.set(mCurrentLocation);
+                } else
+                    // The writer is backed up and the sample was dropped; log the next one instead
+                    mMustLogNextSample = true;
             }
 
             // Tell the timeout we're OK
@@ -480,6 +535,7 @@ public class SonarBluetooth implements ConnectionObserver {
             byteBuffer.flip();
             mCurrentLocation.setLongitude(byteBuffer.getDouble());
             mLocationsFromPingTest = true;
+            captureLocation();
         }
     }
 }
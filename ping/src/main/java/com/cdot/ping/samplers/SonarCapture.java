@@ -0,0 +1,273 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Capture files record a sonar session as the raw packets received from the device and the
+ * locations given to the sampler, each with the time it arrived. A Recorder writes them while
+ * a device is connected, and a Player reads them back at the speed they were recorded, faster,
+ * or as fast as possible, for SonarReplay.
+ * <p>
+ * The file is a header of MAGIC and VERSION ints, followed by records. Each record is a type
+ * byte and an epoch ms time, then either the PACKET_BYTES of a packet or the latitude and
+ * longitude of a location as doubles.
+ */
+public class SonarCapture {
+    // Identifies a capture file
+    static final int MAGIC = 0xCD07CA97;
+    static final int VERSION = 1;
+
+    // Record types
+    public static final int PACKET = 1;
+    public static final int LOCATION = 2;
+
+    /**
+     * Told about the records as they are played
+     */
+    public interface Listener {
+        /**
+         * @param packet the raw packet, PACKET_BYTES long. Reused for the next packet.
+         */
+        void onPacket(byte[] packet);
+
+        /**
+         * @param latitude  degrees
+         * @param longitude degrees
+         */
+        void onLocation(double latitude, double longitude);
+    }
+
+    /**
+     * Writes a capture file. Packets and locations arrive on different threads, so the methods
+     * are synchronized.
+     */
+    public static class Recorder {
+        private final DataOutputStream mOut;
+
+        /**
+         * @param file capture file to create, replacing any existing file
+         * @throws IOException if the file can't be created
+         */
+        public Recorder(File file) throws IOException {
+            this(new FileOutputStream(file));
+        }
+
+        /**
+         * @param out stream to write the capture to
+         * @throws IOException if the header can't be written
+         */
+        public Recorder(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+
+        /**
+         * Record a packet received from the device
+         *
+         * @param time   epoch ms when it was received
+         * @param bytes  buffer holding the packet
+         * @param offset start of the packet in the buffer
+         * @throws IOException if there's a problem writing
+         */
+        public synchronized void writePacket(long time, byte[] bytes, int offset) throws IOException {
+            mOut.writeByte(PACKET);
+            mOut.writeLong(time);
+            mOut.write(bytes, offset, SonarPacketDecoder.PACKET_BYTES);
+        }
+
+        /**
+         * Record a location given to the sampler
+         *
+         * @param time      epoch ms when it was given
+         * @param latitude  degrees
+         * @param longitude degrees
+         * @throws IOException if there's a problem writing
+         */
+        public synchronized void writeLocation(long time, double latitude, double longitude) throws IOException {
+            mOut.writeByte(LOCATION);
+            mOut.writeLong(time);
+            mOut.writeDouble(latitude);
+            mOut.writeDouble(longitude);
+        }
+
+        /**
+         * Write out everything recorded so far
+         *
+         * @throws IOException if there's a problem writing
+         */
+        public synchronized void flush() throws IOException {
+            mOut.flush();
+        }
+
+        /**
+         * Flush and close the file
+         *
+         * @throws IOException if there's a problem writing
+         */
+        public synchronized void close() throws IOException {
+            mOut.close();
+        }
+    }
+
+    /**
+     * Reads a capture file
+     */
+    public static class Player {
+        private final DataInputStream mIn;
+        private final byte[] mPacket = new byte[SonarPacketDecoder.PACKET_BYTES]; // last packet read
+        private long mTime; // time of the last record read
+        private double mLatitude, mLongitude; // last location read
+
+        /**
+         * @param file capture file to read
+         * @throws IOException if the file can't be opened, or isn't a capture file
+         */
+        public Player(File file) throws IOException {
+            this(new FileInputStream(file));
+        }
+
+        /**
+         * @param in stream to read a capture from
+         * @throws IOException if the stream can't be read, or isn't a capture
+         */
+        public Player(InputStream in) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(in));
+            if (mIn.readInt() != MAGIC)
+                throw new IOException("Not a capture file");
+            int version = mIn.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported capture version " + version);
+        }
+
+        /**
+         * Read the next record. A record cut short at the end of the file, as left by a recorder
+         * that wasn't closed, is taken as the end.
+         *
+         * @return PACKET or LOCATION, or -1 at the end of the capture
+         * @throws IOException if there's a problem reading, or the record is corrupt
+         */
+        public int next() throws IOException {
+            int type = mIn.read();
+            if (type < 0)
+                return -1;
+            try {
+                mTime = mIn.readLong();
+                switch (type) {
+                    case PACKET:
+                        mIn.readFully(mPacket);
+                        break;
+                    case LOCATION:
+                        mLatitude = mIn.readDouble();
+                        mLongitude = mIn.readDouble();
+                        break;
+                    default:
+                        throw new IOException("Bad capture record type " + type);
+                }
+            } catch (EOFException eofe) {
+                return -1;
+            }
+            return type;
+        }
+
+        /**
+         * @return epoch ms time of the last record read
+         */
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * @return the last packet read. Reused for the next packet.
+         */
+        public byte[] getPacket() {
+            return mPacket;
+        }
+
+        /**
+         * @return latitude of the last location read, degrees
+         */
+        public double getLatitude() {
+            return mLatitude;
+        }
+
+        /**
+         * @return longitude of the last location read, degrees
+         */
+        public double getLongitude() {
+            return mLongitude;
+        }
+
+        /**
+         * Play the rest of the capture, keeping the intervals between records as they were
+         * recorded, divided by the speed. Records are scheduled from the start of the play,
+         * so a slow listener doesn't make the play drift.
+         *
+         * @param speed    1 for real time, 100 for 100 times faster, 0 for as fast as possible
+         * @param listener told about each record
+         * @return the number of records played
+         * @throws IOException          if there's a problem reading
+         * @throws InterruptedException if the thread is interrupted, to stop the play
+         */
+        public long play(float speed, Listener listener) throws IOException, InterruptedException {
+            long records = 0;
+            long startNanos = System.nanoTime();
+            long startTime = 0;
+            int type;
+            while ((type = next()) >= 0) {
+                if (records++ == 0)
+                    startTime = mTime;
+                else if (speed > 0) {
+                    long due = startNanos + (long) ((mTime - startTime) * 1000000L / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                if (type == PACKET)
+                    listener.onPacket(mPacket);
+                else
+                    listener.onLocation(mLatitude, mLongitude);
+            }
+            return records;
+        }
+
+        /**
+         * Close the file
+         *
+         * @throws IOException if there's a problem closing
+         */
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -20,7 +20,6 @@ package com.cdot.ping.samplers;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
-import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -117,27 +116,26 @@ public class SonarClassic implements SonarBluetooth.BTImplementation {
         }
 
         public void run() {
-            int BLOCKSIZE = 18;
-            byte[] buffer = new byte[BLOCKSIZE];  // buffer store for the stream
-            int bytes; // bytes returned from read()
+            SonarFramer framer = new SonarFramer(mmInStream);
+            long skipped = 0; // bytes skipped by the framer, last we looked
             mSC.onDeviceReady(mDevice);
-            // Keep listening to the InputStream until an exception occurs
+            // Keep listening to the InputStream until it fails, which it will when the socket
+            // is closed
             while (!isInterrupted()) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.available();
-                    if (bytes < BLOCKSIZE)
-                        SystemClock.sleep(100); // pause and wait for a packet - 100ms = 10kHz
-                    else {
-                        if (mmInStream.read(buffer, 0, BLOCKSIZE) == BLOCKSIZE) {
-                            // TODO: how many bytes per sample
-                            mSonarHandler.onDataReceived(mDevice, new Data(buffer));
-                        } else {
-                            Log.e(TAG, "read() came up short");
-                        }
+                    byte[] packet = framer.readFrame();
+                    if (packet == null) {
+                        Log.e(TAG, "Input stream ended");
+                        break;
                     }
+                    if (framer.getSkipped() != skipped) {
+                        Log.e(TAG, "Resynchronised, skipped " + (framer.getSkipped() - skipped) + " bytes");
+                        skipped = framer.getSkipped();
+                    }
+                    mSonarHandler.onDataReceived(mDevice, new Data(packet));
                 } catch (IOException e) {
-                    Log.e(TAG, "Read failed " + e);
+                    if (!isInterrupted())
+                        Log.e(TAG, "Read failed " + e);
                     break;
                 }
             }
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits the byte stream from a classic Bluetooth sonar into packets. Reads block until bytes
+ * arrive, and are buffered so a packet can arrive in any number of pieces. Bytes that aren't
+ * part of a packet with the 'S','F' signature and a good checksum are skipped, so the framer
+ * resynchronises after garbage or a dropped byte.
+ */
+public class SonarFramer {
+    // Size of the read buffer. Big enough to take several packets in one read.
+    private static final int BUFFER_BYTES = 16 * SonarPacketDecoder.PACKET_BYTES;
+
+    private final InputStream mIn; // stream being framed
+    private final byte[] mBuffer = new byte[BUFFER_BYTES]; // bytes read but not yet framed
+    private int mStart = 0; // index of the first unframed byte in mBuffer
+    private int mEnd = 0; // index after the last byte read into mBuffer
+    private final byte[] mFrame = new byte[SonarPacketDecoder.PACKET_BYTES]; // the last packet
+    private long mSkipped = 0; // bytes skipped while looking for packets
+
+    /**
+     * @param in stream to read packets from
+     */
+    public SonarFramer(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Read the next packet, blocking until it has arrived
+     *
+     * @return the packet, PACKET_BYTES long with a good signature and checksum. The array is
+     * reused by the next call. null if the stream has ended.
+     * @throws IOException if the read fails, for example because the stream was closed
+     */
+    public byte[] readFrame() throws IOException {
+        while (true) {
+            while (mEnd - mStart >= SonarPacketDecoder.PACKET_BYTES) {
+                if (isFrame(mStart)) {
+                    System.arraycopy(mBuffer, mStart, mFrame, 0, SonarPacketDecoder.PACKET_BYTES);
+                    mStart += SonarPacketDecoder.PACKET_BYTES;
+                    return mFrame;
+                }
+                mStart++;
+                mSkipped++;
+            }
+            // Move the start of a partial packet down, to make room to read the rest
+            System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+            int n = mIn.read(mBuffer, mEnd, BUFFER_BYTES - mEnd);
+            if (n < 0)
+                return null;
+            mEnd += n;
+        }
+    }
+
+    /**
+     * Get the number of bytes skipped because they weren't part of a good packet, including
+     * packets with bad checksums
+     *
+     * @return bytes skipped since the framer was created
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    // Check for a good packet at i in mBuffer
+    private boolean isFrame(int i) {
+        return mBuffer[i] == SonarBluetooth.ID0 && mBuffer[i + 1] == SonarBluetooth.ID1
+                && SonarPacketDecoder.checksum(mBuffer, i) == ((int) mBuffer[i + 17] & 0xFF);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+/**
+ * Decoder for the 18-byte sample packets sent by the sonar device. Decoding is done into a
+ * caller-owned Sample using precomputed conversion tables, so it allocates nothing; the
+ * caller only needs to copy the sample if it decides to keep it.
+ * <p>
+ * Packet layout, as far as it is understood:
+ * <pre>
+ * [0]      'S'
+ * [1]      'F'
+ * [2],[3]  unknown, always 0
+ * [4]      bit 3 set when the transducer is out of the water, other bits unknown and 0
+ * [5]      unknown, always 9
+ * [6],[7]  depth, feet, as whole/hundredths
+ * [8]      bottom strength 0..255
+ * [9],[10] fish depth, feet, as whole/hundredths
+ * [11]     low nibble fish strength 0..15, high nibble battery 0..6
+ * [12],[13] temperature, Fahrenheit, as whole/hundredths
+ * [14..16] unknown, always 0
+ * [17]     checksum, sum of bytes [0]..[16] mod 256
+ * </pre>
+ */
+public class SonarPacketDecoder {
+    // Length of a sample packet
+    public static final int PACKET_BYTES = 18;
+
+    // Results of #decode
+    public static final int OK = 0;
+    public static final int BAD_SIGNATURE = 1;
+    public static final int BAD_CHECKSUM = 2;
+
+    // Expected values of the bytes we don't understand, and masks for the bits we do
+    private static final int[] MYSTERIOUS_INDEX = {2, 3, 4, 5, 14, 15, 16};
+    private static final int[] MYSTERIOUS_MASK = {0xFF, 0xFF, 0xF7, 0xFF, 0xFF, 0xFF, 0xFF};
+    private static final int[] MYSTERIOUS_EXPECT = {0, 0, 0, 9, 0, 0, 0};
+
+    // Depth in metres of the whole and hundredths parts of a depth in feet
+    private static final float[] FEET_M = new float[256];
+    private static final float[] HUNDREDTHS_FEET_M = new float[256];
+    // Celsius offset of the whole and hundredths parts of a temperature in Fahrenheit
+    private static final float[] FAHRENHEIT_C = new float[256];
+    private static final float[] HUNDREDTHS_FAHRENHEIT_C = new float[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            FEET_M[i] = SonarBluetooth.ft2m * i;
+            HUNDREDTHS_FEET_M[i] = SonarBluetooth.ft2m * i / 100.0f;
+            FAHRENHEIT_C[i] = (i - 32.0f) * 5.0f / 9.0f;
+            HUNDREDTHS_FAHRENHEIT_C[i] = (i / 100.0f) * 5.0f / 9.0f;
+        }
+    }
+
+    // Bitmask of the MYSTERIOUS_INDEX bytes that had unexpected values in the last packet decoded
+    private int mMysteries = 0;
+
+    /**
+     * Decode a packet into a sample. Only the fields that come from the device are set; time and
+     * location are left for the caller.
+     *
+     * @param bytes  buffer containing the packet
+     * @param offset start of the packet in the buffer
+     * @param len    number of bytes in the packet
+     * @param sample the sample to decode into. Unchanged unless the result is OK.
+     * @return OK, BAD_SIGNATURE or BAD_CHECKSUM
+     */
+    public int decode(byte[] bytes, int offset, int len, Sample sample) {
+        if (len != PACKET_BYTES || bytes[offset] != SonarBluetooth.ID0 || bytes[offset + 1] != SonarBluetooth.ID1)
+            return BAD_SIGNATURE;
+
+        if (checksum(bytes, offset) != ((int) bytes[offset + 17] & 0xFF))
+            return BAD_CHECKSUM;
+
+        int mysteries = 0;
+        for (int i = 0; i < MYSTERIOUS_INDEX.length; i++)
+            if ((bytes[offset + MYSTERIOUS_INDEX[i]] & MYSTERIOUS_MASK[i]) != MYSTERIOUS_EXPECT[i])
+                mysteries |= 1 << i;
+        mMysteries = mysteries;
+
+        boolean isDry = (bytes[offset + 4] & 0x8) != 0;
+        // We set a negative depth to flag when the device is out of water
+        sample.depth = isDry ? -0.01f : feetToMetres(bytes[offset + 6], bytes[offset + 7]);
+        // Data is coming from a byte, so naturally constrained to 255
+        // Erchang SW: 30-40, "large weed", 40-50 "medium weed", and 50-60 "small weed". Any
+        // value outside these ranges is "no weed". By setting MAX_STRENGTH to 256, we are
+        // mapping these to: 11%-15%, 16%-19%, 20%-24%. Whether these percentages are pre-scaled
+        // to the depth is unknown, but doesn't really matter for our purposes.
+        sample.strength = 100 * ((int) bytes[offset + 8] & 0xFF) / 256;
+        sample.fishDepth = feetToMetres(bytes[offset + 9], bytes[offset + 10]);
+        // Fish strength is in a nibble, so constrained to the range 0-15. Erchang interprets
+        // this as  0 "no fish", 1 "small fish", 2 "medium fish", 3 "large fish or shoal".
+        // Any other value is interpreted as "small fish".
+        sample.fishStrength = 100 * ((int) bytes[offset + 11] & 0xF) / 16;
+        // Max battery strength is 6. Scale to an integer percentage
+        sample.battery = (byte) (100 * ((bytes[offset + 11] >> 4) & 0xF) / 6);
+        // Convert temperature to sensible celcius
+        sample.temperature = FAHRENHEIT_C[(int) bytes[offset + 12] & 0xFF]
+                + HUNDREDTHS_FAHRENHEIT_C[(int) bytes[offset + 13] & 0xFF];
+        return OK;
+    }
+
+    /**
+     * Get the checksum of a packet
+     *
+     * @param bytes  buffer containing the packet
+     * @param offset start of the packet in the buffer
+     * @return the sum of the 17 bytes before the checksum byte, mod 256
+     */
+    public static int checksum(byte[] bytes, int offset) {
+        int checksum = 0;
+        for (int i = 0; i < PACKET_BYTES - 1; i++)
+            checksum = (checksum + bytes[offset + i]) & 0xFF;
+        return checksum;
+    }
+
+    /**
+     * Get a bitmask of the bytes we don't understand that had unexpected values in the last packet
+     * successfully decoded. Use this to decide when a packet is worth reporting, rather than
+     * building a report for every odd packet.
+     *
+     * @return 0 if the last packet held no surprises
+     */
+    public int getMysteries() {
+        return mMysteries;
+    }
+
+    // Convert feet encoded in two bytes as whole/hundredths to metres
+    private static float feetToMetres(byte whole, byte hundredths) {
+        return FEET_M[(int) whole & 0xFF] + HUNDREDTHS_FEET_M[(int) hundredths & 0xFF];
+    }
+}
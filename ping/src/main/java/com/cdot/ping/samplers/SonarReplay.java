@@ -0,0 +1,229 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.ping.samplers;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import no.nordicsemi.android.ble.callback.FailCallback;
+import no.nordicsemi.android.ble.callback.SuccessCallback;
+import no.nordicsemi.android.ble.callback.profile.ProfileDataCallback;
+import no.nordicsemi.android.ble.data.Data;
+
+/**
+ * Simulated sonar that replays a capture file recorded by SonarCapture.Recorder, so the rest of
+ * the app can be exercised without a device, and at many times the device's sample rate. No
+ * device is needed, so connect with a null device; if one is given it is only used to identify
+ * the connection, and nothing is sent to it. The end of the capture is reported as the device
+ * disconnecting.
+ * Locations in the capture are fed in the same way as locations from PingTest, so they replace
+ * the locations from the LocationSampler.
+ */
+public class SonarReplay implements SonarBluetooth.BTImplementation {
+    public static final String TAG = SonarReplay.class.getSimpleName();
+
+    private final File mFile; // capture file being replayed
+    private final float mSpeed; // replay speed, see SonarCapture.Player#play
+    private SonarBluetooth mSC;
+    private BluetoothDevice mDevice;
+    private volatile ReplayThread mReplayThread;
+    private volatile int mConnectionState = SonarBluetooth.BT_STATE_DISCONNECTED;
+
+    /**
+     * @param file  capture file to replay
+     * @param speed 1 for real time, 100 for 100 times faster, 0 for as fast as possible
+     */
+    public SonarReplay(File file, float speed) {
+        mFile = file;
+        mSpeed = speed;
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public void setCommon(SonarBluetooth observer) {
+        mSC = observer;
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public BluetoothDevice getBluetoothDevice() {
+        return mDevice;
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public void close() {
+        stopReplay();
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public void sendConfiguration(byte[] data) {
+        // The capture was made with whatever configuration the device had at the time
+        Log.d(TAG, "Configuration ignored by replay");
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public SonarBluetooth.Request connectToDevice(BluetoothDevice device) {
+        mSC.onDeviceConnecting(device);
+        return new ConnectRequest(device);
+    }
+
+    @Override // SonarBluetooth.BTImplementation
+    public SonarBluetooth.Request disconnectFromDevice() {
+        mSC.onDeviceDisconnecting(mDevice);
+        return new DisconnectRequest(mDevice);
+    }
+
+    private synchronized void stopReplay() {
+        if (mReplayThread != null) {
+            mReplayThread.interrupt();
+            mReplayThread = null;
+        }
+    }
+
+    // Plays the capture into the sonar and location handlers
+    private class ReplayThread extends Thread implements SonarCapture.Listener {
+        private final SonarCapture.Player mPlayer;
+        private final ProfileDataCallback mSonarHandler;
+        private final ProfileDataCallback mLocationHandler;
+        // Location packet in the form sent by PingTest
+        private final ByteBuffer mLocation = ByteBuffer.allocate(2 * Double.BYTES);
+
+        ReplayThread(SonarCapture.Player player) {
+            mPlayer = player;
+            mSonarHandler = mSC.getSonarHandler();
+            mLocationHandler = mSC.getLocationHandler();
+        }
+
+        @Override // SonarCapture.Listener
+        public void onPacket(byte[] packet) {
+            mSonarHandler.onDataReceived(mDevice, new Data(packet));
+        }
+
+        @Override // SonarCapture.Listener
+        public void onLocation(double latitude, double longitude) {
+            mLocation.clear();
+            mLocation.putDouble(latitude).putDouble(longitude);
+            mLocationHandler.onDataReceived(mDevice, new Data(mLocation.array()));
+        }
+
+        @Override // Thread
+        public void run() {
+            mSC.onDeviceReady(mDevice);
+            try {
+                long records = mPlayer.play(mSpeed, this);
+                Log.d(TAG, "Replayed " + records + " records from " + mFile);
+            } catch (InterruptedException ie) {
+                // Stopped by a disconnect request, which reports the disconnection
+                Log.d(TAG, "Replay stopped");
+                return;
+            } catch (IOException ioe) {
+                Log.e(TAG, "Replay failed " + ioe);
+            } finally {
+                try {
+                    mPlayer.close();
+                } catch (IOException ignore) {
+                }
+            }
+            // The capture has run out, as if the device had been switched off
+            synchronized (SonarReplay.this) {
+                if (mReplayThread != this)
+                    return; // superseded by another connect
+                mReplayThread = null;
+                mConnectionState = SonarBluetooth.BT_STATE_DISCONNECTED;
+            }
+            mSC.onDeviceFinished(mDevice);
+        }
+    }
+
+    private abstract class ReplayRequest implements SonarBluetooth.Request {
+        SuccessCallback mSuccessCallback;
+        FailCallback mFailCallback;
+        BluetoothDevice mDevice;
+
+        ReplayRequest(BluetoothDevice device) {
+            mDevice = device;
+        }
+
+        @Override // SonarBluetooth.Request
+        public SonarBluetooth.Request done(@NonNull SuccessCallback callback) {
+            mSuccessCallback = callback;
+            return this;
+        }
+
+        @Override // SonarBluetooth.Request
+        public SonarBluetooth.Request fail(@NonNull FailCallback callback) {
+            mFailCallback = callback;
+            return this;
+        }
+    }
+
+    private class ConnectRequest extends ReplayRequest {
+        ConnectRequest(BluetoothDevice device) {
+            super(device);
+        }
+
+        @Override // SonarBluetooth.Request
+        public void enqueue() {
+            stopReplay();
+            SonarReplay.this.mDevice = mDevice;
+            mConnectionState = SonarBluetooth.BT_STATE_CONNECTING;
+            SonarCapture.Player player;
+            try {
+                player = new SonarCapture.Player(mFile);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Can't open capture " + mFile + " " + ioe);
+                mConnectionState = SonarBluetooth.BT_STATE_DISCONNECTED;
+                if (mFailCallback != null)
+                    mFailCallback.onRequestFailed(mDevice, SonarBluetooth.BT_STATE_DISCONNECTED);
+                return;
+            }
+            Log.d(TAG, "Replaying " + mFile + " at speed " + mSpeed);
+            synchronized (SonarReplay.this) {
+                mReplayThread = new ReplayThread(player);
+                mConnectionState = SonarBluetooth.BT_STATE_CONNECTED;
+                mReplayThread.start();
+            }
+            if (mSuccessCallback != null)
+                mSuccessCallback.onRequestCompleted(mDevice);
+        }
+    }
+
+    private class DisconnectRequest extends ReplayRequest {
+        DisconnectRequest(BluetoothDevice device) {
+            super(device);
+        }
+
+        @Override // SonarBluetooth.Request
+        public void enqueue() {
+            stopReplay();
+            mConnectionState = SonarBluetooth.BT_STATE_DISCONNECTED;
+            if (mSuccessCallback != null)
+                mSuccessCallback.onRequestCompleted(mDevice);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A FIFO of bytes stored on disk, addressed by logical positions. Logical positions only ever
+ * increase: adding bytes advances the end position, and removing or discarding them advances
+ * the start. They carry on from one session to the next, and are the same for every instance
+ * that opens the same store.
+ * <p>
+ * Implemented by ConcurrentFileByteFIFO, which keeps the bytes in a single circular file, and
+ * SegmentedFileByteFIFO, which keeps them in a directory of fixed-size segment files.
+ */
+public interface ByteFIFO {
+
+    /**
+     * Set the size of the records written to the buffer. Commits and crash recovery will
+     * never split a record, and the start and end of the data are aligned to whole records.
+     * Call it before using the buffer.
+     *
+     * @param nBytes record size
+     */
+    void setRecordBytes(int nBytes);
+
+    /**
+     * Get the format of the records in the buffer. The buffer doesn't interpret this; it is
+     * kept with the buffer so that its user can tell how to read the records.
+     *
+     * @return the record format, 0 if it has never been set
+     */
+    int getRecordFormat();
+
+    /**
+     * Set the format of the records in the buffer, and commit it. Cannot be used in readOnly
+     * mode.
+     *
+     * @param format the record format
+     * @throws IOException if there's a problem writing the buffer
+     */
+    void setRecordFormat(int format) throws IOException;
+
+    /**
+     * Change the commit policy
+     *
+     * @param policy the new policy
+     */
+    void setCommitPolicy(CommitPolicy policy);
+
+    /**
+     * Get the current usage of the buffer
+     *
+     * @return the used size in bytes
+     */
+    long getUsedBytes();
+
+    /**
+     * Get the logical position of the oldest byte in the buffer
+     *
+     * @return the position of the oldest byte
+     */
+    long getStartPosition();
+
+    /**
+     * Get the logical position just after the newest byte in the buffer
+     *
+     * @return the position the next byte added will have
+     */
+    long getEndPosition();
+
+    /**
+     * Get the current max size of the buffer
+     *
+     * @return the max size in bytes
+     */
+    long getCapacityBytes();
+
+    /**
+     * Resize the buffer. If the new size is less than the used size, the oldest data is
+     * discarded. Cannot be used in readOnly mode.
+     *
+     * @param newCapacity new size in bytes
+     * @throws IOException if there's a problem reading/writing the buffer
+     */
+    void setCapacityBytes(long newCapacity) throws IOException;
+
+    /**
+     * Read and remove the oldest bytes. Cannot be used in readOnly mode.
+     *
+     * @param buf buffer to read into
+     * @param pos index in buf
+     * @param len length to read
+     * @return number of bytes actually read
+     * @throws IOException if there's a problem reading/writing the buffer
+     */
+    int remove(byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Adds len bytes at pos from buf to the buffer, discarding the oldest bytes if it is full.
+     * Cannot be used in readOnly mode.
+     *
+     * @param buf buffer to write from
+     * @param pos index in buf
+     * @param len length to write
+     * @throws IOException             if there's a problem reading/writing the buffer
+     * @throws BufferOverflowException if you are trying to write more than the buffer can hold
+     */
+    void add(byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Adds the entire buffer. Cannot be used in readOnly mode.
+     *
+     * @param buf buffer to write from
+     * @throws IOException             if there's a problem reading/writing the buffer
+     * @throws BufferOverflowException if you are trying to write more than the buffer can hold
+     */
+    void add(byte[] buf) throws IOException;
+
+    /**
+     * Commit any uncommitted changes if the CommitPolicy says they are due
+     *
+     * @throws IOException if there's a problem writing the buffer
+     */
+    void commitIfDue() throws IOException;
+
+    /**
+     * Commit all changes made so far to disk, whatever the CommitPolicy
+     *
+     * @throws IOException if there's a problem writing the buffer
+     */
+    void flush() throws IOException;
+
+    /**
+     * Close the buffer, flushing and freeing any resources. This will make it unusable.
+     *
+     * @throws IOException if there's a problem reading/writing the buffer
+     */
+    void close() throws IOException;
+
+    /**
+     * Non-destructive read of the newest bytes. This is the only way to retrieve buffer
+     * contents when it has been opened readOnly.
+     *
+     * @param buf byte buffer to fill with bytes
+     * @param pos position in buf to start writing
+     * @param len maximum number of bytes to return
+     * @return the number of bytes read
+     * @throws IOException if there's a problem accessing the buffer
+     */
+    int snapshot(byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Non-destructive read from a logical position
+     *
+     * @param from logical position of the first byte to read
+     * @param buf  byte buffer to fill with bytes
+     * @param pos  position in buf to start writing
+     * @param len  maximum number of bytes to return
+     * @return the number of bytes read, 0 if from is at or beyond the end of the data
+     * @throws BufferUnderflowException if the byte at from has already been removed or discarded
+     * @throws IOException if there's a problem accessing the buffer
+     */
+    int snapshot(long from, byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Non-destructive read from a logical position into a ByteBuffer, which may be direct
+     *
+     * @param from logical position of the first byte to read
+     * @param dst  buffer to fill, from its position up to its limit. Its position is advanced
+     *             past the bytes read.
+     * @return the number of bytes read, 0 if from is at or beyond the end of the data
+     * @throws BufferUnderflowException if the byte at from has already been removed or discarded
+     * @throws IOException if there's a problem accessing the buffer
+     */
+    int snapshot(long from, ByteBuffer dst) throws IOException;
+}
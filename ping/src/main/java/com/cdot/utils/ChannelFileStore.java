@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileStore that uses positional reads and writes on a RandomAccessFile. Positional I/O
+ * doesn't move the file pointer, so concurrent reads don't interfere with each other.
+ */
+class ChannelFileStore implements FileStore {
+
+    private final RandomAccessFile mRAF;
+    private final FileChannel mChannel;
+
+    /**
+     * @param file the file to open
+     * @param mode RandomAccessFile mode, "r", "rw", "rws" or "rwd"
+     * @throws IOException if the file can't be opened
+     */
+    ChannelFileStore(File file, String mode) throws IOException {
+        mRAF = new RandomAccessFile(file, mode);
+        mChannel = mRAF.getChannel();
+    }
+
+    @Override // FileStore
+    public void read(long offset, byte[] buf, int pos, int len) throws IOException {
+        read(offset, ByteBuffer.wrap(buf, pos, len));
+    }
+
+    @Override // FileStore
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (mChannel.read(dst, offset + dst.position() - start) < 0)
+                throw new EOFException("Read past end of file at " + (offset + dst.position() - start));
+        }
+    }
+
+    @Override // FileStore
+    public void write(long offset, byte[] buf, int pos, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, pos, len);
+        while (bb.hasRemaining())
+            mChannel.write(bb, offset + bb.position() - pos);
+    }
+
+    @Override // FileStore
+    public void setLength(long length) throws IOException {
+        mRAF.setLength(length);
+    }
+
+    @Override // FileStore
+    public void force() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override // FileStore
+    public void close() throws IOException {
+        mRAF.close();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+/**
+ * Decides when the changes made to a ConcurrentFileByteFIFO are committed to disk. Until they
+ * are committed, changes may be lost if the device dies. Committing less often trades a bounded
+ * loss window for far fewer syncs.
+ * <p>
+ * Policies are only consulted when the buffer is changed, so a time-based policy commits on the
+ * first change after the time has elapsed. Users should call ConcurrentFileByteFIFO#commitIfDue()
+ * or #flush() when a stream of changes stops.
+ */
+public class CommitPolicy {
+
+    /**
+     * Commit every change before add() or remove() return. Safest, slowest.
+     */
+    public static final CommitPolicy EVERY_WRITE = new CommitPolicy(1, 0);
+
+    /**
+     * Only commit when ConcurrentFileByteFIFO#flush() or #close() is called (or when the
+     * buffer wraps and needs more room).
+     */
+    public static final CommitPolicy ON_FLUSH = new CommitPolicy(0, 0);
+
+    private final int mRecords; // commit after this many records have been added or removed
+    private final long mMillis; // commit after this long since the last commit
+
+    private CommitPolicy(int records, long millis) {
+        mRecords = records;
+        mMillis = millis;
+    }
+
+    /**
+     * Get a policy that commits every n records
+     *
+     * @param n number of records added or removed between commits
+     * @return a commit policy
+     */
+    public static CommitPolicy everyRecords(int n) {
+        if (n <= 0)
+            throw new IllegalArgumentException("Bad record count " + n);
+        return new CommitPolicy(n, 0);
+    }
+
+    /**
+     * Get a policy that commits every so often
+     *
+     * @param millis minimum time between commits
+     * @return a commit policy
+     */
+    public static CommitPolicy everyMillis(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("Bad commit interval " + millis);
+        return new CommitPolicy(0, millis);
+    }
+
+    /**
+     * Determine if the changes made since the last commit must be committed now
+     *
+     * @param records number of records added or removed since the last commit
+     * @param millis  time since the last commit
+     * @return true if a commit is due
+     */
+    boolean mustCommit(int records, long millis) {
+        return (mRecords > 0 && records >= mRecords) || (mMillis > 0 && millis >= mMillis);
+    }
+}
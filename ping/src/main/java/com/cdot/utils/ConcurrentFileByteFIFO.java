@@ -21,25 +21,159 @@ package com.cdot.utils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * A FIFO buffer of a fixed maximum size implemented in a disk file.
- * The public methods of this class are synchronized on the object, but not on the underlying
- * file that implements it.
+ * The public methods of this class that change the buffer are synchronized on the object, but
+ * snapshots only hold the lock long enough to copy the bounds of the bytes they want. The bytes
+ * are then read without the lock, so any number of snapshots can run alongside an add. When
+ * the read is done, the bounds are checked again under the lock: if the bytes were discarded
+ * while they were being read the snapshot fails with a BufferUnderflowException, and if they
+ * were moved by a resize (which changes mVersion) it is retried.
+ * <p>
+ * A buffer opened readOnly may be shared with a writer in another instance, or another process.
+ * It sees the buffer as of the writer's last commit; snapshots bring it up to date with the
+ * header on disk before and after reading, and apply the same checks. A header that fails its
+ * checksum is read again, so a torn read of a header the writer is rewriting isn't believed.
+ * <p>
+ * Resizing a buffer whose data wraps, or won't fit in the new size, migrates the data to a new
+ * file in chunks, reading it with positional snapshots so adds carry on meanwhile. Once the copy
+ * has caught up, the last few bytes are copied under the lock and the new file is renamed over
+ * the old one. A readOnly instance opened before the swap goes on seeing the old file.
+ * <p>
+ * The file starts with a HEADER_BYTES header holding a magic number, the format number, then the
+ * capacity, read position, used count and logical end position as 64-bit numbers, then the
+ * record format set by the user of the buffer, and finishes with a CRC32 of the rest of the
+ * header. The data follows. Files in the original format, with a
+ * 12 byte header of 32-bit capacity, read position and used count, can still be opened; they
+ * are migrated to the current format when opened for writing. A readOnly instance reads them
+ * as they are, but as they don't record logical positions, it can't tell if it has been
+ * overtaken by a whole buffer's worth of writes between two looks at the header.
+ * <p>
+ * The file can be accessed using one of two storage engines, which share the same on-disk
+ * layout, so a buffer written using one can be opened using the other.
+ * <p>
+ * Changes are grouped into commits, as decided by a CommitPolicy. The header on disk only
+ * ever describes the state at the last commit, and a commit is ordered so that:
+ * <ol>
+ *     <li>all data written since the last commit is forced to disk</li>
+ *     <li>then the header is written and forced</li>
+ * </ol>
+ * and the header never claims bytes that may be overwritten before the next commit. When the
+ * buffer is full, a commit gives up a little of the oldest data (the "slack", 1/16 of the
+ * capacity) so that the next writes have somewhere to go, and if the writes use up the slack
+ * before the next commit is due, an early commit is made first.
+ * <p>
+ * The crash-recovery rule follows from this: the header on disk is always consistent with the
+ * data it describes, so after a crash or a torn write, the buffer is reopened with the state at
+ * the last commit, less the slack. Writes after the last commit are lost, so the loss window is
+ * bounded by the CommitPolicy. When the buffer is opened the header is checked, and if a
+ * record size has been set, the start and end of the data are aligned to whole records.
+ * <p>
+ * A buffer can be created "framed", to recover writes made since the last commit as well.
+ * A framed buffer's header is followed by a table of FRAME_SLOTS frames, and every add writes
+ * a frame giving the logical end position and length of the bytes added, and a CRC32 of them
+ * that also covers the generation (the number of commits) of the header they follow. Frames
+ * fill the table from the start after each commit, and a commit is made when it is full. When
+ * a framed buffer is opened for writing, the frames are replayed from the last commit: each
+ * must follow on from the one before, belong to the current generation, and match the bytes it
+ * describes, and the first that doesn't ends the recovery. So recovery never reads more than
+ * FRAME_SLOTS adds, however big the buffer, and never believes bytes that weren't all written,
+ * or were written before the last commit.
  */
-public class ConcurrentFileByteFIFO {
+public class ConcurrentFileByteFIFO implements ByteFIFO {
 
-    // Size of the metadata at the start of the log
-    private static final int METABYTES = 3 * Integer.BYTES;
+    /**
+     * Storage engines used to access the buffer file
+     */
+    public enum Engine {
+        /**
+         * Seek and read/write using a RandomAccessFile, syncing to disk on commit
+         */
+        RANDOM_ACCESS,
+        /**
+         * Memory map the file, so adds and snapshots are memory copies, forcing the mapping to
+         * disk on commit
+         */
+        MAPPED
+    }
+
+    // Size of the header in the current format
+    static final int HEADER_BYTES = 64;
+    // Size of the header in the original format
+    static final int V1_HEADER_BYTES = 3 * Integer.BYTES;
+    // First int of a current format header. Negative, so it can't be an original format capacity.
+    static final int MAGIC = 0xF1F0CD07;
+    // Current format number
+    static final int FORMAT = 2;
+    // Format number of a framed buffer; the current format, followed by a frame table
+    static final int FRAMED_FORMAT = 3;
+    // Size of a frame, and number of frames in the table of a framed buffer
+    static final int FRAME_BYTES = Long.BYTES + 2 * Integer.BYTES;
+    static final int FRAME_SLOTS = 256;
+    // Size of the header and frame table of a framed buffer
+    static final int FRAMED_HEADER_BYTES = HEADER_BYTES + FRAME_SLOTS * FRAME_BYTES;
+    // Offset of the CRC32 in the header
+    private static final int CRC_OFFSET = HEADER_BYTES - Integer.BYTES;
+    // Number of times to try to read a consistent header
+    private static final int MAX_META_READS = 100;
+    // Size of the chunks copied when migrating to a new file on resize
+    private static final int MIGRATE_CHUNK_BYTES = 64 * 1024;
+    // Suffix for the file a resize migrates to
+    private static final String MIGRATE_SUFFIX = ".resize";
+    // Fraction of the capacity given up by a commit when the buffer is full
+    private static final int SLACK_DIVISOR = 16;
     // File is kept open as long as the log exists
-    RandomAccessFile mRAF;
-    // Metadata at the start of the log, stored in the first METABYTES
-    private int mCapacity; // max buffer size (bytes). Doesn't include METABYTES
-    private int mReadPos;  // byte offset of first (oldest) data (after METABYTES)
-    private int mUsed;     // number of bytes used in the buffer (always <= mCapacity)
+    FileStore mStore;
+    private final File mFile;
+    // Held for the whole of a resize, so only one runs at a time
+    private final Object mResizeLock = new Object();
+    private final Engine mEngine;
+    private final boolean mReadOnly;
+    private CommitPolicy mCommitPolicy;
+    // Size of the records written to the log. Commits and recovery never split a record.
+    private int mRecordBytes = 1;
+    // Size of the header, and so the offset of the data in the file. V1_HEADER_BYTES for an
+    // original format file opened readOnly, FRAMED_HEADER_BYTES if framed, HEADER_BYTES otherwise.
+    private int mHeaderBytes;
+    // Set if every add is recorded in the frame table
+    private boolean mFramed;
+    // Number of commits ever made, stored in the header. Frames only belong to one generation.
+    private long mGeneration;
+    // Number of frames written since the last commit
+    private int mFrames;
+    // Used to build frames
+    private final CRC32 mFrameCRC = new CRC32();
+    private final ByteBuffer mFrame = ByteBuffer.allocate(2 * Long.BYTES + Integer.BYTES);
+    // Metadata stored in the header
+    private long mCapacity; // max buffer size (bytes). Doesn't include the header
+    private long mReadPos;  // byte offset of first (oldest) data (after the header)
+    private long mUsed;     // number of bytes used in the buffer (always <= mCapacity)
+    // Logical position of the end of the data; the number of bytes ever added to the buffer
+    private long mEndPosition;
+    // Format of the records, see #setRecordFormat
+    private int mRecordFormat;
+    // Changed whenever bytes are moved around in the file, so unlocked readers can tell
+    private int mVersion;
+    // State of the metadata on disk, as of the last commit
+    private long mCommittedUsed;
+    private long mBytesSinceCommit;  // bytes written beyond the committed data
+    private int mRecordsSinceCommit; // records added or removed since the last commit
+    private long mLastCommitTime;
+
+    // Metadata read from a header
+    private static class Meta {
+        int headerBytes;
+        long capacity, readPos, used, endPosition;
+        int recordFormat;
+        boolean framed;
+        long generation;
+    }
 
     /**
      * Create a new buffer using the given file to store it in, and given size. Note that the
@@ -50,14 +184,51 @@ public class ConcurrentFileByteFIFO {
      * @param nBytes initial maximum size of the buffer. Can be changed using #setCapacityBytes
      * @throws IOException if the file already exists, or there is a problem reading it
      */
-    public ConcurrentFileByteFIFO(File file, int nBytes) throws IOException {
+    public ConcurrentFileByteFIFO(File file, long nBytes) throws IOException {
+        this(file, nBytes, Engine.RANDOM_ACCESS, CommitPolicy.EVERY_WRITE);
+    }
+
+    /**
+     * Create a new buffer using the given file to store it in, and given size, using a specific
+     * storage engine.
+     *
+     * @param file   the file to store the buffer in
+     * @param nBytes initial maximum size of the buffer. Can be changed using #setCapacityBytes
+     * @param engine storage engine to use
+     * @param policy when to force changes to disk
+     * @throws IOException if the file already exists, or there is a problem reading it
+     */
+    public ConcurrentFileByteFIFO(File file, long nBytes, Engine engine, CommitPolicy policy) throws IOException {
+        this(file, nBytes, engine, policy, false);
+    }
+
+    /**
+     * Create a new buffer using the given file to store it in, and given size, using a specific
+     * storage engine, and choosing whether it is framed, so that adds made after the last commit
+     * can be recovered after a crash.
+     *
+     * @param file   the file to store the buffer in
+     * @param nBytes initial maximum size of the buffer. Can be changed using #setCapacityBytes
+     * @param engine storage engine to use
+     * @param policy when to force changes to disk
+     * @param framed true to record every add in the frame table
+     * @throws IOException if the file already exists, or there is a problem reading it
+     */
+    public ConcurrentFileByteFIFO(File file, long nBytes, Engine engine, CommitPolicy policy, boolean framed) throws IOException {
         if (file.exists())
             throw new IOException(file + " already exists");
-        mRAF = new RandomAccessFile(file, "rwd");
+        mFile = file;
+        mEngine = engine;
+        mReadOnly = false;
+        mCommitPolicy = policy;
+        mStore = openStore(file);
+        mFramed = framed;
+        mHeaderBytes = framed ? FRAMED_HEADER_BYTES : HEADER_BYTES;
         mCapacity = nBytes;
         mReadPos = 0;
         mUsed = 0;
-        rewriteMeta();
+        mStore.setLength(mHeaderBytes + mCapacity);
+        commit(0);
     }
 
     /**
@@ -69,60 +240,355 @@ public class ConcurrentFileByteFIFO {
      *                     buffer file.
      */
     public ConcurrentFileByteFIFO(File file, boolean readOnly) throws IOException {
+        this(file, readOnly, Engine.RANDOM_ACCESS, CommitPolicy.EVERY_WRITE);
+    }
+
+    /**
+     * Open an existing buffer using a specific storage engine. A buffer in the original format
+     * is migrated to the current format, unless it is opened readOnly. A framed buffer opened
+     * for writing recovers the adds made after its last commit.
+     *
+     * @param file     the file containing the buffer
+     * @param readOnly if true, file will be opened for read only
+     * @param engine   storage engine to use
+     * @param policy   when to force changes to disk
+     * @throws IOException if the buffer file was not found, or could not be read, or was not a valid
+     *                     buffer file.
+     */
+    public ConcurrentFileByteFIFO(File file, boolean readOnly, Engine engine, CommitPolicy policy) throws IOException {
         if (!file.exists())
             throw new FileNotFoundException("Log buffer " + file + " does not exist");
-        if (file.length() < METABYTES)
+        if (file.length() < V1_HEADER_BYTES)
             throw new IOException("Log buffer " + file + " is empty");
-        mRAF = new RandomAccessFile(file, readOnly ? "r" : "rwd");
-        mRAF.seek(0);
-        mCapacity = mRAF.readInt();
-        mReadPos = mRAF.readInt();
-        mUsed = mRAF.readInt();
-        if (mCapacity <= 0)
-            throw new IOException(file + " max size is " + mCapacity);
+        mFile = file;
+        mEngine = engine;
+        mReadOnly = readOnly;
+        mCommitPolicy = policy;
+        mStore = openStore(file);
+        try {
+            Meta meta = readMeta();
+            mHeaderBytes = meta.headerBytes;
+            mCapacity = meta.capacity;
+            mReadPos = meta.readPos;
+            mUsed = meta.used;
+            mEndPosition = meta.endPosition;
+            mRecordFormat = meta.recordFormat;
+            mFramed = meta.framed;
+            mGeneration = meta.generation;
+        } catch (IOException ioe) {
+            mStore.close();
+            throw new IOException(file + ": " + ioe.getMessage());
+        }
+        mCommittedUsed = mUsed;
+        mLastCommitTime = System.currentTimeMillis();
+        if (readOnly)
+            return;
+        if (mHeaderBytes == V1_HEADER_BYTES)
+            migrate(mCapacity);
+        else {
+            if (file.length() < mHeaderBytes + mCapacity)
+                // Files written by RANDOM_ACCESS grow as they are written, but a mapping has to
+                // cover the whole buffer
+                mStore.setLength(mHeaderBytes + mCapacity);
+            if (mFramed) {
+                recoverFrames();
+                // Start a new generation, so frames left over from before the crash can't be
+                // mistaken for new ones
+                commit(0);
+            }
+        }
+    }
+
+    /**
+     * Determine if the buffer is framed, so that adds made after the last commit can be
+     * recovered after a crash
+     *
+     * @return true if the buffer is framed
+     */
+    public boolean isFramed() {
+        return mFramed;
+    }
+
+    // Replay the frames written since the last commit, extending the data by the adds they
+    // describe, up to the first that doesn't check out
+    private void recoverFrames() throws IOException {
+        byte[] frame = new byte[FRAME_BYTES];
+        ByteBuffer bb = ByteBuffer.wrap(frame);
+        byte[] data = new byte[0];
+        for (int slot = 0; slot < FRAME_SLOTS; slot++) {
+            mStore.read(HEADER_BYTES + (long) slot * FRAME_BYTES, frame, 0, FRAME_BYTES);
+            long end = bb.getLong(0);
+            int len = bb.getInt(Long.BYTES);
+            if (len <= 0 || end - len != mEndPosition || mUsed + len > mCapacity)
+                break;
+            if (data.length < len)
+                data = new byte[len];
+            long writePos = getWritePos();
+            int left = (int) Math.min(len, mCapacity - writePos);
+            mStore.read(mHeaderBytes + writePos, data, 0, left);
+            if (left < len)
+                mStore.read(mHeaderBytes, data, left, len - left);
+            if (bb.getInt(Long.BYTES + Integer.BYTES) != frameCRC(end, data, 0, len))
+                break;
+            mUsed += len;
+            mEndPosition = end;
+        }
+    }
+
+    // CRC32 of the bytes of an add, with the position they end at and the generation
+    private int frameCRC(long end, byte[] buf, int pos, int len) {
+        mFrame.clear();
+        mFrame.putLong(mGeneration);
+        mFrame.putLong(end);
+        mFrame.putInt(len);
+        mFrameCRC.reset();
+        mFrameCRC.update(mFrame.array(), 0, mFrame.position());
+        mFrameCRC.update(buf, pos, len);
+        return (int) mFrameCRC.getValue();
+    }
+
+    // Record the add that has just been made in the frame table
+    private void writeFrame(byte[] buf, int pos, int len) throws IOException {
+        int crc = frameCRC(mEndPosition, buf, pos, len);
+        ByteBuffer bb = ByteBuffer.allocate(FRAME_BYTES);
+        bb.putLong(mEndPosition);
+        bb.putInt(len);
+        bb.putInt(crc);
+        mStore.write(HEADER_BYTES + (long) mFrames * FRAME_BYTES, bb.array(), 0, FRAME_BYTES);
+        mFrames++;
+    }
+
+    private FileStore openStore(File file) throws IOException {
+        if (mEngine == Engine.MAPPED)
+            return new MappedFileStore(file, mReadOnly);
+        return new ChannelFileStore(file, mReadOnly ? "r" : "rw");
+    }
+
+    /**
+     * Set the size of the records written to the buffer. Commits and crash recovery will
+     * never split a record. The start and end of the data are aligned to whole records,
+     * as described for crash recovery. Call it before using the buffer.
+     *
+     * @param nBytes record size
+     */
+    @Override // ByteFIFO
+    public synchronized void setRecordBytes(int nBytes) {
+        mRecordBytes = nBytes;
+        long partial = getStartPosition() % nBytes;
+        if (partial != 0) {
+            // Skip the remains of a torn record
+            long skip = Math.min(mUsed, nBytes - partial);
+            mReadPos = mod(mReadPos + skip);
+            mUsed -= skip;
+        }
+        long torn = mUsed % nBytes;
+        mUsed -= torn;
+        mEndPosition -= torn;
+    }
+
+    /**
+     * Get the format of the records in the buffer. The buffer doesn't interpret this, it just
+     * keeps it in the header for the user of the buffer. See #setRecordFormat
+     *
+     * @return the record format, 0 if it has never been set, or the file is in the original format
+     */
+    @Override // ByteFIFO
+    public synchronized int getRecordFormat() {
+        return mRecordFormat;
+    }
+
+    /**
+     * Set the format of the records in the buffer, and commit it. Cannot be used in readOnly
+     * mode.
+     *
+     * @param format the record format
+     * @throws IOException if there's a problem writing the buffer file
+     */
+    @Override // ByteFIFO
+    public synchronized void setRecordFormat(int format) throws IOException {
+        if (mStore == null)
+            throw new IOException("Buffer is closed");
+        mRecordFormat = format;
+        commit(getSlack());
+    }
+
+    /**
+     * Change the commit policy
+     *
+     * @param policy the new policy
+     */
+    @Override // ByteFIFO
+    public synchronized void setCommitPolicy(CommitPolicy policy) {
+        mCommitPolicy = policy;
+    }
+
+    // Read the header from the file. A writer in another instance may be rewriting it, so keep
+    // reading until a read checks out.
+    private Meta readMeta() throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        byte[] check = new byte[V1_HEADER_BYTES];
+        ByteBuffer bb = ByteBuffer.wrap(header);
+        Meta meta = new Meta();
+        for (int tries = 0; ; tries++) {
+            if (tries == MAX_META_READS)
+                throw new IOException("header is corrupt, or changing too fast to read");
+            mStore.read(0, header, 0, Integer.BYTES);
+            if (bb.getInt(0) == MAGIC) {
+                mStore.read(0, header, 0, HEADER_BYTES);
+                if (bb.getInt(CRC_OFFSET) != crc(header))
+                    continue;
+                int format = bb.getInt(Integer.BYTES);
+                if (format != FORMAT && format != FRAMED_FORMAT)
+                    throw new IOException("unsupported format " + format);
+                meta.framed = format == FRAMED_FORMAT;
+                meta.headerBytes = meta.framed ? FRAMED_HEADER_BYTES : HEADER_BYTES;
+                bb.position(2 * Integer.BYTES);
+                meta.capacity = bb.getLong();
+                meta.readPos = bb.getLong();
+                meta.used = bb.getLong();
+                meta.endPosition = bb.getLong();
+                meta.recordFormat = bb.getInt();
+                meta.generation = bb.getLong();
+            } else {
+                // Original format, which has no checksum, so read it until two reads agree
+                mStore.read(0, header, 0, V1_HEADER_BYTES);
+                mStore.read(0, check, 0, V1_HEADER_BYTES);
+                if (!Arrays.equals(check, Arrays.copyOf(header, V1_HEADER_BYTES)))
+                    continue;
+                meta.headerBytes = V1_HEADER_BYTES;
+                bb.position(0);
+                meta.capacity = bb.getInt();
+                meta.readPos = bb.getInt();
+                meta.used = bb.getInt();
+                // Make logical positions match offsets in the file, so records are aligned
+                meta.endPosition = meta.readPos + meta.used;
+            }
+            break;
+        }
+        if (meta.capacity <= 0 || meta.readPos < 0 || meta.readPos >= meta.capacity
+                || meta.used < 0 || meta.used > meta.capacity || meta.endPosition < meta.used)
+            throw new IOException("bad header " + meta.capacity + "," + meta.readPos + "," + meta.used
+                    + "," + meta.endPosition);
+        return meta;
+    }
+
+    // Bring a readOnly buffer up to date with the header last committed by the writer
+    private void refreshMeta() throws IOException {
+        Meta meta = readMeta();
+        if (meta.capacity != mCapacity)
+            // Resized; the bytes have all moved
+            mVersion++;
+        if (mHeaderBytes != V1_HEADER_BYTES)
+            mEndPosition = meta.endPosition;
+        else if (meta.capacity != mCapacity)
+            // None of the old positions mean anything now
+            mEndPosition += mCapacity + meta.used;
+        else
+            // Assume the end has moved by less than a whole buffer
+            mEndPosition += mod(mCapacity + meta.readPos + meta.used - getWritePos());
+        mCapacity = meta.capacity;
+        mReadPos = meta.readPos;
+        mUsed = meta.used;
+        mRecordFormat = meta.recordFormat;
+        if (mRecordBytes > 1)
+            setRecordBytes(mRecordBytes);
     }
 
-    // Update the meta block in the file
-    private void rewriteMeta() throws IOException {
-        mRAF.seek(0);
-        mRAF.writeInt(mCapacity);
-        mRAF.writeInt(mReadPos);
-        mRAF.writeInt(mUsed);
+    // CRC32 of a header, excluding the CRC itself
+    private static int crc(byte[] header) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, CRC_OFFSET);
+        return (int) crc.getValue();
     }
 
-    // A seek beyond the end will go to the end
-    private void go_to(int offset) throws IOException {
-        mRAF.seek(METABYTES + offset);
+    // Write a header in the current format
+    private static void writeMeta(FileStore store, long capacity, long readPos, long used, long endPosition,
+                                  int recordFormat, boolean framed, long generation) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_BYTES);
+        bb.putInt(MAGIC);
+        bb.putInt(framed ? FRAMED_FORMAT : FORMAT);
+        bb.putLong(capacity);
+        bb.putLong(readPos);
+        bb.putLong(used);
+        bb.putLong(endPosition);
+        bb.putInt(recordFormat);
+        bb.putLong(generation);
+        bb.putInt(CRC_OFFSET, crc(bb.array()));
+        store.write(0, bb.array(), 0, HEADER_BYTES);
+    }
+
+    /**
+     * Commit the current state to disk. The committed header will not claim any bytes that
+     * will be overwritten by the next reserve bytes written.
+     *
+     * @param reserve number of bytes to leave room for
+     */
+    private void commit(long reserve) throws IOException {
+        mStore.force();
+        long readPos = mReadPos;
+        long used = mUsed;
+        long drop = used + reserve - mCapacity;
+        if (drop > 0) {
+            drop = Math.min(used, (drop + mRecordBytes - 1) / mRecordBytes * mRecordBytes);
+            readPos = mod(readPos + drop);
+            used -= drop;
+        }
+        writeMeta(mStore, mCapacity, readPos, used, mEndPosition, mRecordFormat, mFramed, ++mGeneration);
+        mStore.force();
+        mFrames = 0;
+        mCommittedUsed = used;
+        mBytesSinceCommit = 0;
+        mRecordsSinceCommit = 0;
+        mLastCommitTime = System.currentTimeMillis();
+    }
+
+    // Bytes given up by a regular commit when the buffer is full
+    private long getSlack() {
+        long slack = mCapacity / SLACK_DIVISOR;
+        return Math.max(mRecordBytes, slack - slack % mRecordBytes);
+    }
+
+    // Note a change of len bytes, and commit if the policy says so
+    private void noteChange(int len) throws IOException {
+        mRecordsSinceCommit += Math.max(1, len / mRecordBytes);
+        if (mCommitPolicy.mustCommit(mRecordsSinceCommit, System.currentTimeMillis() - mLastCommitTime))
+            commit(getSlack());
     }
 
     // Constrain p to be within the max size of the buffer
-    private int mod(int p) {
+    private long mod(long p) {
         return p % mCapacity;
     }
 
-    private int getWritePos() {
+    private long getWritePos() {
         return mod(mReadPos + mUsed);
     }
 
     private void _write(byte[] buf, int pos, int len) throws IOException {
         if (len <= 0 || pos < 0 || buf == null || pos > buf.length - len)
             throw new IllegalArgumentException("Bad args");
-        if (buf.length > mCapacity)
+        if (len > mCapacity)
             throw new BufferOverflowException();
 
+        // Make sure the committed header doesn't claim any of the bytes we're about to write
+        if (mCommittedUsed > 0 && mCommittedUsed + mBytesSinceCommit + len > mCapacity)
+            commit(len + getSlack());
+        mBytesSinceCommit += len;
+        mEndPosition += len;
+
         // See how much space is available. We might stomp the mReadPos but that's OK, it has to move anyway.
-        int writePos = getWritePos();
-        int available = mCapacity - writePos;
+        long writePos = getWritePos();
+        long available = mCapacity - writePos;
 
         if (available < len) {
             // We're going to have to wrap
-            go_to(writePos);
-            // If we are going to overrun the read pointer, shift it
-            if (mReadPos > writePos) {
-                mUsed -= mReadPos - writePos;
+            // If we are going to overrun the read pointer, shift it. The oldest bytes, from
+            // mReadPos to the end of the file, are overwritten.
+            if (mReadPos > writePos || (mReadPos == writePos && mUsed > 0)) {
+                mUsed -= mCapacity - mReadPos;
                 mReadPos = 0;
             }
-            mRAF.write(buf, pos, available);
+            mStore.write(mHeaderBytes + writePos, buf, pos, (int) available);
             mUsed += available;
             pos += available;
             len -= available;
@@ -133,8 +599,7 @@ public class ConcurrentFileByteFIFO {
             mUsed -= writePos + len - mReadPos;
             mReadPos = mod(writePos + len);
         }
-        go_to(writePos);
-        mRAF.write(buf, pos, len);
+        mStore.write(mHeaderBytes + writePos, buf, pos, len);
         mUsed += len;
     }
 
@@ -142,80 +607,164 @@ public class ConcurrentFileByteFIFO {
         if (len <= 0 || pos < 0 || buf == null)
             throw new IllegalArgumentException("Bad args");
 
-        int nBytes = Math.min(mUsed, Math.min(len, buf.length - pos));
-        int left = Math.min(nBytes, mCapacity - mReadPos);
-        go_to(mReadPos);
-        mRAF.read(buf, pos, left);
+        int nBytes = (int) Math.min(mUsed, Math.min(len, buf.length - pos));
+        int left = (int) Math.min(nBytes, mCapacity - mReadPos);
+        mStore.read(mHeaderBytes + mReadPos, buf, pos, left);
         mReadPos = mod(mReadPos + left);
         if (left < nBytes) {
             pos += left;
-            go_to(0);
-            mRAF.read(buf, pos, nBytes - left);
-            mReadPos = left;
+            mStore.read(mHeaderBytes, buf, pos, nBytes - left);
+            mReadPos = nBytes - left;
         }
         mUsed -= nBytes;
         return nBytes;
     }
 
-    private int _skip(int len) {
-        if (len > mUsed)
-            throw new BufferUnderflowException();
-
-        int nBytes = Math.min(mUsed, len);
-        int left = Math.min(nBytes, mCapacity - mReadPos);
-        mReadPos = mod(mReadPos + left);
-        if (left < nBytes)
-            mReadPos = left;
-        mUsed -= nBytes;
-        return nBytes;
-    }
-
     /**
      * Get the current usage of the log
      *
      * @return the used size in bytes
      */
-    public int getUsedBytes() {
+    @Override // ByteFIFO
+    public synchronized long getUsedBytes() {
         return mUsed;
     }
 
+    /**
+     * Get the logical position of the oldest byte in the buffer. Logical positions only ever
+     * increase: adding bytes advances the end position, and removing or discarding them advances
+     * the start. They are stored in the header, so they carry on from one session to the next,
+     * and are the same for every instance that opens the file.
+     *
+     * @return the position of the oldest byte
+     */
+    @Override // ByteFIFO
+    public synchronized long getStartPosition() {
+        return mEndPosition - mUsed;
+    }
+
+    /**
+     * Get the logical position just after the newest byte in the buffer. See #getStartPosition
+     *
+     * @return the position the next byte added will have
+     */
+    @Override // ByteFIFO
+    public synchronized long getEndPosition() {
+        return mEndPosition;
+    }
+
     /**
      * Get the current max size of the log
      *
      * @return the max size in bytes; the log should never be bigger than this
      */
-    public int getCapacityBytes() {
+    @Override // ByteFIFO
+    public synchronized long getCapacityBytes() {
         return mCapacity;
     }
 
     /**
      * Resize the buffer. Note that the size must be bigger than the largest byte[] that will
      * ever be written to the buffer, or you will get buffer overflow errors. If the new size is
-     * less than the currently used capacity of the buffer, then data will be lost from the
-     * buffer in an unstructured (byte by byte) way. Cannot be used in readOnly mode
+     * less than the currently used capacity of the buffer, then the oldest data is discarded.
+     * Cannot be used in readOnly mode.
+     * <p>
+     * If the data has to be moved, it is migrated to a new file a chunk at a time, so memory use
+     * is bounded and adds and snapshots can carry on from other threads. This can take a while
+     * for a big buffer, so don't call it from a thread that mustn't block.
      *
-     * @param newCapacity new size in samples
+     * @param newCapacity new size in bytes
      * @throws IOException if there's a problem reading/writing the buffer file
      */
-    public synchronized void setCapacityBytes(int newCapacity) throws IOException {
+    @Override // ByteFIFO
+    public void setCapacityBytes(long newCapacity) throws IOException {
         if (newCapacity <= 0)
             throw new IllegalArgumentException("Cannot set 0 capacity");
-        int writePos = getWritePos();
-        if (mReadPos <= writePos && writePos < newCapacity) {
-            mCapacity = newCapacity;
-            return;
+        synchronized (mResizeLock) {
+            synchronized (this) {
+                if (mStore == null)
+                    throw new IOException("Buffer is closed");
+                if (mReadPos + mUsed <= mCapacity && mReadPos + mUsed <= newCapacity) {
+                    // Data doesn't wrap, and will still fit
+                    mVersion++;
+                    mCapacity = newCapacity;
+                    mStore.setLength(mHeaderBytes + mCapacity);
+                    commit(getSlack());
+                    return;
+                }
+            }
+            migrate(newCapacity);
         }
-        if (mUsed > newCapacity) {
-            // Shrinking, discard
-            _skip(mUsed - newCapacity);
+    }
+
+    // Migrate the data to a new file with the given capacity, and swap it in
+    private void migrate(long newCapacity) throws IOException {
+        File temp = new File(mFile.getPath() + MIGRATE_SUFFIX);
+        if (temp.exists() && !temp.delete())
+            throw new IOException("Can't delete " + temp);
+        FileStore store = openStore(temp);
+        int headerBytes = mFramed ? FRAMED_HEADER_BYTES : HEADER_BYTES;
+        try {
+            store.setLength(headerBytes + newCapacity);
+            // Logical position of the byte at the start of the new file
+            long base;
+            synchronized (this) {
+                base = Math.max(getStartPosition(), mEndPosition - newCapacity);
+            }
+            byte[] chunk = new byte[MIGRATE_CHUNK_BYTES - MIGRATE_CHUNK_BYTES % mRecordBytes];
+            long copied = base;
+
+            // Copy without the lock until we've nearly caught up with the adds
+            while (getEndPosition() - copied > chunk.length)
+                copied = migrateChunk(store, headerBytes, newCapacity, base, copied, chunk);
+
+            synchronized (this) {
+                while (copied < mEndPosition)
+                    copied = migrateChunk(store, headerBytes, newCapacity, base, copied, chunk);
+                long start = Math.max(getStartPosition(), mEndPosition - newCapacity);
+                long readPos = (start - base) % newCapacity;
+                long used = mEndPosition - start;
+                store.force();
+                // The frames in the new file's table are all empty, so any generation will do
+                writeMeta(store, newCapacity, readPos, used, mEndPosition, mRecordFormat, mFramed, mGeneration);
+                store.force();
+                if (!temp.renameTo(mFile))
+                    throw new IOException("Can't rename " + temp + " to " + mFile);
+                // Swap in the new file. Unlocked readers will see the version change and retry.
+                mVersion++;
+                FileStore old = mStore;
+                mStore = store;
+                mHeaderBytes = headerBytes;
+                mCapacity = newCapacity;
+                mReadPos = readPos;
+                mUsed = used;
+                old.close();
+                commit(getSlack());
+            }
+        } finally {
+            if (temp.exists()) {
+                // Failed before the swap
+                store.close();
+                temp.delete();
+            }
         }
-        byte[] buf = new byte[mUsed];
-        _read(buf, 0, mUsed);
-        mReadPos = 0;
-        mUsed = 0;
-        mCapacity = newCapacity;
-        mRAF.setLength(mCapacity); // truncate (or extend)
-        add(buf, 0, buf.length); // will rewriteMeta
+    }
+
+    // Copy a chunk starting at logical position from to the new file, skipping anything that has
+    // been discarded meanwhile. Returns the position after the chunk.
+    private long migrateChunk(FileStore store, int headerBytes, long capacity, long base, long from, byte[] chunk) throws IOException {
+        int n;
+        try {
+            n = snapshot(from, chunk, 0, chunk.length);
+        } catch (BufferUnderflowException bue) {
+            return getStartPosition();
+        }
+        long offset = (from - base) % capacity;
+        int left = (int) Math.min(n, capacity - offset);
+        store.write(headerBytes + offset, chunk, 0, left);
+        if (left < n)
+            store.write(headerBytes, chunk, left, n - left);
+        return from + n;
     }
 
     /**
@@ -228,9 +777,10 @@ public class ConcurrentFileByteFIFO {
      * @throws IOException              if there's an error reading/writing the file
      * @throws BufferUnderflowException if there isn't enough data in the buffer to complete the read
      */
+    @Override // ByteFIFO
     public synchronized int remove(byte[] buf, int pos, int len) throws IOException {
         int r = _read(buf, pos, len);
-        rewriteMeta();
+        noteChange(r);
         return r;
     }
 
@@ -243,9 +793,14 @@ public class ConcurrentFileByteFIFO {
      * @throws IOException             if there's a problem reading/writing the buffer file
      * @throws BufferOverflowException if you are trying to write more than the buffer can hold
      */
+    @Override // ByteFIFO
     public synchronized void add(byte[] buf, int pos, int len) throws IOException {
+        if (mFramed && mFrames == FRAME_SLOTS)
+            commit(getSlack());
         _write(buf, pos, len);
-        rewriteMeta();
+        if (mFramed)
+            writeFrame(buf, pos, len);
+        noteChange(len);
     }
 
     /**
@@ -255,47 +810,169 @@ public class ConcurrentFileByteFIFO {
      * @throws IOException             if there's a problem reading/writing the buffer file
      * @throws BufferOverflowException if you are trying to write more than the buffer can hold
      */
+    @Override // ByteFIFO
     public synchronized void add(byte[] buf) throws IOException {
-        _write(buf, 0, buf.length);
-        rewriteMeta();
+        add(buf, 0, buf.length);
+    }
+
+    /**
+     * Commit any uncommitted changes if the CommitPolicy says they are due. Policies are
+     * normally only consulted when the buffer changes; this lets a time-based policy be honoured
+     * when the changes stop.
+     *
+     * @throws IOException if there's a problem writing the buffer file
+     */
+    @Override // ByteFIFO
+    public synchronized void commitIfDue() throws IOException {
+        if (mRecordsSinceCommit > 0
+                && mCommitPolicy.mustCommit(mRecordsSinceCommit, System.currentTimeMillis() - mLastCommitTime))
+            commit(getSlack());
     }
 
     /**
-     * Close the log, freeing any resources. This will make the log unusable.
+     * Commit all changes made so far to disk, whatever the CommitPolicy. Unlike a regular
+     * commit, this records the exact state of the buffer.
+     *
+     * @throws IOException if there's a problem writing the buffer file
+     */
+    @Override // ByteFIFO
+    public synchronized void flush() throws IOException {
+        if (!mReadOnly)
+            commit(0);
+    }
+
+    /**
+     * Close the log, flushing and freeing any resources. This will make the log unusable.
      *
      * @throws IOException if there's a problem reading/writing the buffer file
      */
+    @Override // ByteFIFO
     public synchronized void close() throws IOException {
-        mRAF.close();
-        mRAF = null;
+        flush();
+        mStore.close();
+        mStore = null;
     }
 
     /**
-     * Non-destructive read. Does not alter the buffer contents. This is the only way to retrieve
-     * buffer contents when it has been opened readOnly.
+     * Non-destructive read of the newest bytes. Does not alter the buffer contents. This is the
+     * only way to retrieve buffer contents when it has been opened readOnly.
      *
      * @param buf byte buffer to fill with bytes
      * @param pos position in buf to start writing
      * @param len maximum number of bytes to return
      * @return the number of bytes read
+     * @throws IOException if there's a problem accessing the underlying file
      */
-    public synchronized int snapshot(byte[] buf, int pos, int len) throws IOException {
+    @Override // ByteFIFO
+    public int snapshot(byte[] buf, int pos, int len) throws IOException {
         if (pos + len > buf.length)
             throw new BufferOverflowException(); // overflowing output buffer
-        int nBytes = Math.min(len, mUsed);
-        // Get the read cursor at the beginning of required segment
-        int snapPos = mod(mCapacity + mReadPos + mUsed - nBytes);
-        int left = Math.min(nBytes, mCapacity - snapPos);
-        if (left == 0)
-            return 0;
-        go_to(snapPos);
-        mRAF.read(buf, pos, left);
-        // Read forward from 0
-        if (left < nBytes) {
-            mRAF.seek(METABYTES);
-            mRAF.read(buf, pos + left, mUsed - left);
+        ByteBuffer dst = ByteBuffer.wrap(buf, pos, len);
+        while (true) {
+            long from;
+            synchronized (this) {
+                if (mReadOnly)
+                    refreshMeta();
+                from = mEndPosition - Math.min(len, mUsed);
+            }
+            try {
+                return snapshot(from, dst);
+            } catch (BufferUnderflowException bue) {
+                // Overtaken by an add while reading; try again with the new newest bytes
+                dst.position(pos);
+            }
         }
-        return nBytes;
     }
-}
 
+    /**
+     * Non-destructive read from a logical position. Used to read the buffer in chunks, without
+     * the chunks being disturbed by bytes added meanwhile. See #getStartPosition
+     *
+     * @param from logical position of the first byte to read
+     * @param buf  byte buffer to fill with bytes
+     * @param pos  position in buf to start writing
+     * @param len  maximum number of bytes to return
+     * @return the number of bytes read, 0 if from is at or beyond the end of the data
+     * @throws BufferUnderflowException if the byte at from has already been removed or discarded,
+     *                                  or was discarded while it was being read
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    @Override // ByteFIFO
+    public int snapshot(long from, byte[] buf, int pos, int len) throws IOException {
+        if (pos + len > buf.length)
+            throw new BufferOverflowException(); // overflowing output buffer
+        return snapshot(from, ByteBuffer.wrap(buf, pos, len));
+    }
+
+    /**
+     * Non-destructive read from a logical position into a ByteBuffer, which may be direct. Bytes
+     * are read from the file into the buffer without any intermediate copies. See
+     * #snapshot(long, byte[], int, int)
+     *
+     * @param from logical position of the first byte to read
+     * @param dst  buffer to fill, from its position up to its limit. Its position is advanced
+     *             past the bytes read.
+     * @return the number of bytes read, 0 if from is at or beyond the end of the data
+     * @throws BufferUnderflowException if the byte at from has already been removed or discarded,
+     *                                  or was discarded while it was being read
+     * @throws IOException if there's a problem accessing the underlying file
+     */
+    @Override // ByteFIFO
+    public int snapshot(long from, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int limit = dst.limit();
+        while (true) {
+            int version, nBytes, left, headerBytes;
+            long filePos;
+            FileStore store;
+            synchronized (this) {
+                if (mStore == null)
+                    throw new IOException("Buffer is closed");
+                if (mReadOnly)
+                    refreshMeta();
+                long offset = from - (mEndPosition - mUsed);
+                if (offset < 0)
+                    throw new BufferUnderflowException();
+                if (offset >= mUsed)
+                    return 0;
+                nBytes = (int) Math.min(limit - start, mUsed - offset);
+                filePos = mod(mReadPos + offset);
+                left = (int) Math.min(nBytes, mCapacity - filePos);
+                version = mVersion;
+                store = mStore;
+                headerBytes = mHeaderBytes;
+            }
+
+            // Read without the lock
+            IOException failed = null;
+            try {
+                dst.limit(start + left);
+                store.read(headerBytes + filePos, dst);
+                if (left < nBytes) {
+                    dst.limit(start + nBytes);
+                    store.read(headerBytes, dst);
+                }
+            } catch (IOException ioe) {
+                // May be because a resize moved the bytes
+                failed = ioe;
+            } finally {
+                dst.limit(limit);
+            }
+
+            synchronized (this) {
+                if (mReadOnly)
+                    refreshMeta();
+                if (version == mVersion) {
+                    if (failed != null)
+                        throw failed;
+                    if (from < mEndPosition - mUsed)
+                        // Discarded while we were reading, so may have been overwritten
+                        throw new BufferUnderflowException();
+                    return nBytes;
+                }
+            }
+            // Resized while we were reading, try again
+            dst.position(start);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free FIFO of object references for passing items from exactly one producer
+ * thread to exactly one consumer thread. Neither side ever blocks; when the FIFO is full #offer
+ * fails and the producer decides what to do with the item.
+ * <p>
+ * Each side owns one counter, so the only cross-thread traffic is one ordered store per item on
+ * each side. Slots are cleared by the consumer so the FIFO doesn't pin items it has passed on.
+ *
+ * @param <T> type of item passed
+ */
+public class ConcurrentRingFIFO<T> {
+    // Ring storage, length is a power of two
+    private final Object[] mSlots;
+    private final int mMask;
+    // Total number of items ever added. Written only by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+    // Total number of items ever removed. Written only by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Producer's cached copy of mHead, refreshed only when the ring looks full
+    private long mHeadCache = 0;
+
+    /**
+     * Construct a new FIFO
+     *
+     * @param capacity minimum number of items the FIFO can hold; rounded up to a power of two
+     */
+    public ConcurrentRingFIFO(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mSlots = new Object[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Get the maximum number of items the FIFO can hold
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * Get the number of items currently in the FIFO. Only approximate if the other side is active.
+     *
+     * @return the number of items
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Test if the FIFO is empty. Only approximate if the other side is active.
+     *
+     * @return true if there is nothing to remove
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * Add an item. Must only be called from the producer thread.
+     *
+     * @param item the item to add, must not be null
+     * @return false if the FIFO is full and the item was not added
+     */
+    public boolean offer(T item) {
+        long tail = mTail.get();
+        if (tail - mHeadCache >= mSlots.length) {
+            mHeadCache = mHead.get();
+            if (tail - mHeadCache >= mSlots.length)
+                return false;
+        }
+        mSlots[(int) tail & mMask] = item;
+        // Volatile store, so it is ordered both after the slot write and before any subsequent
+        // volatile read the producer uses to decide whether to wake the consumer
+        mTail.set(tail + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest item. Must only be called from the consumer thread.
+     *
+     * @return the item, or null if the FIFO is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long head = mHead.get();
+        if (head == mTail.get())
+            return null;
+        int i = (int) head & mMask;
+        T item = (T) mSlots[i];
+        mSlots[i] = null;
+        mHead.lazySet(head + 1);
+        return item;
+    }
+
+    /**
+     * Remove up to len of the oldest items in one go. Must only be called from the consumer
+     * thread.
+     *
+     * @param buf array to receive the items, oldest first
+     * @param pos position in buf to start writing
+     * @param len maximum number of items to remove
+     * @return the number of items removed, 0 if the FIFO is empty
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(T[] buf, int pos, int len) {
+        long head = mHead.get();
+        int n = (int) Math.min(len, mTail.get() - head);
+        for (int k = 0; k < n; k++) {
+            int i = (int) (head + k) & mMask;
+            buf[pos + k] = (T) mSlots[i];
+            mSlots[i] = null;
+        }
+        if (n > 0)
+            mHead.lazySet(head + n);
+        return n;
+    }
+}
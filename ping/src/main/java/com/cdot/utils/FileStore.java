@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the file underlying a ConcurrentFileByteFIFO. Offsets are absolute byte
+ * offsets in the file, including the metadata block.
+ */
+interface FileStore {
+
+    /**
+     * Read exactly len bytes from the file
+     *
+     * @param offset file offset to read from
+     * @param buf    buffer to read into
+     * @param pos    index in buf
+     * @param len    number of bytes to read
+     * @throws IOException if the bytes could not all be read
+     */
+    void read(long offset, byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Read exactly dst.remaining() bytes from the file into a ByteBuffer, advancing its position
+     *
+     * @param offset file offset to read from
+     * @param dst    buffer to read into
+     * @throws IOException if the bytes could not all be read
+     */
+    void read(long offset, ByteBuffer dst) throws IOException;
+
+    /**
+     * Write len bytes to the file
+     *
+     * @param offset file offset to write at
+     * @param buf    buffer to write from
+     * @param pos    index in buf
+     * @param len    number of bytes to write
+     * @throws IOException if there's a problem writing the file
+     */
+    void write(long offset, byte[] buf, int pos, int len) throws IOException;
+
+    /**
+     * Truncate or extend the file
+     *
+     * @param length new length of the file, in bytes
+     * @throws IOException if there's a problem resizing the file
+     */
+    void setLength(long length) throws IOException;
+
+    /**
+     * Make sure everything written so far has reached the device
+     *
+     * @throws IOException if there's a problem writing the file
+     */
+    void force() throws IOException;
+
+    /**
+     * Release all resources. The store is unusable after this.
+     *
+     * @throws IOException if there's a problem closing the file
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram. Values are counted in log-linear
+ * buckets: exact up to 64, then 32 buckets for each power of 2, so any value is reported to
+ * within about 3% whatever its size. Recording is allocation-free and lock-free, so it can be
+ * done from any thread on the paths being measured.
+ */
+public class LatencyHistogram {
+    // Values below 2^SUB_BITS are counted exactly
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Buckets for each power of 2 above SUB_COUNT
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    // Enough buckets for any positive long
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * HALF_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong(); // values recorded
+    private final AtomicLong mSum = new AtomicLong(); // sum of the values recorded
+    private final AtomicLong mMax = new AtomicLong(); // largest value recorded
+
+    // Get the bucket for a value
+    static int bucket(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int bit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = bit - SUB_BITS + 1;
+        return SUB_COUNT + (bit - SUB_BITS) * HALF_COUNT + (int) (value >> shift) - HALF_COUNT;
+    }
+
+    // Get the largest value counted in a bucket
+    static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int k = bucket - SUB_COUNT;
+        int shift = k / HALF_COUNT + 1;
+        long mantissa = k % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value the value, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mCounts.incrementAndGet(bucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) ;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * @return the largest value recorded, 0 if none have been
+     */
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if none have been
+     */
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * Get the value that the given percentage of the values recorded are at or below. Reported
+     * values are the top of the bucket the value was counted in, so may be up to 3% high.
+     *
+     * @param percentile percentage 0..100
+     * @return the value, 0 if none have been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= wanted)
+                return Math.min(highestValue(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Forget all the values recorded. Values recorded by other threads while this is happening
+     * may be partly forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Summarise the histogram for a report, with values in nanoseconds shown as milliseconds
+     *
+     * @return count, mean, 50th, 90th, 99th and 99.9th percentiles, and max
+     */
+    public String summariseNanos() {
+        return String.format(Locale.US, "n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f ms",
+                getCount(), getMean() / 1e6,
+                getValueAtPercentile(50) / 1e6, getValueAtPercentile(90) / 1e6,
+                getValueAtPercentile(99) / 1e6, getValueAtPercentile(99.9) / 1e6,
+                getMax() / 1e6);
+    }
+}
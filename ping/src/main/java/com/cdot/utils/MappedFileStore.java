@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * FileStore that memory maps the file, so reads and writes are just memory copies. The file is
+ * mapped in fixed-size windows, only a few of which are kept mapped at any one time, so very
+ * large files don't exhaust the address space. Dirty pages reach the disk whenever the OS feels
+ * like it, or when force() is called.
+ * <p>
+ * Reads and writes may run concurrently, but touching a mapping beyond the end of the file is
+ * fatal, so they are kept out of the way of anything that changes the length of the file.
+ */
+class MappedFileStore implements FileStore {
+
+    // Size of each mapped window
+    static final int WINDOW_BYTES = 16 * 1024 * 1024;
+    // Maximum number of windows kept mapped at once
+    private static final int MAX_WINDOWS = 4;
+
+    private final RandomAccessFile mRAF;
+    private final FileChannel mChannel;
+    private final boolean mReadOnly;
+    // Windows currently mapped, indexed by window number, least recently used first. A dropped
+    // window is unmapped when it is garbage collected; any changes in it are already in the page
+    // cache, so nothing is lost. It isn't forced, which would hold up readers, and sync whenever
+    // the log moved into a new window whatever the commit policy; force() syncs the file,
+    // including those changes, when the policy says so.
+    private final Map<Long, MappedByteBuffer> mWindows = new LinkedHashMap<Long, MappedByteBuffer>(MAX_WINDOWS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_WINDOWS;
+        }
+    };
+    // Length of the file. Windows are never mapped beyond this, because mapping read-write past
+    // the end of a file extends it.
+    private long mLength;
+    // Read locked while copying to or from a mapping, write locked while resizing
+    private final ReadWriteLock mResizeLock = new ReentrantReadWriteLock();
+
+    /**
+     * @param file     the file to map
+     * @param readOnly true to map the file read-only
+     * @throws IOException if the file can't be opened
+     */
+    MappedFileStore(File file, boolean readOnly) throws IOException {
+        mRAF = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        mChannel = mRAF.getChannel();
+        mReadOnly = readOnly;
+        mLength = mChannel.size();
+    }
+
+    // Get a buffer positioned at offset in the file, with at most len bytes remaining before
+    // the end of the window that contains the offset
+    private ByteBuffer at(long offset, int len) throws IOException {
+        long index = offset / WINDOW_BYTES;
+        int inWindow = (int) (offset % WINDOW_BYTES);
+        MappedByteBuffer w;
+        synchronized (mWindows) {
+            w = mWindows.get(index);
+            if (w == null || w.capacity() <= inWindow) {
+                long start = index * WINDOW_BYTES;
+                if (mReadOnly && offset >= mLength)
+                    // Another process may have extended the file since we last looked
+                    mLength = mChannel.size();
+                if (offset >= mLength)
+                    throw new EOFException("Offset " + offset + " is past the end of the file");
+                w = mChannel.map(mReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                        start, Math.min(WINDOW_BYTES, mLength - start));
+                mWindows.put(index, w);
+            }
+        }
+        ByteBuffer b = w.duplicate();
+        b.position(inWindow);
+        b.limit(Math.min(w.capacity(), inWindow + len));
+        return b;
+    }
+
+    @Override // FileStore
+    public void read(long offset, byte[] buf, int pos, int len) throws IOException {
+        mResizeLock.readLock().lock();
+        try {
+            while (len > 0) {
+                ByteBuffer b = at(offset, len);
+                int n = b.remaining();
+                b.get(buf, pos, n);
+                offset += n;
+                pos += n;
+                len -= n;
+            }
+        } finally {
+            mResizeLock.readLock().unlock();
+        }
+    }
+
+    @Override // FileStore
+    public void read(long offset, ByteBuffer dst) throws IOException {
+        mResizeLock.readLock().lock();
+        try {
+            while (dst.hasRemaining()) {
+                ByteBuffer b = at(offset, dst.remaining());
+                offset += b.remaining();
+                dst.put(b);
+            }
+        } finally {
+            mResizeLock.readLock().unlock();
+        }
+    }
+
+    @Override // FileStore
+    public void write(long offset, byte[] buf, int pos, int len) throws IOException {
+        mResizeLock.readLock().lock();
+        try {
+            if (offset + len > mLength)
+                throw new EOFException("Write past the end of the file at " + offset);
+            while (len > 0) {
+                ByteBuffer b = at(offset, len);
+                int n = b.remaining();
+                b.put(buf, pos, n);
+                offset += n;
+                pos += n;
+                len -= n;
+            }
+        } finally {
+            mResizeLock.readLock().unlock();
+        }
+    }
+
+    @Override // FileStore
+    public void setLength(long length) throws IOException {
+        mResizeLock.writeLock().lock();
+        try {
+            synchronized (mWindows) {
+                // Touching a mapping beyond the end of a truncated file is fatal, so drop them all
+                force();
+                mWindows.clear();
+                mRAF.setLength(length);
+                mLength = length;
+            }
+        } finally {
+            mResizeLock.writeLock().unlock();
+        }
+    }
+
+    @Override // FileStore
+    public void force() throws IOException {
+        if (mReadOnly)
+            return;
+        synchronized (mWindows) {
+            for (MappedByteBuffer w : mWindows.values())
+                w.force();
+        }
+        mChannel.force(false);
+    }
+
+    @Override // FileStore
+    public void close() throws IOException {
+        mResizeLock.writeLock().lock();
+        try {
+            force();
+            synchronized (mWindows) {
+                mWindows.clear();
+            }
+            mRAF.close();
+        } finally {
+            mResizeLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+/**
+ * Limits how often something happens, for example refreshing a display of changing state.
+ * Not thread safe; use from one thread.
+ */
+public class RateLimiter {
+    // Minimum interval between permitted events, ms
+    private final long mIntervalMillis;
+    // Time of the last permitted event, ms
+    private long mLastMillis;
+    private boolean mStarted = false;
+
+    /**
+     * @param intervalMillis minimum time between permitted events, in milliseconds
+     */
+    public RateLimiter(long intervalMillis) {
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Ask if an event may happen now. If it may, the time is recorded and further events are
+     * refused until the interval has passed.
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @return true if the event may happen
+     */
+    public boolean tryAcquire(long nowMillis) {
+        if (mStarted && nowMillis - mLastMillis < mIntervalMillis)
+            return false;
+        mStarted = true;
+        mLastMillis = nowMillis;
+        return true;
+    }
+}
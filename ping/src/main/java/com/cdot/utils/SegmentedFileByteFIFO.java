@@ -0,0 +1,597 @@
+/*
+ * Copyright © 2020 C-Dot Consultants
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software
+ * and associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or
+ * substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING
+ * BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM,
+ * DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package com.cdot.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A FIFO buffer kept in a directory of fixed-size segment files, rather than one circular file.
+ * Logical position p is stored in segment number p / segmentBytes, at offset p % segmentBytes,
+ * and each segment file is named for its number. Bytes are only ever appended, to the newest
+ * ("active") segment. When the buffer is full, the oldest segment is dropped whole by deleting
+ * its file, so the cost of discarding data doesn't depend on how much there is, and a resize
+ * never has to move anything. The price is that the oldest segment is dropped all at once, so
+ * a full buffer holds between a segment less than its capacity, and its capacity.
+ * <p>
+ * Once a segment is complete it is never written again, and bytes in the active segment are
+ * never rewritten once they are below the end position. So snapshots only hold the lock long
+ * enough to copy the bounds of the data, and read the segments without it. If a segment is
+ * deleted while it is being read, the snapshot fails with a BufferUnderflowException.
+ * <p>
+ * The directory also holds a manifest, giving the segment size, the capacity, the start and
+ * end positions as of the last commit and the record format, with a CRC32. A commit forces the active segment, then
+ * writes the manifest to a temporary file, forces it, and renames it over the old one, so the
+ * manifest on disk is always whole. Discarded segments are only deleted once a manifest that
+ * doesn't claim them has been committed. After a crash the buffer is reopened with the state at
+ * the last commit; bytes written since are overwritten, and any segment files outside the
+ * committed data are deleted.
+ * <p>
+ * A buffer opened readOnly may be shared with a writer in another instance, or another process.
+ * It reads the manifest before each snapshot, so it sees the buffer as of the writer's last
+ * commit.
+ */
+public class SegmentedFileByteFIFO implements ByteFIFO {
+
+    // Name of the manifest file in the directory
+    static final String MANIFEST = "manifest";
+    // Suffix of segment file names
+    static final String SEGMENT_SUFFIX = ".seg";
+    // Suffix of the file a new manifest is written to before it is renamed
+    private static final String TEMP_SUFFIX = ".tmp";
+    // First int of the manifest
+    static final int MAGIC = 0xF1F05E67;
+    // Current manifest format number
+    static final int FORMAT = 1;
+    // Size of the manifest
+    static final int MANIFEST_BYTES = 48;
+    // Offset of the CRC32 in the manifest
+    private static final int CRC_OFFSET = MANIFEST_BYTES - Integer.BYTES;
+    // Maximum number of segments kept open for reading
+    private static final int MAX_READERS = 4;
+
+    private final File mDir;
+    private final boolean mReadOnly;
+    private final long mSegmentBytes;
+    private CommitPolicy mCommitPolicy;
+    // Size of the records written to the log. Commits and recovery never split a record.
+    private int mRecordBytes = 1;
+    private long mCapacity;
+    private long mStartPosition;
+    private long mEndPosition;
+    // Format of the records, see #setRecordFormat
+    private int mRecordFormat;
+    // Lowest numbered segment that may still have a file
+    private long mFirstSegment;
+    // Segment being appended to, and its number. null until the first add.
+    private FileChannel mActive = null;
+    private long mActiveSegment = -1;
+    private boolean mClosed = false;
+    private int mRecordsSinceCommit; // records added or removed since the last commit
+    private long mLastCommitTime;
+    // Segments open for reading, indexed by segment number, least recently used first. A reader
+    // using a segment that is closed here will open it again.
+    private final Map<Long, FileChannel> mReaders = new LinkedHashMap<Long, FileChannel>(MAX_READERS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FileChannel> eldest) {
+            if (size() <= MAX_READERS)
+                return false;
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+
+    // Metadata read from a manifest
+    private static class Manifest {
+        long segmentBytes, capacity, start, end;
+        int recordFormat;
+    }
+
+    /**
+     * Create a new buffer in the given directory, which is created if necessary. Note that the
+     * capacity must be bigger than the largest byte[] that will ever be written to the buffer,
+     * or you will get buffer overflow errors.
+     *
+     * @param dir          directory to keep the segments in
+     * @param nBytes       initial maximum size of the buffer. Can be changed using #setCapacityBytes
+     * @param segmentBytes size of each segment. Must be a whole number of records.
+     * @param policy       when to force changes to disk
+     * @throws IOException if the directory already holds a buffer, or there is a problem writing it
+     */
+    public SegmentedFileByteFIFO(File dir, long nBytes, long segmentBytes, CommitPolicy policy) throws IOException {
+        if (nBytes <= 0 || segmentBytes <= 0)
+            throw new IllegalArgumentException("Bad size " + nBytes + "," + segmentBytes);
+        if (new File(dir, MANIFEST).exists())
+            throw new IOException(dir + " already exists");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + dir);
+        mDir = dir;
+        mReadOnly = false;
+        mCommitPolicy = policy;
+        mSegmentBytes = segmentBytes;
+        mCapacity = nBytes;
+        // Clear out any segments left by an earlier buffer
+        deleteSegmentsOutside(0, -1);
+        commit();
+    }
+
+    /**
+     * Open an existing buffer
+     *
+     * @param dir      directory the segments are kept in
+     * @param readOnly if true, the buffer will be opened for read, otherwise for read-write
+     * @param policy   when to force changes to disk
+     * @throws IOException if the buffer doesn't exist, or there's a problem reading it
+     */
+    public SegmentedFileByteFIFO(File dir, boolean readOnly, CommitPolicy policy) throws IOException {
+        mDir = dir;
+        mReadOnly = readOnly;
+        mCommitPolicy = policy;
+        Manifest manifest = readManifest();
+        mSegmentBytes = manifest.segmentBytes;
+        mCapacity = manifest.capacity;
+        mStartPosition = manifest.start;
+        mEndPosition = manifest.end;
+        mRecordFormat = manifest.recordFormat;
+        mFirstSegment = mStartPosition / mSegmentBytes;
+        mLastCommitTime = System.currentTimeMillis();
+        if (!readOnly)
+            // Left over from discards or adds that weren't committed
+            deleteSegmentsOutside(mFirstSegment, mEndPosition / mSegmentBytes);
+    }
+
+    /**
+     * Get the size of the segments
+     *
+     * @return the segment size in bytes
+     */
+    public long getSegmentBytes() {
+        return mSegmentBytes;
+    }
+
+    @Override // ByteFIFO
+    public synchronized void setRecordBytes(int nBytes) {
+        if (mSegmentBytes % nBytes != 0)
+            throw new IllegalArgumentException("Segments are not a whole number of records");
+        mRecordBytes = nBytes;
+        long partial = mStartPosition % nBytes;
+        if (partial != 0)
+            // Skip the remains of a torn record
+            mStartPosition = Math.min(mEndPosition, mStartPosition + nBytes - partial);
+        mEndPosition -= (mEndPosition - mStartPosition) % nBytes;
+    }
+
+    @Override // ByteFIFO
+    public synchronized int getRecordFormat() {
+        return mRecordFormat;
+    }
+
+    @Override // ByteFIFO
+    public synchronized void setRecordFormat(int format) throws IOException {
+        checkWritable();
+        mRecordFormat = format;
+        commit();
+    }
+
+    @Override // ByteFIFO
+    public synchronized void setCommitPolicy(CommitPolicy policy) {
+        mCommitPolicy = policy;
+    }
+
+    @Override // ByteFIFO
+    public synchronized long getUsedBytes() {
+        return mEndPosition - mStartPosition;
+    }
+
+    @Override // ByteFIFO
+    public synchronized long getStartPosition() {
+        return mStartPosition;
+    }
+
+    @Override // ByteFIFO
+    public synchronized long getEndPosition() {
+        return mEndPosition;
+    }
+
+    @Override // ByteFIFO
+    public synchronized long getCapacityBytes() {
+        return mCapacity;
+    }
+
+    /**
+     * Resize the buffer. If the new size is less than the used size, the oldest segments are
+     * dropped. No data is moved, so this is quick whatever the size. Cannot be used in readOnly
+     * mode.
+     *
+     * @param newCapacity new size in bytes
+     * @throws IOException if there's a problem writing the manifest
+     */
+    @Override // ByteFIFO
+    public synchronized void setCapacityBytes(long newCapacity) throws IOException {
+        if (newCapacity <= 0)
+            throw new IllegalArgumentException("Cannot set 0 capacity");
+        checkWritable();
+        mCapacity = newCapacity;
+        long over = getUsedBytes() - mCapacity;
+        if (over > 0)
+            discard(over);
+        commit();
+    }
+
+    @Override // ByteFIFO
+    public synchronized int remove(byte[] buf, int pos, int len) throws IOException {
+        if (len <= 0 || pos < 0 || buf == null)
+            throw new IllegalArgumentException("Bad args");
+        checkWritable();
+        ByteBuffer dst = ByteBuffer.wrap(buf, pos, (int) Math.min(getUsedBytes(), Math.min(len, buf.length - pos)));
+        int nBytes = dst.remaining();
+        readSegments(mStartPosition, dst);
+        mStartPosition += nBytes;
+        noteChange(nBytes);
+        return nBytes;
+    }
+
+    @Override // ByteFIFO
+    public synchronized void add(byte[] buf, int pos, int len) throws IOException {
+        if (len <= 0 || pos < 0 || buf == null || pos > buf.length - len)
+            throw new IllegalArgumentException("Bad args");
+        if (len > mCapacity)
+            throw new BufferOverflowException();
+        checkWritable();
+        long over = getUsedBytes() + len - mCapacity;
+        if (over > 0)
+            discard(over);
+
+        long p = mEndPosition;
+        ByteBuffer src = ByteBuffer.wrap(buf, pos, len);
+        while (src.hasRemaining()) {
+            long offset = p % mSegmentBytes;
+            int n = (int) Math.min(src.remaining(), mSegmentBytes - offset);
+            FileChannel segment = getActive(p / mSegmentBytes);
+            src.limit(src.position() + n);
+            while (src.hasRemaining())
+                offset += segment.write(src, offset);
+            src.limit(pos + len);
+            p += n;
+        }
+        mEndPosition = p;
+        noteChange(len);
+    }
+
+    @Override // ByteFIFO
+    public synchronized void add(byte[] buf) throws IOException {
+        add(buf, 0, buf.length);
+    }
+
+    @Override // ByteFIFO
+    public synchronized void commitIfDue() throws IOException {
+        if (mRecordsSinceCommit > 0
+                && mCommitPolicy.mustCommit(mRecordsSinceCommit, System.currentTimeMillis() - mLastCommitTime))
+            commit();
+    }
+
+    @Override // ByteFIFO
+    public synchronized void flush() throws IOException {
+        if (!mReadOnly && !mClosed)
+            commit();
+    }
+
+    @Override // ByteFIFO
+    public synchronized void close() throws IOException {
+        flush();
+        mClosed = true;
+        if (mActive != null)
+            mActive.close();
+        mActive = null;
+        synchronized (mReaders) {
+            for (FileChannel reader : mReaders.values())
+                closeQuietly(reader);
+            mReaders.clear();
+        }
+    }
+
+    @Override // ByteFIFO
+    public int snapshot(byte[] buf, int pos, int len) throws IOException {
+        if (pos + len > buf.length)
+            throw new BufferOverflowException(); // overflowing output buffer
+        ByteBuffer dst = ByteBuffer.wrap(buf, pos, len);
+        while (true) {
+            long from;
+            synchronized (this) {
+                refresh();
+                from = mEndPosition - Math.min(len, getUsedBytes());
+            }
+            try {
+                return snapshot(from, dst);
+            } catch (BufferUnderflowException bue) {
+                // Overtaken while reading; try again with the new newest bytes
+                dst.position(pos);
+            }
+        }
+    }
+
+    @Override // ByteFIFO
+    public int snapshot(long from, byte[] buf, int pos, int len) throws IOException {
+        if (pos + len > buf.length)
+            throw new BufferOverflowException(); // overflowing output buffer
+        return snapshot(from, ByteBuffer.wrap(buf, pos, len));
+    }
+
+    @Override // ByteFIFO
+    public int snapshot(long from, ByteBuffer dst) throws IOException {
+        int nBytes;
+        synchronized (this) {
+            refresh();
+            if (from < mStartPosition)
+                throw new BufferUnderflowException();
+            if (from >= mEndPosition)
+                return 0;
+            nBytes = (int) Math.min(dst.remaining(), mEndPosition - from);
+        }
+
+        // Read without the lock
+        int limit = dst.limit();
+        try {
+            dst.limit(dst.position() + nBytes);
+            readSegments(from, dst);
+        } catch (IOException ioe) {
+            synchronized (this) {
+                if (mReadOnly)
+                    refresh();
+                if (from < mStartPosition)
+                    // The segment was dropped while we were reading it
+                    throw new BufferUnderflowException();
+            }
+            throw ioe;
+        } finally {
+            dst.limit(limit);
+        }
+        return nBytes;
+    }
+
+    private void checkWritable() throws IOException {
+        if (mClosed)
+            throw new IOException("Buffer is closed");
+        if (mReadOnly)
+            throw new IOException("Buffer is read only");
+    }
+
+    // Check the buffer is open, and bring a readOnly buffer up to date with the manifest
+    // last committed by the writer
+    private void refresh() throws IOException {
+        if (mClosed)
+            throw new IOException("Buffer is closed");
+        if (!mReadOnly)
+            return;
+        Manifest manifest = readManifest();
+        mCapacity = manifest.capacity;
+        mStartPosition = manifest.start;
+        mEndPosition = manifest.end;
+        mRecordFormat = manifest.recordFormat;
+        if (mRecordBytes > 1)
+            setRecordBytes(mRecordBytes);
+        // Let go of segments the writer has deleted
+        long first = mStartPosition / mSegmentBytes;
+        synchronized (mReaders) {
+            Iterator<Map.Entry<Long, FileChannel>> it = mReaders.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, FileChannel> e = it.next();
+                if (e.getKey() < first) {
+                    closeQuietly(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Discard at least n of the oldest bytes. Where the data allows, the start is moved up to
+    // the next segment boundary, so the segments before it can be deleted whole.
+    private void discard(long n) {
+        long want = mStartPosition + n;
+        long boundary = (want + mSegmentBytes - 1) / mSegmentBytes * mSegmentBytes;
+        if (boundary <= mEndPosition)
+            mStartPosition = boundary;
+        else
+            mStartPosition = Math.min(mEndPosition, (want + mRecordBytes - 1) / mRecordBytes * mRecordBytes);
+    }
+
+    // Read bytes starting at logical position from into dst, up to its limit
+    private void readSegments(long from, ByteBuffer dst) throws IOException {
+        int limit = dst.limit();
+        long p = from;
+        while (dst.hasRemaining()) {
+            long segment = p / mSegmentBytes;
+            long offset = p % mSegmentBytes;
+            int begin = dst.position();
+            dst.limit(begin + (int) Math.min(dst.remaining(), mSegmentBytes - offset));
+            try {
+                FileChannel reader = getReader(segment);
+                while (dst.hasRemaining()) {
+                    int r = reader.read(dst, offset + dst.position() - begin);
+                    if (r < 0)
+                        throw new EOFException("Segment " + segment + " is short");
+                }
+            } catch (ClosedChannelException cce) {
+                // Closed to make room for another reader; carry on from where it got to. If
+                // the thread was interrupted, the channel will only be closed again.
+                if (Thread.currentThread().isInterrupted())
+                    throw cce;
+            } finally {
+                dst.limit(limit);
+            }
+            p += dst.position() - begin;
+        }
+    }
+
+    private FileChannel getReader(long segment) throws IOException {
+        synchronized (mReaders) {
+            FileChannel reader = mReaders.get(segment);
+            if (reader == null || !reader.isOpen()) {
+                reader = new RandomAccessFile(getSegmentFile(segment), "r").getChannel();
+                mReaders.put(segment, reader);
+            }
+            return reader;
+        }
+    }
+
+    // Get the channel for appending to a segment. Segments are only ever appended to in
+    // order, so moving on to a new one completes the last.
+    private FileChannel getActive(long segment) throws IOException {
+        if (segment != mActiveSegment) {
+            if (mActive != null) {
+                mActive.force(false);
+                mActive.close();
+            }
+            mActive = null;
+            mActiveSegment = -1;
+            mActive = new RandomAccessFile(getSegmentFile(segment), "rw").getChannel();
+            mActiveSegment = segment;
+        }
+        return mActive;
+    }
+
+    private File getSegmentFile(long segment) {
+        return new File(mDir, String.format(Locale.US, "%016x", segment) + SEGMENT_SUFFIX);
+    }
+
+    // Delete segment files numbered below first, or above last
+    private void deleteSegmentsOutside(long first, long last) throws IOException {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            throw new IOException("Can't list " + mDir);
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            long segment;
+            try {
+                segment = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+            } catch (NumberFormatException nfe) {
+                continue;
+            }
+            if ((segment < first || segment > last) && !f.delete())
+                throw new IOException("Can't delete " + f);
+        }
+    }
+
+    // Note a change of len bytes, and commit if the policy says so, or segments have been dropped
+    private void noteChange(int len) throws IOException {
+        mRecordsSinceCommit += Math.max(1, len / mRecordBytes);
+        if (mStartPosition / mSegmentBytes > mFirstSegment
+                || mCommitPolicy.mustCommit(mRecordsSinceCommit, System.currentTimeMillis() - mLastCommitTime))
+            commit();
+    }
+
+    /**
+     * Commit the current state to disk, then delete any segments that it no longer claims
+     */
+    private void commit() throws IOException {
+        if (mActive != null)
+            mActive.force(false);
+        writeManifest();
+        long first = mStartPosition / mSegmentBytes;
+        for (; mFirstSegment < first; mFirstSegment++) {
+            synchronized (mReaders) {
+                FileChannel reader = mReaders.remove(mFirstSegment);
+                if (reader != null)
+                    closeQuietly(reader);
+            }
+            File f = getSegmentFile(mFirstSegment);
+            if (f.exists() && !f.delete())
+                throw new IOException("Can't delete " + f);
+        }
+        mRecordsSinceCommit = 0;
+        mLastCommitTime = System.currentTimeMillis();
+    }
+
+    // CRC32 of a manifest, excluding the CRC itself
+    private static int crc(byte[] manifest) {
+        CRC32 crc = new CRC32();
+        crc.update(manifest, 0, CRC_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    // Write the manifest to a temporary file, and rename it over the old one
+    private void writeManifest() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(MANIFEST_BYTES);
+        bb.putInt(MAGIC);
+        bb.putInt(FORMAT);
+        bb.putLong(mSegmentBytes);
+        bb.putLong(mCapacity);
+        bb.putLong(mStartPosition);
+        bb.putLong(mEndPosition);
+        bb.putInt(mRecordFormat);
+        bb.putInt(CRC_OFFSET, crc(bb.array()));
+        File temp = new File(mDir, MANIFEST + TEMP_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+            raf.setLength(0);
+            raf.write(bb.array());
+            raf.getFD().sync();
+        }
+        if (!temp.renameTo(new File(mDir, MANIFEST)))
+            throw new IOException("Can't rename " + temp);
+    }
+
+    private Manifest readManifest() throws IOException {
+        byte[] data = new byte[MANIFEST_BYTES];
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(new File(mDir, MANIFEST)))) {
+            dis.readFully(data);
+        } catch (EOFException eofe) {
+            throw new IOException("manifest is truncated");
+        }
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        if (bb.getInt() != MAGIC)
+            throw new IOException("not a segmented buffer");
+        if (bb.getInt() != FORMAT)
+            throw new IOException("unsupported format " + bb.getInt(Integer.BYTES));
+        if (bb.getInt(CRC_OFFSET) != crc(data))
+            throw new IOException("manifest is corrupt");
+        Manifest manifest = new Manifest();
+        manifest.segmentBytes = bb.getLong();
+        manifest.capacity = bb.getLong();
+        manifest.start = bb.getLong();
+        manifest.end = bb.getLong();
+        manifest.recordFormat = bb.getInt();
+        if (manifest.segmentBytes <= 0 || manifest.capacity <= 0 || manifest.start < 0 || manifest.end < manifest.start)
+            throw new IOException("bad manifest " + manifest.segmentBytes + "," + manifest.capacity + ","
+                    + manifest.start + "," + manifest.end);
+        return manifest;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
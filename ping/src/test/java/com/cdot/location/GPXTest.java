@@ -0,0 +1,83 @@
+package com.cdot.location;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class GPXTest {
+
+    // The formatter GPX used to use
+    private static SimpleDateFormat simpleDateFormat() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX");
+        sdf.setTimeZone(TimeZone.getTimeZone("Z"));
+        return sdf;
+    }
+
+    @Test
+    public void formatTimestamp() {
+        SimpleDateFormat sdf = simpleDateFormat();
+        GPX.TimestampFormat tf = new GPX.TimestampFormat();
+        Random r = new Random(42);
+        // 1900 to 2200
+        long min = -2208988800000L, max = 7258118400000L;
+        for (int i = 0; i < 100000; i++) {
+            long t = min + (long) (r.nextDouble() * (max - min));
+            assertEquals(sdf.format(new Date(t)), tf.format(t));
+        }
+        assertEquals("1970-01-01T00:00:00.000Z", GPX.formatTimestamp(0));
+        assertEquals("1969-12-31T23:59:59.999Z", GPX.formatTimestamp(-1));
+        assertEquals("2000-02-29T12:00:00.005Z", GPX.formatTimestamp(951825600005L));
+    }
+
+    @Test
+    public void parseTimestamp() {
+        Random r = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long t = (long) (r.nextDouble() * 4102444800000L);
+            assertEquals(t, GPX.parseTimestamp(GPX.formatTimestamp(t)));
+        }
+        assertEquals(951825600000L, GPX.parseTimestamp("2000-02-29T12:00:00Z"));
+        assertEquals(951825600123L, GPX.parseTimestamp("2000-02-29T12:00:00.1239Z"));
+        assertEquals(951825600000L, GPX.parseTimestamp("2000-02-29T13:30:00+01:30"));
+        assertEquals(951825600000L, GPX.parseTimestamp("2000-02-29T11:00:00.000-01:00"));
+        for (String bad : new String[]{"2000-02-29", "2000-02-29T12:00:00", "2000-13-01T12:00:00Z",
+                "2000-02-29T12:00:00.000", "2000-02-29T12:0x:00Z", "2000-02-29T12:00:00+0100"}) {
+            try {
+                GPX.parseTimestamp(bad);
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void concurrentFormat() throws InterruptedException {
+        final long base = 1600000000000L;
+        final String[] failure = new String[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long step = 1000L * (t + 1) * 3607;
+            threads[t] = new Thread() {
+                public void run() {
+                    SimpleDateFormat sdf = simpleDateFormat();
+                    for (int i = 0; i < 20000; i++) {
+                        long time = base + i * step;
+                        String s = GPX.formatTimestamp(time);
+                        if (!s.equals(sdf.format(new Date(time))))
+                            failure[0] = s;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(null, failure[0]);
+    }
+}
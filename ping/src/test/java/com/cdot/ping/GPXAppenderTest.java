@@ -0,0 +1,114 @@
+package com.cdot.ping;
+
+import com.cdot.location.GPXAppender;
+import com.cdot.location.GPXWriter;
+import com.cdot.ping.samplers.Sample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+
+public class GPXAppenderTest {
+
+    private static final String gpxfile = "append.gpx";
+
+    @Before
+    public void killGPXFile() {
+        new File(gpxfile).delete();
+    }
+
+    private static Sample[] moreSamples() {
+        return new Sample[]{
+                new Sample(1600000100000L, 53.0, -1.0, 7.25f, 20),
+                new Sample(1600000100500L, 53.1, -1.1, 8.5f, 30)
+        };
+    }
+
+    private static void writeFile(byte[] content) throws IOException {
+        FileOutputStream fos = new FileOutputStream(gpxfile);
+        fos.write(content);
+        fos.close();
+    }
+
+    private static void writeSegment(GPXWriter gpx, Sample[] samples) throws IOException {
+        gpx.startElement("trkseg");
+        for (Sample s : samples)
+            s.writeGPX(gpx);
+        gpx.endElement("trkseg");
+    }
+
+    @Test
+    public void splice() throws Exception {
+        Sample[] a = GPXWriterTest.samples(), b = moreSamples();
+        writeFile(GPXWriterTest.streamedGPX(a));
+
+        RandomAccessFile raf = new RandomAccessFile(gpxfile, "rw");
+        FileChannel channel = raf.getChannel();
+        long tail = GPXAppender.findTrackTail(channel);
+        channel.position(tail);
+        Writer out = new OutputStreamWriter(Channels.newOutputStream(channel), "UTF-8");
+        GPXWriter gpx = new GPXWriter(out);
+        gpx.continueDocument(2);
+        writeSegment(gpx, b);
+        gpx.endDocument();
+        channel.truncate(channel.position());
+        raf.close();
+
+        // Same as writing both segments in one go
+        assertEquals(new String(GPXWriterTest.domGPX(a, b), "UTF-8"),
+                new String(Files.readAllBytes(new File(gpxfile).toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void unexpectedTail() throws IOException {
+        writeFile("<gpx><trk><trkseg/></trk><wpt lat=\"1\" lon=\"2\"/></gpx>\n".getBytes("UTF-8"));
+        RandomAccessFile raf = new RandomAccessFile(gpxfile, "r");
+        assertEquals(-1, GPXAppender.findTrackTail(raf.getChannel()));
+        raf.close();
+
+        writeFile("<gpx><trk><trkseg/></trk>  \r\n</gpx>\n\n".getBytes("UTF-8"));
+        raf = new RandomAccessFile(gpxfile, "r");
+        assertEquals(19, GPXAppender.findTrackTail(raf.getChannel()));
+        raf.close();
+
+        writeFile("</trk></gpx".getBytes("UTF-8"));
+        raf = new RandomAccessFile(gpxfile, "r");
+        assertEquals(-1, GPXAppender.findTrackTail(raf.getChannel()));
+        raf.close();
+    }
+
+    @Test
+    public void streamingCopy() throws IOException {
+        // Make the last </trk> straddle the copy buffer boundary
+        StringBuilder sb = new StringBuilder("<gpx><trk>");
+        while (sb.length() < 64 * 1024 - 3)
+            sb.append(' ');
+        int trkEnd = sb.length();
+        sb.append("</trk><wpt lat=\"1\" lon=\"2\"/></gpx>");
+        byte[] doc = sb.toString().getBytes("UTF-8");
+
+        assertEquals(trkEnd, GPXAppender.findLastEndTag(new ByteArrayInputStream(doc), "trk"));
+        assertEquals(doc.length - 6, GPXAppender.findLastEndTag(new ByteArrayInputStream(doc), "gpx"));
+        assertEquals(-1, GPXAppender.findLastEndTag(new ByteArrayInputStream(doc), "rte"));
+
+        ByteArrayInputStream in = new ByteArrayInputStream(doc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GPXAppender.copy(in, out, trkEnd);
+        out.write("<trkseg/>".getBytes("UTF-8"));
+        GPXAppender.copy(in, out, Long.MAX_VALUE);
+        assertEquals(sb.substring(0, trkEnd) + "<trkseg/>" + sb.substring(trkEnd), out.toString("UTF-8"));
+    }
+}
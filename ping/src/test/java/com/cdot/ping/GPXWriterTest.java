@@ -0,0 +1,105 @@
+package com.cdot.ping;
+
+import com.cdot.location.GPX;
+import com.cdot.location.GPXWriter;
+import com.cdot.ping.samplers.Sample;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import static org.junit.Assert.assertEquals;
+
+public class GPXWriterTest {
+
+    static final String CREATOR = "Ping \"&\" <test>";
+
+    static Sample[] samples() {
+        Sample[] s = {
+                new Sample(1600000000123L, 52.1, -2.3, 3.5f, 40),
+                new Sample(1600000001000L, 52.2, -2.4, -0.01f, 0),
+                new Sample(1600000002999L, -0.000001, 179.99999, 12.3456f, 100)
+        };
+        s[0].fishDepth = 1.25f;
+        s[0].fishStrength = 6;
+        s[2].fishDepth = 0.3f;
+        return s;
+    }
+
+    // The output of the original DOM export, one trkseg per array of samples
+    static byte[] domGPX(Sample[]... segments) throws Exception {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder().newDocument();
+        doc.setXmlVersion("1.1");
+        doc.setXmlStandalone(true);
+        Element gpx = doc.createElementNS(GPX.NS_GPX, "gpx");
+        gpx.setAttribute("version", "1.1");
+        gpx.setAttribute("creator", CREATOR);
+        doc.appendChild(gpx);
+        Element trk = doc.createElementNS(GPX.NS_GPX, "trk");
+        gpx.appendChild(trk);
+        for (Sample[] samples : segments) {
+            Element trkseg = doc.createElementNS(GPX.NS_GPX, "trkseg");
+            trk.appendChild(trkseg);
+            for (Sample s : samples)
+                trkseg.appendChild(s.toGPX(doc));
+        }
+
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        transformer.transform(new DOMSource(doc), new StreamResult(bos));
+        return bos.toByteArray();
+    }
+
+    static byte[] streamedGPX(Sample[] samples) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(bos, "UTF-8");
+        GPXWriter w = new GPXWriter(out);
+        w.startDocument(CREATOR);
+        w.startElement("trkseg");
+        for (Sample s : samples)
+            s.writeGPX(w);
+        w.endElement("trkseg");
+        w.endDocument();
+        out.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void sameAsDOM() throws Exception {
+        Sample[] s = samples();
+        assertEquals(new String(domGPX(s), "UTF-8"), new String(streamedGPX(s), "UTF-8"));
+    }
+
+    @Test
+    public void emptySegment() throws Exception {
+        Sample[] s = new Sample[0];
+        assertEquals(new String(domGPX(s), "UTF-8"), new String(streamedGPX(s), "UTF-8"));
+    }
+
+    @Test
+    public void escaping() throws IOException {
+        StringWriter sw = new StringWriter();
+        GPXWriter w = new GPXWriter(sw);
+        w.startElement("a");
+        w.attribute("b", "<\"&'>");
+        w.textElement("c", "<\"&'>");
+        w.endElement("a");
+        assertEquals("<a b=\"&lt;&quot;&amp;'&gt;\">\n    <c>&lt;\"&amp;'&gt;</c>\n</a>\n", sw.toString());
+    }
+}
@@ -0,0 +1,44 @@
+package com.cdot.ping;
+
+import com.cdot.ping.samplers.PipelineStats;
+import com.cdot.ping.samplers.Sample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStatsTest {
+
+    @Test
+    public void stages() {
+        PipelineStats stats = new PipelineStats();
+        Sample s = new Sample(0, 53, -2, 5, 50);
+        s.received = System.nanoTime() - 2000000; // arrived 2ms ago
+        stats.received();
+        stats.reached(PipelineStats.QUEUED, s);
+        Sample logged = new Sample(s);
+        stats.reached(PipelineStats.STORED, logged);
+        stats.reached(PipelineStats.DELIVERED, logged);
+        stats.reached(PipelineStats.RENDERED, logged);
+        stats.dropped();
+        // Samples that weren't stamped aren't recorded
+        stats.reached(PipelineStats.RENDERED, new Sample());
+
+        assertEquals(1, stats.getReceived());
+        assertEquals(1, stats.getLogged());
+        assertEquals(1, stats.getDropped());
+        assertEquals(1, stats.getRendered());
+        long queued = stats.getLatency(PipelineStats.QUEUED).getMax();
+        long rendered = stats.getLatency(PipelineStats.RENDERED).getMax();
+        assertTrue(queued >= 2000000);
+        assertTrue(rendered >= queued);
+
+        String dump = stats.dump();
+        assertTrue(dump.startsWith("received 1\nlogged 1\ndropped 1\nrendered 1\nqueued n=1 mean=2."));
+
+        stats.reset();
+        assertEquals(0, stats.getReceived());
+        assertEquals(0, stats.getRendered());
+    }
+}
@@ -0,0 +1,105 @@
+package com.cdot.ping;
+
+import com.cdot.location.GPXWriter;
+import com.cdot.ping.samplers.Sample;
+import com.cdot.ping.samplers.SampleBatch;
+import com.cdot.ping.samplers.SampleCache;
+import com.cdot.ping.samplers.SampleCursor;
+import com.cdot.utils.CommitPolicy;
+import com.cdot.utils.ConcurrentFileByteFIFO;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleBatchTest {
+
+    private static final String logfile = "batch.log";
+
+    @Before
+    public void killLogFile() {
+        new File(logfile).delete();
+    }
+
+    private static Sample sample(int i) {
+        Sample s = new Sample(1600000000000L + i * 125L, 53 + i * 1e-6, -2 - i * 1e-6, 5 + (i % 100) / 100f, i % 100);
+        s.fishDepth = (i % 7) / 4f;
+        s.fishStrength = i % 16;
+        s.temperature = 12.5f;
+        s.battery = (byte) (i % 7);
+        return s;
+    }
+
+    private static SampleCache cache(int n) throws IOException {
+        SampleCache cache = new SampleCache(new File(logfile), n, ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        Sample[] ss = new Sample[1024];
+        for (int i = 0; i < n; ) {
+            int len = Math.min(ss.length, n - i);
+            for (int j = 0; j < len; j++)
+                ss[j] = sample(i + j);
+            cache.add(ss, 0, len);
+            i += len;
+        }
+        return cache;
+    }
+
+    @Test
+    public void fillAndWrite() throws IOException {
+        SampleCache cache = cache(1000);
+        SampleCursor cursor = new SampleCursor(cache, 100);
+        cursor.seek(cache.getRange());
+        SampleBatch batch = new SampleBatch(300);
+        StringWriter soa = new StringWriter();
+        int i = 0;
+        int n;
+        while ((n = batch.fill(cursor)) > 0) {
+            assertEquals(i + 300 <= 1000 ? 300 : 1000 - i, n);
+            for (int j = 0; j < n; j++) {
+                Sample s = sample(i + j);
+                assertEquals(s.time, batch.time[j]);
+                assertEquals(s.latitude, batch.latitude[j], 0);
+                assertEquals(s.depth, batch.depth[j], 0);
+                assertEquals(s.fishDepth, batch.fishDepth[j], 0.01);
+                assertEquals(s.fishStrength, batch.fishStrength[j]);
+                assertEquals(s.temperature, batch.temperature[j], 0.01);
+                assertEquals(s.battery, batch.battery[j]);
+                assertEquals(s.time, batch.getSample(j).time);
+            }
+            batch.writeGPX(new GPXWriter(soa));
+            i += n;
+        }
+        assertEquals(1000, i);
+
+        // The same GPX as writing each Sample
+        Sample[] ss = new Sample[1000];
+        assertEquals(1000, cache.snapshot(cache.getStartPosition(), ss, 0, ss.length));
+        StringWriter aos = new StringWriter();
+        GPXWriter w = new GPXWriter(aos);
+        for (Sample s : ss)
+            s.writeGPX(w);
+        assertEquals(aos.toString(), soa.toString());
+        cache.close();
+    }
+
+    @Test
+    public void csv() throws IOException {
+        SampleBatch batch = new SampleBatch(2);
+        Sample s = new Sample(1600000000125L, 53.5, -2.25, 4.5f, 80);
+        s.fishDepth = 2.25f;
+        s.fishStrength = 3;
+        s.temperature = 12.5f;
+        s.battery = 6;
+        batch.add(s);
+        batch.add(new Sample(1600000000250L, 53.5, -2.25, 4.75f, 81));
+        StringWriter w = new StringWriter();
+        batch.writeCSV(w);
+        assertEquals("2020-09-13T12:26:40.125Z,53.5,-2.25,4.5,80,2.25,3,12.5,6\n"
+                + "2020-09-13T12:26:40.250Z,53.5,-2.25,4.75,81,0.0,0,0.0,0\n", w.toString());
+        assertEquals(9, SampleBatch.CSV_HEADER.split(",").length);
+    }
+}
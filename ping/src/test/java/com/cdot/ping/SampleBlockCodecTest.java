@@ -0,0 +1,158 @@
+package com.cdot.ping;
+
+import com.cdot.ping.samplers.Sample;
+import com.cdot.ping.samplers.SampleBlockCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleBlockCodecTest {
+
+    // A boat drifting over a slowly changing bottom, sampled 8 times a second
+    private static Sample[] track(int n) {
+        Random r = new Random(42);
+        Sample[] ss = new Sample[n];
+        double lat = 53.5, lon = -2.25;
+        float depth = 5;
+        for (int i = 0; i < n; i++) {
+            lat += (r.nextInt(21) - 5) * 1e-7;
+            lon += (r.nextInt(21) - 10) * 1e-7;
+            depth = Math.max(0, depth + (r.nextInt(11) - 5) / 1000f);
+            Sample s = new Sample(1600000000000L + i * 125L + r.nextInt(3), lat, lon, depth, 60 + r.nextInt(3));
+            if (i % 50 < 5) {
+                s.fishDepth = depth / 2;
+                s.fishStrength = 8;
+            }
+            s.temperature = 12.5f + i / 10000 / 100f;
+            s.battery = 6;
+            ss[i] = s;
+        }
+        return ss;
+    }
+
+    // Encode samples into logical positions starting at 0
+    private static ByteBuffer encode(Sample[] ss) {
+        SampleBlockCodec codec = new SampleBlockCodec();
+        ByteBuffer out = ByteBuffer.allocate(ss.length * Sample.BYTES + SampleBlockCodec.MAX_ENCODED_BYTES);
+        for (Sample s : ss)
+            codec.encode(s, out);
+        out.flip();
+        return out;
+    }
+
+    private static void assertDecoded(Sample s, SampleBlockCodec codec) {
+        assertEquals(s.time, codec.time());
+        assertEquals(s.latitude, codec.latitude(), 1e-7);
+        assertEquals(s.longitude, codec.longitude(), 1e-7);
+        assertEquals(s.depth, codec.depth(), 0.001);
+        assertEquals(s.strength, codec.strength());
+        assertEquals(s.fishDepth, codec.fishDepth(), 0.01);
+        assertEquals(s.fishStrength, codec.fishStrength());
+        assertEquals(s.temperature, codec.temperature(), 0.01);
+        assertEquals(s.battery, codec.battery());
+    }
+
+    @Test
+    public void roundTrip() {
+        Sample[] ss = track(5000);
+        // Jumps that need long deltas, and fields going down as well as up
+        ss[100].time += 1000000000L;
+        for (int i = 101; i < ss.length; i++)
+            ss[i].time += 1000000000L;
+        ss[200].latitude = -89.9999999;
+        ss[201].longitude = 179.9999999;
+        ss[202].depth = 0;
+        ss[300].temperature = -5.5f;
+        ss[301].battery = 0;
+        ByteBuffer in = encode(ss);
+
+        SampleBlockCodec codec = new SampleBlockCodec();
+        int n = 0;
+        for (int block = 0; block < in.limit(); block += SampleBlockCodec.BLOCK_BYTES) {
+            in.position(block);
+            boolean first = true;
+            while (codec.decode(in, block)) {
+                assertDecoded(ss[n], codec);
+                assertEquals(n, codec.number());
+                if (first)
+                    // A keyframe
+                    assertEquals(SampleBlockCodec.KEYFRAME_BYTES, in.position() - block);
+                first = false;
+                n++;
+            }
+            assertFalse(first);
+        }
+        assertEquals(ss.length, n);
+    }
+
+    @Test
+    public void resume() {
+        Sample[] ss = track(1000);
+        ByteBuffer whole = encode(ss);
+
+        // Stop part way through a block, decode it, and carry on from there
+        int stop = 700;
+        SampleBlockCodec codec = new SampleBlockCodec();
+        ByteBuffer out = ByteBuffer.allocate(whole.limit());
+        for (int i = 0; i < stop; i++)
+            codec.encode(ss[i], out);
+        int end = out.position();
+        int block = end - end % SampleBlockCodec.BLOCK_BYTES;
+        assertTrue(block < end);
+        SampleBlockCodec resumed = new SampleBlockCodec();
+        ByteBuffer in = out.duplicate();
+        in.position(block);
+        in.limit(end);
+        while (resumed.decode(in, block))
+            ;
+        assertEquals(stop - 1, resumed.number());
+        resumed.resumeEncoding(SampleBlockCodec.BLOCK_BYTES - (end - block));
+        for (int i = stop; i < ss.length; i++)
+            resumed.encode(ss[i], out);
+        out.flip();
+        assertEquals(whole, out);
+
+        // Starting afresh part way through a block skips to the next one
+        codec = new SampleBlockCodec();
+        out = ByteBuffer.allocate(SampleBlockCodec.BLOCK_BYTES + SampleBlockCodec.MAX_ENCODED_BYTES);
+        codec.startEncoding(10, 100);
+        codec.encode(ss[0], out);
+        assertEquals(100 + SampleBlockCodec.KEYFRAME_BYTES, out.position());
+        out.flip();
+        out.position(100);
+        codec = new SampleBlockCodec();
+        assertTrue(codec.decode(out, 100));
+        assertEquals(10, codec.number());
+        assertDecoded(ss[0], codec);
+    }
+
+    // A realistic track compresses to a quarter of the fixed size format or better. Encode and
+    // decode times are measured by SampleBenchmark in the bench module.
+    @Test
+    public void compressionRatio() {
+        final int N = 100000;
+        Sample[] ss = track(N);
+        SampleBlockCodec codec = new SampleBlockCodec();
+        ByteBuffer out = ByteBuffer.allocate(N * Sample.BYTES);
+        codec.startEncoding(0, 0);
+        for (int i = 0; i < N; i++)
+            codec.encode(ss[i], out);
+        out.flip();
+        int bytes = out.limit();
+
+        int n = 0;
+        for (int block = 0; block < bytes; block += SampleBlockCodec.BLOCK_BYTES) {
+            out.position(block);
+            while (codec.decode(out, block))
+                assertEquals(ss[n++].time, codec.time());
+        }
+        assertEquals(N, n);
+        assertTrue((float) N * Sample.BYTES / bytes >= 4);
+    }
+}
@@ -1,15 +1,27 @@
 package com.cdot.ping;
 
+import com.cdot.ping.samplers.SampleBlockCodec;
 import com.cdot.ping.samplers.SampleCache;
+import com.cdot.ping.samplers.SampleCursor;
 import com.cdot.ping.samplers.Sample;
+import com.cdot.utils.CommitPolicy;
+import com.cdot.utils.ConcurrentFileByteFIFO;
+import com.cdot.utils.SegmentedFileByteFIFO;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SampleCacheTest {
 
@@ -75,7 +87,7 @@ public class SampleCacheTest {
         simple.add(new Sample(12000, 3, -2, 10, 5));
         simple.add(new Sample(13000, 4, -2, 10, 5));
         Sample[] ss = new Sample[4];
-        simple.snapshot(ss, 0, 4);
+        assertEquals(4, simple.snapshot(ss, 0, 4));
         assertEquals(4, simple.getUsedSamples());
         assertEquals(1, ss[0].latitude, 0);
         assertEquals(-2, ss[0].longitude, 0);
@@ -85,4 +97,411 @@ public class SampleCacheTest {
         assertEquals(3, ss[2].latitude, 0);
         assertEquals(4, ss[3].latitude, 0);
     }
+
+    // The newest samples come back, in order, wherever in the buffer they're asked for
+    private void snapshotNewest(boolean compressed) throws IOException {
+        new File(logfile).delete();
+        SampleCache cache = new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), 200 * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH), compressed);
+        addCompressed(cache, 0, 100);
+        Sample[] ss = new Sample[13];
+        assertEquals(10, cache.snapshot(ss, 3, 10));
+        assertNull(ss[2]);
+        for (int i = 0; i < 10; i++)
+            assertEquals((90 + i) * 10, ss[3 + i].time);
+        cache.close();
+    }
+
+    @Test
+    public void snapshotNewest() throws IOException {
+        snapshotNewest(false);
+        snapshotNewest(true);
+    }
+
+    @Test
+    public void recoverTornMetadata() throws IOException {
+        // Write a log in the original format, with a 12 byte header, by hand
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.writeInt(10 * Sample.V1_BYTES); // capacity
+        // Simulate metadata that has been torn in the middle of a record
+        raf.writeInt(3); // read pos
+        raf.writeInt(3 * Sample.V1_BYTES - 3); // used
+        for (int i = 1; i <= 3; i++) {
+            raf.writeLong(i * 1000); // time
+            raf.writeDouble(i); // latitude
+            raf.writeDouble(-2); // longitude
+            raf.writeFloat(10); // depth
+            raf.writeByte(5); // strength
+        }
+        raf.setLength(12 + 10 * Sample.V1_BYTES);
+        raf.close();
+        SampleCache simple = new SampleCache(new File(logfile), false);
+        assertEquals(Sample.V1_BYTES, simple.getSampleBytes());
+        // The torn record is skipped
+        assertEquals(2, simple.getUsedSamples());
+        Sample ss = simple.removeSample();
+        assertEquals(2000, ss.time);
+        assertEquals(2, ss.latitude, 0);
+        ss = simple.removeSample();
+        assertEquals(3000, ss.time);
+    }
+
+    @Test
+    public void extendedFields() throws IOException {
+        SampleCache cache = new SampleCache(new File(logfile), 10);
+        assertEquals(Sample.BYTES, cache.getSampleBytes());
+        Sample s = new Sample(1000, 52.5, -1.25, 12.5f, 80);
+        s.fishDepth = 3.27f;
+        s.fishStrength = 43;
+        s.temperature = -1.5f;
+        s.battery = 66;
+        cache.add(s);
+        cache.close();
+
+        cache = new SampleCache(new File(logfile), true);
+        assertTrue(cache.isExtended());
+        Sample[] ss = new Sample[1];
+        assertEquals(1, cache.snapshot(cache.getStartPosition(), ss, 0, 1));
+        assertEquals(3.27f, ss[0].fishDepth, 0.005);
+        assertEquals(43, ss[0].fishStrength);
+        assertEquals(-1.5f, ss[0].temperature, 0.005);
+        assertEquals(66, ss[0].battery);
+
+        SampleCursor cursor = new SampleCursor(cache, 4);
+        cursor.seek(cache.getStartPosition(), cache.getEndPosition());
+        assertTrue(cursor.next());
+        assertEquals(12.5f, cursor.depth(), 0);
+        assertEquals(3.27f, cursor.fishDepth(), 0.005);
+        assertEquals(43, cursor.fishStrength());
+        assertEquals(-1.5f, cursor.temperature(), 0.005);
+        assertEquals(66, cursor.battery());
+        cache.close();
+    }
+
+    @Test
+    public void originalSampleFormat() throws IOException {
+        // A log in the current buffer format, holding samples in the original format
+        ConcurrentFileByteFIFO log = new ConcurrentFileByteFIFO(new File(logfile), 10 * Sample.V1_BYTES);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        for (int i = 1; i <= 3; i++) {
+            dos.writeLong(i * 1000); // time
+            dos.writeDouble(i); // latitude
+            dos.writeDouble(-2); // longitude
+            dos.writeFloat(10); // depth
+            dos.writeByte(5); // strength
+        }
+        log.add(bos.toByteArray());
+        log.close();
+
+        SampleCache cache = new SampleCache(new File(logfile), false);
+        assertFalse(cache.isExtended());
+        assertEquals(10, cache.getCapacitySamples());
+        assertEquals(3, cache.getUsedSamples());
+        // Samples added to it keep to the format of the log
+        Sample s = new Sample(4000, 4, -2, 10, 5);
+        s.fishDepth = 2;
+        cache.add(s);
+        assertEquals(4, cache.getUsedSamples());
+        Sample[] ss = cache.removeSamples(4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 1) * 1000, ss[i].time);
+            assertEquals(i + 1, ss[i].latitude, 0);
+            assertEquals(0, ss[i].fishDepth, 0);
+        }
+        cache.close();
+    }
+
+    // Brute force search for the first sample at or after time t, in a log where sample i
+    // has time i * 10
+    private static long firstAt(long t, long first, long last) {
+        for (long n = first; n < last; n++)
+            if (n * 10 >= t)
+                return n;
+        return last;
+    }
+
+    @Test
+    public void queryTimeRange() throws IOException {
+        SampleCache cache = new SampleCache(new File(logfile), 1000);
+        // Build the index before the log wraps, then keep adding so it has to follow along
+        cache.add(new Sample(0, 0, 0, 0, 0));
+        assertEquals(0, cache.query(0, 0).start);
+        int n = 1;
+        for (; n < 2500; n++)
+            cache.add(new Sample(n * 10, 0, 0, 0, 0));
+        assertEquals(1000, cache.getUsedSamples());
+
+        long first = cache.getStartPosition() / Sample.BYTES;
+        long last = cache.getEndPosition() / Sample.BYTES;
+        long[][] queries = {
+                {0, Long.MAX_VALUE}, {-100, 5}, {15005, 15005}, {15000, 15000}, {15001, 20009},
+                {17000, 24990}, {24990, 30000}, {24991, 30000}, {20000, 19000}, {Long.MIN_VALUE, 0}
+        };
+        for (long[] q : queries) {
+            SampleCache.Range r = cache.query(q[0], q[1]);
+            long from = firstAt(q[0], first, last);
+            long to = q[1] == Long.MAX_VALUE ? last : firstAt(q[1] + 1, from, last);
+            assertEquals(q[0] + ".." + q[1], from * Sample.BYTES, r.start);
+            assertEquals(q[0] + ".." + q[1], to * Sample.BYTES, r.end);
+        }
+
+        // Samples in a range are the ones asked for
+        SampleCache.Range r = cache.query(20000, 20990);
+        assertEquals(100, r.getSamples());
+        Sample[] ss = new Sample[r.getSamples()];
+        assertEquals(100, cache.snapshot(r.start, ss, 0, ss.length));
+        assertEquals(20000, ss[0].time);
+        assertEquals(20990, ss[99].time);
+
+        // An index built from a wrapped log agrees
+        cache.close();
+        cache = new SampleCache(new File(logfile), true);
+        r = cache.query(20000, 20990);
+        assertEquals(100, r.getSamples());
+        assertEquals(100, cache.snapshot(r.start, ss, 0, ss.length));
+        assertEquals(20000, ss[0].time);
+        assertEquals(20990, ss[99].time);
+    }
+
+    private void cursorReads(ConcurrentFileByteFIFO.Engine engine) throws IOException {
+        new File(logfile).delete();
+        cursorReads(new SampleCache(new File(logfile), 100, engine, CommitPolicy.ON_FLUSH), 150);
+    }
+
+    private void cursorReads(SampleCache cache, int first) throws IOException {
+        for (int i = 0; i < 250; i++)
+            cache.add(new Sample(i * 10, i, -i, i / 10f, i % 100));
+
+        // Chunks that don't divide the wrapped log evenly
+        SampleCursor cursor = new SampleCursor(cache, 7);
+        cursor.seek(cache.getStartPosition(), cache.getEndPosition());
+        int i = first;
+        while (cursor.next()) {
+            assertEquals(i * 10, cursor.time());
+            assertEquals(i, cursor.latitude(), 0);
+            assertEquals(-i, cursor.longitude(), 0);
+            assertEquals(i / 10f, cursor.depth(), 0);
+            assertEquals(i % 100, cursor.strength());
+            assertEquals(cache.getStartPosition() + (i - first) * Sample.BYTES, cursor.position());
+            i++;
+        }
+        assertEquals(250, i);
+        assertFalse(cursor.next());
+
+        // Samples discarded while reading are skipped
+        cursor.seek(cache.query(1600, 1690));
+        assertEquals(true, cursor.next());
+        assertEquals(1600, cursor.time());
+        for (int j = 250; j < 300; j++)
+            cache.add(new Sample(j * 10, 0, 0, 0, 0));
+        i = 1;
+        while (cursor.next())
+            i++;
+        // 7 were already buffered, then the rest of the range was discarded
+        assertEquals(7, i);
+        cursor.seek(cache.getStartPosition() - Sample.BYTES, cache.getEndPosition());
+        assertEquals(true, cursor.next());
+        assertEquals(cache.getStartPosition() / Sample.BYTES * 10, cursor.time());
+        cache.close();
+    }
+
+    @Test
+    public void cursor() throws IOException {
+        cursorReads(ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS);
+        cursorReads(ConcurrentFileByteFIFO.Engine.MAPPED);
+    }
+
+    @Test
+    public void cursorSegmented() throws IOException {
+        File dir = new File(logfile + ".segments");
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        // Segments of 20 samples; the oldest 40 go whole, leaving 90 of the 100
+        SampleCache cache = new SampleCache(new SegmentedFileByteFIFO(dir, 100 * Sample.BYTES, 20 * Sample.BYTES,
+                CommitPolicy.ON_FLUSH));
+        cursorReads(cache, 160);
+    }
+
+    // Read a whole compressed cache, checking the samples follow on from each other
+    private static int compressedReads(SampleCache cache, int last) throws IOException {
+        SampleCursor cursor = new SampleCursor(cache, 100);
+        cursor.seek(cache.getRange());
+        assertTrue(cursor.next());
+        int first = (int) (cursor.time() / 10);
+        int i = first;
+        do {
+            assertEquals(i * 10, cursor.time());
+            assertEquals(i * 1e-6, cursor.latitude(), 1e-7);
+            assertEquals(-i * 1e-6, cursor.longitude(), 1e-7);
+            assertEquals(i / 100f, cursor.depth(), 0.001);
+            assertEquals(i % 100, cursor.strength());
+            i++;
+        } while (cursor.next());
+        assertEquals(last, i);
+        assertEquals(last - first, cache.getUsedSamples());
+        assertEquals(last - first, cache.getRange().getSamples());
+        return first;
+    }
+
+    private static void addCompressed(SampleCache cache, int from, int to) throws IOException {
+        for (int i = from; i < to; i++)
+            cache.add(new Sample(i * 10, i * 1e-6, -i * 1e-6, i / 100f, i % 100));
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        // Room for 200 uncompressed samples
+        SampleCache cache = new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), 200 * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH), true);
+        assertTrue(cache.isCompressed());
+        addCompressed(cache, 0, 3000);
+        assertEquals(200, cache.getCapacitySamples());
+        int first = compressedReads(cache, 3000);
+        // Several times as many samples fit
+        assertTrue(3000 - first > 4 * 200);
+
+        // Ranges by time, and the newest samples
+        SampleCache.Range r = cache.query(20000, 20990);
+        assertEquals(100, r.getSamples());
+        Sample[] ss = new Sample[r.getSamples()];
+        assertEquals(100, cache.snapshot(r.start, ss, 0, ss.length));
+        assertEquals(20000, ss[0].time);
+        assertEquals(20990, ss[99].time);
+        assertEquals(0, cache.query(40000, 50000).getSamples());
+        assertEquals(3000 - first, cache.query(Long.MIN_VALUE, Long.MAX_VALUE).getSamples());
+        r = cache.getNewest(10);
+        assertEquals(10, r.getSamples());
+        assertEquals(10, cache.snapshot(r.start, ss, 0, ss.length));
+        assertEquals(29900, ss[0].time);
+        assertEquals(29990, ss[9].time);
+
+        // Reading from the start of the log skips the partly discarded block
+        SampleCursor cursor = new SampleCursor(cache, 10);
+        cursor.seek(cache.getStartPosition(), cache.getEndPosition());
+        assertTrue(cursor.next());
+        assertEquals(first * 10, cursor.time());
+
+        // Serialised samples can't be added
+        try {
+            cache.add(new byte[Sample.BYTES]);
+            assertTrue(false);
+        } catch (IllegalStateException expected) {
+        }
+
+        // Adding carries on the last block after reopening, and a reader sees the same samples,
+        // except those the writer has committed to discarding
+        cache.close();
+        cache = new SampleCache(new File(logfile), false);
+        assertTrue(cache.isCompressed());
+        addCompressed(cache, 3000, 3100);
+        first = compressedReads(cache, 3100);
+        SampleCache reader = new SampleCache(new File(logfile), true);
+        assertTrue(compressedReads(reader, 3100) >= first);
+        reader.close();
+        cache.close();
+    }
+
+    // Open a cache file as LoggingService does, asking for compression or not
+    private static SampleCache openAsService(boolean compressed) throws IOException {
+        return new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), false,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH), compressed);
+    }
+
+    @Test
+    public void emptyTakesCompression() throws IOException {
+        new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), 100 * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH, true), false).close();
+        // Never added to, so it is compressed or not as asked for when it is opened
+        SampleCache cache = openAsService(true);
+        assertTrue(cache.isCompressed());
+        cache.close();
+        cache = openAsService(false);
+        assertFalse(cache.isCompressed());
+        cache.close();
+        // Until the first add fixes it
+        cache = openAsService(true);
+        addCompressed(cache, 0, 1);
+        cache.close();
+        cache = openAsService(false);
+        assertTrue(cache.isCompressed());
+        assertEquals(0, compressedReads(cache, 1));
+        cache.close();
+    }
+
+    @Test
+    public void copyCompressedToUncompressed() throws IOException {
+        // Room for 200 uncompressed samples, so it holds several times as many compressed
+        SampleCache cache = new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), 200 * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH), true);
+        addCompressed(cache, 0, 3000);
+        int used = cache.getUsedSamples();
+        assertTrue(used > 200);
+
+        File file = new File(logfile + ".copy");
+        file.delete();
+        SampleCache copy = new SampleCache(new ConcurrentFileByteFIFO(file, (long) used * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH, true), false);
+        assertEquals(used, cache.copyTo(copy));
+        assertFalse(copy.isCompressed());
+        assertEquals(3000 - used, compressedReads(copy, 3000));
+        copy.close();
+        cache.close();
+        file.delete();
+    }
+
+    @Test
+    public void compressedRemove() throws IOException {
+        SampleCache cache = new SampleCache(new ConcurrentFileByteFIFO(new File(logfile), 1000 * Sample.BYTES,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH), true);
+        addCompressed(cache, 0, 1000);
+        assertEquals(0, compressedReads(cache, 1000));
+
+        // The oldest samples come back in order, and the rest of their block goes with them
+        Sample[] ss = cache.removeSamples(5);
+        for (int i = 0; i < 5; i++)
+            assertEquals(i * 10, ss[i].time);
+        int first = compressedReads(cache, 1000);
+        assertTrue(first > 5);
+        assertEquals(0, cache.getRange().start % SampleBlockCodec.BLOCK_BYTES);
+        assertEquals(first * 10, cache.removeSample().time);
+        assertTrue(compressedReads(cache, 1000) > first);
+
+        // Removing everything, including the block being added to, lets adding start again
+        cache.removeSamples(cache.getUsedSamples());
+        assertEquals(0, cache.getUsedSamples());
+        try {
+            cache.removeSample();
+            assertTrue(false);
+        } catch (BufferUnderflowException expected) {
+        }
+        addCompressed(cache, 1000, 1100);
+        assertEquals(1000, compressedReads(cache, 1100));
+        cache.close();
+    }
+
+    @Test
+    public void compressedSegmented() throws IOException {
+        File dir = new File(logfile + ".segments");
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        // Segments of two blocks, so whole blocks are dropped
+        SampleCache cache = new SampleCache(new SegmentedFileByteFIFO(dir, 8 * SampleBlockCodec.BLOCK_BYTES,
+                2 * SampleBlockCodec.BLOCK_BYTES, CommitPolicy.ON_FLUSH), true);
+        addCompressed(cache, 0, 5000);
+        int first = compressedReads(cache, 5000);
+        assertEquals(cache.getStartPosition(), cache.getRange().start);
+        cache.close();
+
+        // Resizing keeps the newest samples
+        cache = new SampleCache(new SegmentedFileByteFIFO(dir, false, CommitPolicy.ON_FLUSH));
+        assertTrue(cache.isCompressed());
+        cache.setCapacitySamples(4 * SampleBlockCodec.BLOCK_BYTES / Sample.BYTES);
+        assertTrue(compressedReads(cache, 5000) > first);
+        cache.close();
+    }
 }
@@ -0,0 +1,96 @@
+package com.cdot.ping;
+
+import com.cdot.ping.samplers.SonarCapture;
+import com.cdot.ping.samplers.SonarPacketDecoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SonarCaptureTest {
+
+    // Build a packet with a valid checksum, numbered in the depth bytes
+    private static byte[] packet(int n) {
+        byte[] p = {'S', 'F', 0, 0, 0, 9, (byte) (n >> 8), (byte) n, 50, 0, 0, 0x60, 60, 0, 0, 0, 0, 0};
+        p[17] = (byte) SonarPacketDecoder.checksum(p, 0);
+        return p;
+    }
+
+    // A session of n packets at 8Hz, with a location every 8 packets
+    private static byte[] capture(int n) throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        SonarCapture.Recorder rec = new SonarCapture.Recorder(bs);
+        for (int i = 0; i < n; i++) {
+            long time = 1600000000000L + i * 125;
+            if (i % 8 == 0)
+                rec.writeLocation(time, 53 + i * 1e-6, -2 - i * 1e-6);
+            rec.writePacket(time, packet(i), 0);
+        }
+        rec.close();
+        return bs.toByteArray();
+    }
+
+    // Remembers what is played
+    private static class Recording implements SonarCapture.Listener {
+        List<Integer> packets = new ArrayList<>();
+        List<Double> latitudes = new ArrayList<>();
+
+        @Override // SonarCapture.Listener
+        public void onPacket(byte[] packet) {
+            assertEquals(SonarPacketDecoder.PACKET_BYTES, packet.length);
+            packets.add(((packet[6] & 0xFF) << 8) | (packet[7] & 0xFF));
+        }
+
+        @Override // SonarCapture.Listener
+        public void onLocation(double latitude, double longitude) {
+            latitudes.add(latitude);
+            assertEquals(-2 - (latitude - 53), longitude, 1e-9);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException, InterruptedException {
+        SonarCapture.Player player = new SonarCapture.Player(new ByteArrayInputStream(capture(1000)));
+        Recording r = new Recording();
+        assertEquals(1125, player.play(0, r));
+        assertEquals(1000, r.packets.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, (int) r.packets.get(i));
+        assertEquals(125, r.latitudes.size());
+        assertEquals(53 + 992 * 1e-6, r.latitudes.get(124), 1e-9);
+    }
+
+    @Test
+    public void truncated() throws IOException, InterruptedException {
+        byte[] whole = capture(10);
+        byte[] cut = new byte[whole.length - 5];
+        System.arraycopy(whole, 0, cut, 0, cut.length);
+        SonarCapture.Player player = new SonarCapture.Player(new ByteArrayInputStream(cut));
+        Recording r = new Recording();
+        player.play(0, r);
+        assertEquals(9, r.packets.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void notACapture() throws IOException {
+        new SonarCapture.Player(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+    }
+
+    // 2 seconds of packets at 8Hz, played 10 times faster, should take about 200ms
+    @Test
+    public void paced() throws IOException, InterruptedException {
+        SonarCapture.Player player = new SonarCapture.Player(new ByteArrayInputStream(capture(17)));
+        long start = System.nanoTime();
+        player.play(10, new Recording());
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertTrue(ms >= 195);
+        assertTrue(ms < 1000);
+    }
+}
@@ -0,0 +1,129 @@
+package com.cdot.ping;
+
+import com.cdot.ping.samplers.SonarFramer;
+import com.cdot.ping.samplers.SonarPacketDecoder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SonarFramerTest {
+
+    // Build a packet with a valid checksum, numbered in the depth bytes
+    private static byte[] packet(int n) {
+        byte[] p = {'S', 'F', 0, 0, 0, 9, (byte) (n >> 8), (byte) n, 50, 0, 0, 0x60, 60, 0, 0, 0, 0, 0};
+        p[17] = (byte) SonarPacketDecoder.checksum(p, 0);
+        return p;
+    }
+
+    private static int number(byte[] p) {
+        return ((p[6] & 0xFF) << 8) | (p[7] & 0xFF);
+    }
+
+    // Delivers a stream in random sized pieces, as a socket would
+    private static class FragmentedInputStream extends InputStream {
+        private final byte[] mBytes;
+        private final Random mRandom;
+        private int mPos = 0;
+
+        FragmentedInputStream(byte[] bytes, long seed) {
+            mBytes = bytes;
+            mRandom = new Random(seed);
+        }
+
+        @Override // InputStream
+        public int read() {
+            return mPos < mBytes.length ? mBytes[mPos++] & 0xFF : -1;
+        }
+
+        @Override // InputStream
+        public int read(byte[] b, int off, int len) {
+            if (mPos == mBytes.length)
+                return -1;
+            int n = Math.min(Math.min(len, 1 + mRandom.nextInt(2 * SonarPacketDecoder.PACKET_BYTES)), mBytes.length - mPos);
+            System.arraycopy(mBytes, mPos, b, off, n);
+            mPos += n;
+            return n;
+        }
+    }
+
+    @Test
+    public void fragmented() throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++)
+            bs.write(packet(i));
+        for (long seed = 0; seed < 20; seed++) {
+            SonarFramer framer = new SonarFramer(new FragmentedInputStream(bs.toByteArray(), seed));
+            for (int i = 0; i < 1000; i++)
+                assertEquals(i, number(framer.readFrame()));
+            assertNull(framer.readFrame());
+            assertEquals(0, framer.getSkipped());
+        }
+    }
+
+    @Test
+    public void resynchronise() throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        int skipped = 0;
+        // Start part way through a packet
+        bs.write(packet(999), 5, SonarPacketDecoder.PACKET_BYTES - 5);
+        skipped += SonarPacketDecoder.PACKET_BYTES - 5;
+        bs.write(packet(0));
+        // Garbage, including a false signature
+        byte[] garbage = {1, 'S', 'F', 2, 'S', 3};
+        bs.write(garbage);
+        skipped += garbage.length;
+        bs.write(packet(1));
+        // A packet with a bad checksum
+        byte[] bad = packet(99);
+        bad[17]++;
+        bs.write(bad);
+        skipped += bad.length;
+        bs.write(packet(2));
+        // A packet that lost a byte
+        byte[] cut = packet(98);
+        bs.write(cut, 0, 10);
+        bs.write(cut, 11, 7);
+        skipped += 17;
+        bs.write(packet(3));
+        // A partial packet at the end, which is still waiting for the rest when the stream ends
+        bs.write(packet(4), 0, 10);
+
+        for (long seed = 0; seed < 20; seed++) {
+            SonarFramer framer = new SonarFramer(new FragmentedInputStream(bs.toByteArray(), seed));
+            for (int i = 0; i < 4; i++)
+                assertEquals(i, number(framer.readFrame()));
+            assertNull(framer.readFrame());
+            assertEquals(skipped, framer.getSkipped());
+        }
+    }
+
+    @Test
+    public void byteAtATime() throws IOException {
+        ByteArrayOutputStream bs = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++)
+            bs.write(packet(i));
+        final ByteArrayInputStream bis = new ByteArrayInputStream(bs.toByteArray());
+        SonarFramer framer = new SonarFramer(new InputStream() {
+            @Override // InputStream
+            public int read() {
+                return bis.read();
+            }
+
+            @Override // InputStream
+            public int read(byte[] b, int off, int len) {
+                return bis.read(b, off, 1);
+            }
+        });
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, number(framer.readFrame()));
+        assertNull(framer.readFrame());
+    }
+}
@@ -0,0 +1,103 @@
+package com.cdot.ping;
+
+import com.cdot.ping.samplers.Sample;
+import com.cdot.ping.samplers.SonarPacketDecoder;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SonarPacketDecoderTest {
+
+    // Build a packet with a valid checksum
+    private static byte[] packet(int depthFt, int depthHundredths, int strength, int fishFt, int fishHundredths,
+                                 int fishStrength, int battery, int tempF, int tempHundredths, boolean dry) {
+        byte[] p = {'S', 'F', 0, 0, (byte) (dry ? 8 : 0), 9,
+                (byte) depthFt, (byte) depthHundredths, (byte) strength,
+                (byte) fishFt, (byte) fishHundredths, (byte) ((battery << 4) | fishStrength),
+                (byte) tempF, (byte) tempHundredths, 0, 0, 0, 0};
+        p[17] = (byte) SonarPacketDecoder.checksum(p, 0);
+        return p;
+    }
+
+    // The conversions as originally written
+    private static float b2f(int real, int frac) {
+        return (float) real + (float) frac / 100.0f;
+    }
+
+    @Test
+    public void decode() {
+        SonarPacketDecoder dec = new SonarPacketDecoder();
+        Sample s = new Sample();
+        for (int whole = 0; whole < 256; whole += 5) {
+            for (int hund = 0; hund < 100; hund += 7) {
+                byte[] p = packet(whole, hund, 128, whole, hund, 8, 6, whole, hund, false);
+                assertEquals(SonarPacketDecoder.OK, dec.decode(p, 0, p.length, s));
+                assertEquals(0.3048f * b2f(whole, hund), s.depth, 1e-4);
+                assertEquals(0.3048f * b2f(whole, hund), s.fishDepth, 1e-4);
+                assertEquals((b2f(whole, hund) - 32.0f) * 5.0f / 9.0f, s.temperature, 1e-4);
+                assertEquals(50, s.strength);
+                assertEquals(50, s.fishStrength);
+                assertEquals(100, s.battery);
+            }
+        }
+        byte[] p = packet(10, 0, 0, 0, 0, 0, 3, 60, 0, true);
+        assertEquals(SonarPacketDecoder.OK, dec.decode(p, 0, p.length, s));
+        assertEquals(-0.01f, s.depth, 0);
+        assertEquals(50, s.battery);
+        assertEquals(0, dec.getMysteries());
+    }
+
+    @Test
+    public void badPackets() {
+        SonarPacketDecoder dec = new SonarPacketDecoder();
+        Sample s = new Sample();
+        byte[] p = packet(1, 2, 3, 4, 5, 6, 1, 7, 8, false);
+        assertEquals(SonarPacketDecoder.BAD_SIGNATURE, dec.decode(p, 0, 17, s));
+        p[17]++;
+        assertEquals(SonarPacketDecoder.BAD_CHECKSUM, dec.decode(p, 0, p.length, s));
+        p[17]--;
+        p[0] = 'X';
+        assertEquals(SonarPacketDecoder.BAD_SIGNATURE, dec.decode(p, 0, p.length, s));
+
+        p = packet(1, 2, 3, 4, 5, 6, 1, 7, 8, false);
+        p[15] = 1;
+        p[17] = (byte) SonarPacketDecoder.checksum(p, 0);
+        assertEquals(SonarPacketDecoder.OK, dec.decode(p, 0, p.length, s));
+        assertTrue(dec.getMysteries() != 0);
+    }
+
+    // Decoding must not allocate, so it can't cause GC pauses however long a session is
+    @Test
+    public void zeroAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return; // can't measure on this JVM
+        com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) bean;
+        long tid = Thread.currentThread().getId();
+
+        SonarPacketDecoder dec = new SonarPacketDecoder();
+        Sample s = new Sample();
+        byte[][] packets = new byte[256][];
+        for (int i = 0; i < packets.length; i++)
+            packets[i] = packet(i, i % 100, i, i / 2, i % 50, i & 0xF, i % 7, i, 99 - i % 100, (i & 1) == 0);
+
+        final int N = 1000000;
+        int ok = 0;
+        // Warm up so the measurement isn't of class loading and compilation
+        for (int i = 0; i < N; i++)
+            ok += dec.decode(packets[i & 0xFF], 0, SonarPacketDecoder.PACKET_BYTES, s);
+
+        long before = tmx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < N; i++)
+            ok += dec.decode(packets[i & 0xFF], 0, SonarPacketDecoder.PACKET_BYTES, s);
+        long allocated = tmx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(0, ok);
+        // Allow for the measurement itself allocating a little, but not one byte per packet
+        assertTrue("allocated " + allocated, allocated < N);
+    }
+}
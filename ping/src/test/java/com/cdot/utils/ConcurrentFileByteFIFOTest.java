@@ -1,13 +1,25 @@
 package com.cdot.utils;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class ConcurrentFileByteFIFOTest {
@@ -64,7 +76,7 @@ public class ConcurrentFileByteFIFOTest {
         cl.close();
         cl = new ConcurrentFileByteFIFO(new File(logfile), false);
         blah = new byte[100];
-        assertEquals(ts.length(), cl.remove(blah, 0, cl.getUsedBytes()));
+        assertEquals(ts.length(), cl.remove(blah, 0, (int) cl.getUsedBytes()));
         assertEquals(ts, pack(blah, ts.length()));
         assertEquals(0, cl.getUsedBytes());
         assertEquals(100, cl.getCapacityBytes());
@@ -106,7 +118,7 @@ public class ConcurrentFileByteFIFOTest {
         assertEquals(13, cl.getCapacityBytes());
 
         b = new byte[7];
-        assertEquals(7, cl.remove(b, 0, cl.getUsedBytes()));
+        assertEquals(7, cl.remove(b, 0, (int) cl.getUsedBytes()));
         assertEquals("EFGHIJK", pack(b));
     }
 
@@ -126,7 +138,7 @@ public class ConcurrentFileByteFIFOTest {
         assertEquals(7, cl.getUsedBytes());
         assertEquals(13, cl.getCapacityBytes());
 
-        assertEquals(7, cl.remove(b, 0, cl.getUsedBytes()));
+        assertEquals(7, cl.remove(b, 0, (int) cl.getUsedBytes()));
         assertEquals(7, b.length);
         assertEquals("GHIJK12", pack(b));
     }
@@ -145,7 +157,7 @@ public class ConcurrentFileByteFIFOTest {
         cl.add(unpack(a));
         assertEquals((a + b).length(), cl.getUsedBytes());
         byte[] buf = new byte[100];
-        cl.remove(buf, 0, cl.getUsedBytes());
+        cl.remove(buf, 0, (int) cl.getUsedBytes());
         assertEquals(b + a, pack(buf, (a + b).length()));
     }
 
@@ -191,7 +203,7 @@ public class ConcurrentFileByteFIFOTest {
         // snapshot a simple buffer with no wrap
         ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 20);
         cl.add(unpack("ABCDEFGHIJKLMNOPQRS"));
-        byte[] snap = new byte[cl.getUsedBytes()];
+        byte[] snap = new byte[(int) cl.getUsedBytes()];
 
         assertEquals(snap.length, cl.snapshot(snap, 0, snap.length));
         assertEquals("ABCDEFGHIJKLMNOPQRS", pack(snap));
@@ -211,7 +223,7 @@ public class ConcurrentFileByteFIFOTest {
         ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 28);
         cl.add(unpack("ABCDEFGHIJKLMNOPQRSTUVWXYZ"));
         cl.add(unpack("1234567890"));
-        byte[] snap = new byte[cl.getUsedBytes()];
+        byte[] snap = new byte[(int) cl.getUsedBytes()];
         assertEquals(snap.length, cl.snapshot(snap, 0, snap.length));
         assertEquals("IJKLMNOPQRSTUVWXYZ1234567890", pack(snap));
         assertEquals(28, cl.getUsedBytes());
@@ -222,8 +234,619 @@ public class ConcurrentFileByteFIFOTest {
         // snapshot a buffer that is shorter than wanted
         ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 10);
         cl.add(unpack("ABCD"));
-        byte[] snap = new byte[cl.getCapacityBytes()];
+        byte[] snap = new byte[(int) cl.getCapacityBytes()];
         assertEquals(4, cl.snapshot(snap, 0, snap.length));
         assertEquals("ABCD", pack(snap, 4));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void mappedSimple() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 20,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        cl.add(unpack("ABCDEFGHIJK"));
+        cl.add(unpack("LMNOPQRSTUV"));
+        assertEquals(20, cl.getUsedBytes());
+        byte[] snap = new byte[20];
+        assertEquals(20, cl.snapshot(snap, 0, 20));
+        assertEquals("CDEFGHIJKLMNOPQRSTUV", pack(snap));
+        byte[] b = new byte[20];
+        assertEquals(20, cl.remove(b, 0, 20));
+        assertEquals("CDEFGHIJKLMNOPQRSTUV", pack(b));
+        assertEquals(0, cl.getUsedBytes());
+    }
+
+    @Test
+    public void mappedSharesLayout() throws IOException {
+        // A buffer written using one engine must be readable using the other
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 28,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.EVERY_WRITE);
+        cl.add(unpack("ABCDEFGHIJKLMNOPQRSTUVWXYZ"));
+        cl.add(unpack("1234567890"));
+        cl.close();
+        cl = new ConcurrentFileByteFIFO(new File(logfile), true);
+        byte[] snap = new byte[(int) cl.getUsedBytes()];
+        assertEquals(28, cl.snapshot(snap, 0, snap.length));
+        assertEquals("IJKLMNOPQRSTUVWXYZ1234567890", pack(snap));
+        cl.close();
+
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        cl.setCapacityBytes(30);
+        cl.add(unpack("!?"));
+        cl.close();
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        snap = new byte[30];
+        assertEquals(30, cl.remove(snap, 0, 30));
+        assertEquals("IJKLMNOPQRSTUVWXYZ1234567890!?", pack(snap));
+    }
+
+    @Test
+    public void mappedReadOnly() throws IOException {
+        ConcurrentFileByteFIFO writer = new ConcurrentFileByteFIFO(new File(logfile), 100);
+        writer.add(unpack("ABCDEFGH"));
+        writer.close();
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        byte[] snap = new byte[8];
+        assertEquals(8, reader.snapshot(snap, 0, 8));
+        assertEquals("ABCDEFGH", pack(snap));
+        reader.close();
+    }
+
+    @Test
+    public void mappedWindowBoundary() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), MappedFileStore.WINDOW_BYTES + 100,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        // Move the read/write position to just before the end of the first window
+        byte[] filler = new byte[MappedFileStore.WINDOW_BYTES - 20];
+        cl.add(filler);
+        assertEquals(filler.length, cl.remove(filler, 0, filler.length));
+        cl.add(unpack("ABCDEFGHIJKLMNOPQRSTUVWXYZ"));
+        byte[] snap = new byte[26];
+        assertEquals(26, cl.snapshot(snap, 0, 26));
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", pack(snap));
+        cl.flush();
+        cl.close();
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        assertEquals(26, cl.remove(snap, 0, 26));
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWXYZ", pack(snap));
+    }
+
+    // Get the number of bytes used according to the metadata on disk
+    private long committedUsed() throws IOException {
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true);
+        long used = reader.getUsedBytes();
+        reader.close();
+        return used;
+    }
+
+    @Test
+    public void commitEveryRecords() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 100,
+                ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, CommitPolicy.everyRecords(3));
+        cl.add(unpack("A"));
+        cl.add(unpack("B"));
+        assertEquals(0, committedUsed());
+        cl.add(unpack("C"));
+        assertEquals(3, committedUsed());
+        cl.add(unpack("D"));
+        assertEquals(3, committedUsed());
+        cl.close();
+        assertEquals(4, committedUsed());
+    }
+
+    @Test
+    public void commitOnFlush() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 100,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        cl.add(unpack("ABCDEFGHIJK"));
+        assertEquals(0, committedUsed());
+        cl.flush();
+        assertEquals(11, committedUsed());
+        cl.setCommitPolicy(CommitPolicy.EVERY_WRITE);
+        cl.add(unpack("L"));
+        assertEquals(12, committedUsed());
+    }
+
+    @Test
+    public void commitEveryMillis() throws IOException, InterruptedException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 100,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.everyMillis(50));
+        cl.add(unpack("ABC"));
+        assertEquals(0, committedUsed());
+        Thread.sleep(60);
+        cl.add(unpack("DEF"));
+        assertEquals(6, committedUsed());
+    }
+
+    @Test
+    public void crashRecoveryWhenFull() throws IOException {
+        // The committed metadata must never claim bytes that can be overwritten before the
+        // next commit, so when the buffer wraps a commit gives up the slack
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 32,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH);
+        cl.add(unpack("ABCDEFGHIJKLMNOPQRSTUVWXYZ012345"));
+        cl.flush();
+        assertEquals(32, committedUsed());
+        // Wrapping forces a commit that gives up the overwritten bytes plus the slack (2 bytes)
+        cl.add(unpack("67"));
+        assertEquals(28, committedUsed());
+        // Writing into the slack doesn't need a commit
+        cl.add(unpack("89"));
+        assertEquals(28, committedUsed());
+        // Simulate a crash by abandoning cl without closing it
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true);
+        byte[] snap = new byte[28];
+        assertEquals(28, reader.snapshot(snap, 0, 28));
+        // The committed data is intact
+        assertEquals("EFGHIJKLMNOPQRSTUVWXYZ012345", pack(snap));
+        reader.close();
+        // In memory, nothing was given up
+        assertEquals(32, cl.getUsedBytes());
+        snap = new byte[32];
+        assertEquals(32, cl.snapshot(snap, 0, 32));
+        assertEquals("EFGHIJKLMNOPQRSTUVWXYZ0123456789", pack(snap));
+        cl.close();
+        assertEquals(32, committedUsed());
+    }
+
+    @Test
+    public void positionalSnapshot() throws IOException {
+        // ON_FLUSH, so commits don't reserve space and discard extra data
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 10,
+                ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, CommitPolicy.ON_FLUSH);
+        assertEquals(0, cl.getStartPosition());
+        assertEquals(0, cl.getEndPosition());
+        cl.add(unpack("abcdef"));
+        byte[] buf = new byte[10];
+        assertEquals(3, cl.snapshot(2, buf, 0, 3));
+        assertEquals("cde", pack(buf, 3));
+        assertEquals(0, cl.snapshot(6, buf, 0, 3));
+
+        // Wrap, discarding "abc"
+        cl.add(unpack("ghijklm"));
+        assertEquals(3, cl.getStartPosition());
+        assertEquals(13, cl.getEndPosition());
+        assertEquals(5, cl.snapshot(5, buf, 0, 5));
+        assertEquals("fghij", pack(buf, 5));
+        assertEquals(3, cl.snapshot(10, buf, 0, 10));
+        assertEquals("klm", pack(buf, 3));
+        try {
+            cl.snapshot(2, buf, 0, 1);
+            fail("Expected underflow");
+        } catch (BufferUnderflowException expected) {
+        }
+
+        // Removing advances the start; resizing doesn't move either end
+        cl.remove(buf, 0, 2);
+        assertEquals(5, cl.getStartPosition());
+        cl.setCapacityBytes(20);
+        assertEquals(5, cl.getStartPosition());
+        assertEquals(13, cl.getEndPosition());
+        assertEquals(8, cl.snapshot(5, buf, 0, 10));
+        assertEquals("fghijklm", pack(buf, 8));
+    }
+
+    // Stress test records are a sequence number written twice, so a torn or overwritten record
+    // can be spotted
+    private static final int RECORD = 2 * Long.BYTES;
+
+    // Check a run of records read from the buffer are whole, and consecutive. Returns the
+    // sequence number of the first.
+    private static long checkRecords(byte[] buf, int len) {
+        assertEquals(0, len % RECORD);
+        if (len == 0)
+            return -1;
+        ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+        long first = bb.getLong(0);
+        for (int i = 0; i < len / RECORD; i++) {
+            long seq = bb.getLong();
+            assertEquals(seq, bb.getLong());
+            assertEquals(first + i, seq);
+        }
+        return first;
+    }
+
+    // Run a reader until stopped, recording the first failure
+    private static Thread reader(final AtomicBoolean stop, final AtomicReference<Throwable> failure,
+                                 final AtomicLong reads, final Reader r) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        r.read();
+                        reads.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private interface Reader {
+        void read() throws IOException;
+    }
+
+    private void stress(ConcurrentFileByteFIFO.Engine engine) throws Exception {
+        new File(logfile).delete();
+        final ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 1024 * RECORD,
+                engine, CommitPolicy.everyMillis(10));
+        cl.setRecordBytes(RECORD);
+        // Another instance on the same file, as SonarView opens
+        final ConcurrentFileByteFIFO other = new ConcurrentFileByteFIFO(new File(logfile), true);
+        other.setRecordBytes(RECORD);
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong positional = new AtomicLong(), newest = new AtomicLong(), shared = new AtomicLong();
+        final Random random = new Random(42);
+        Thread[] readers = new Thread[5];
+        for (int i = 0; i < 3; i++) {
+            readers[i] = reader(stop, failure, positional, new Reader() {
+                final byte[] buf = new byte[16 * RECORD];
+
+                public void read() throws IOException {
+                    // Logical positions of this instance are record numbers * RECORD, so a run
+                    // read from any position must start with the record numbered by it
+                    long start = cl.getStartPosition(), end = cl.getEndPosition();
+                    if (end == start)
+                        return;
+                    long from = start + (long) random.nextInt((int) ((end - start) / RECORD)) * RECORD;
+                    try {
+                        int n = cl.snapshot(from, buf, 0, buf.length);
+                        if (n > 0)
+                            assertEquals(from / RECORD, checkRecords(buf, n));
+                    } catch (BufferUnderflowException overtaken) {
+                    }
+                }
+            });
+        }
+        readers[3] = reader(stop, failure, newest, new Reader() {
+            final byte[] buf = new byte[64 * RECORD];
+
+            public void read() throws IOException {
+                checkRecords(buf, cl.snapshot(buf, 0, buf.length));
+            }
+        });
+        readers[4] = reader(stop, failure, shared, new Reader() {
+            final byte[] buf = new byte[64 * RECORD];
+
+            public void read() throws IOException {
+                checkRecords(buf, other.snapshot(buf, 0, buf.length));
+            }
+        });
+
+        // Append as fast as possible, resizing now and then
+        byte[] rec = new byte[RECORD];
+        ByteBuffer bb = ByteBuffer.wrap(rec);
+        long deadline = System.currentTimeMillis() + 1000;
+        long seq = 0;
+        while (System.currentTimeMillis() < deadline && failure.get() == null) {
+            bb.putLong(0, seq).putLong(Long.BYTES, seq);
+            cl.add(rec);
+            if (++seq % 5000 == 0)
+                cl.setCapacityBytes((cl.getCapacityBytes() == 1024 * RECORD ? 768 : 1024) * RECORD);
+        }
+        stop.set(true);
+        for (Thread t : readers)
+            t.join();
+        other.close();
+        cl.close();
+
+        if (failure.get() != null)
+            throw new AssertionError("Stress " + engine + " failed after " + seq + " adds", failure.get());
+        assertTrue(seq > 0);
+        assertTrue(positional.get() > 0 && newest.get() > 0 && shared.get() > 0);
+    }
+
+    @Test
+    public void stressReadersAndAppender() throws Exception {
+        stress(ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS);
+        stress(ConcurrentFileByteFIFO.Engine.MAPPED);
+    }
+
+    @Test
+    public void resizeWhileAdding() throws Exception {
+        // 4MB buffer of records, wrapped so a resize has to migrate it
+        final ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 256 * 1024 * RECORD,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.everyMillis(100));
+        cl.setRecordBytes(RECORD);
+        final byte[] rec = new byte[RECORD];
+        final ByteBuffer bb = ByteBuffer.wrap(rec);
+        final AtomicLong seq = new AtomicLong();
+        for (; seq.get() < 300 * 1024; seq.incrementAndGet()) {
+            bb.putLong(0, seq.get()).putLong(Long.BYTES, seq.get());
+            cl.add(rec);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread appender = new Thread() {
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        long n = seq.get();
+                        bb.putLong(0, n).putLong(Long.BYTES, n);
+                        cl.add(rec);
+                        seq.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        appender.start();
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean tmx = bean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        long tid = Thread.currentThread().getId();
+        int[] sizes = {200 * 1024, 300 * 1024, 100 * 1024};
+        for (int size : sizes) {
+            long allocBefore = tmx == null ? 0 : tmx.getThreadAllocatedBytes(tid);
+            cl.setCapacityBytes(size * RECORD);
+            long allocated = tmx == null ? 0 : tmx.getThreadAllocatedBytes(tid) - allocBefore;
+            // Memory use doesn't depend on the size of the buffer
+            assertTrue(allocated < 1024 * 1024);
+            assertEquals(size * RECORD, cl.getCapacityBytes());
+        }
+        stop.set(true);
+        appender.join();
+        assertNull(failure.get());
+
+        // The newest records survived, in order
+        assertEquals(100 * 1024 * RECORD, cl.getUsedBytes());
+        byte[] buf = new byte[(int) cl.getUsedBytes()];
+        assertEquals(buf.length, cl.snapshot(buf, 0, buf.length));
+        assertEquals(seq.get() - 100 * 1024, checkRecords(buf, buf.length));
+        assertEquals(seq.get() * RECORD, cl.getEndPosition());
+        cl.close();
+
+        // And the swapped in file reopens
+        checkReopened(seq.get());
+    }
+
+    private void checkReopened(long seq) throws IOException {
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true);
+        reader.setRecordBytes(RECORD);
+        byte[] buf = new byte[(int) reader.getUsedBytes()];
+        assertEquals(buf.length, reader.snapshot(buf, 0, buf.length));
+        assertEquals(seq - buf.length / RECORD, checkRecords(buf, buf.length));
+        reader.close();
+        assertTrue(!new File(logfile + ".resize").exists());
+    }
+
+    // Write a header in the current format over the start of the log file
+    private static void writeHeader(long capacity, long readPos, long used, long end) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(ConcurrentFileByteFIFO.HEADER_BYTES);
+        bb.putInt(ConcurrentFileByteFIFO.MAGIC).putInt(ConcurrentFileByteFIFO.FORMAT);
+        bb.putLong(capacity).putLong(readPos).putLong(used).putLong(end);
+        CRC32 crc = new CRC32();
+        crc.update(bb.array(), 0, bb.capacity() - Integer.BYTES);
+        bb.putInt(bb.capacity() - Integer.BYTES, (int) crc.getValue());
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.write(bb.array());
+        raf.close();
+    }
+
+    // Positions in the stream are 64 bit, independent of the capacity, so a small buffer can be
+    // started beyond the 4GB mark by writing its header
+    private void wrapBeyond4GB(ConcurrentFileByteFIFO.Engine engine, long capacity) throws IOException {
+        new File(logfile).delete();
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), capacity, engine, CommitPolicy.ON_FLUSH);
+        cl.close();
+        // Pretend 6GB have been written, and the buffer is full with the oldest byte just
+        // before the end of the file
+        long end = 6L * 1024 * 1024 * 1024;
+        writeHeader(capacity, capacity - 16, capacity, end);
+
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false, engine, CommitPolicy.ON_FLUSH);
+        assertEquals(capacity, cl.getCapacityBytes());
+        assertEquals(end - capacity, cl.getStartPosition());
+        cl.add(unpack("ABCDEFGH"));
+        // Wrap, so the read position moves from past the 4GB mark to the start of the file
+        cl.add(unpack("IJKLMNOPQRSTUVWX"));
+        assertEquals(capacity, cl.getUsedBytes());
+        assertEquals(end + 24, cl.getEndPosition());
+        byte[] buf = new byte[24];
+        assertEquals(24, cl.snapshot(buf, 0, 24));
+        assertEquals("ABCDEFGHIJKLMNOPQRSTUVWX", pack(buf));
+        cl.close();
+
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true, engine, CommitPolicy.ON_FLUSH);
+        assertEquals(end + 24, reader.getEndPosition());
+        assertEquals(12, reader.snapshot(end + 4, buf, 0, 12));
+        assertEquals("EFGHIJKLMNOP", pack(buf, 12));
+        reader.close();
+    }
+
+    @Test
+    public void wrapWhenFull() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 10,
+                ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, CommitPolicy.ON_FLUSH);
+        cl.add(unpack("0123456789"));
+        cl.add(unpack("abcde"));
+        // Full, with the oldest byte half way along, so the next add wraps over it
+        cl.add(unpack("fghijkl"));
+        assertEquals(10, cl.getUsedBytes());
+        byte[] buf = new byte[10];
+        assertEquals(10, cl.snapshot(buf, 0, 10));
+        assertEquals("cdefghijkl", pack(buf));
+        // Wrapped, with room before the oldest byte
+        assertEquals(3, cl.remove(buf, 0, 3));
+        cl.add(unpack("mnopqrst"));
+        assertEquals(10, cl.getUsedBytes());
+        assertEquals(10, cl.snapshot(buf, 0, 10));
+        assertEquals("klmnopqrst", pack(buf));
+    }
+
+    @Test
+    public void wrapBeyond4GB() throws IOException {
+        wrapBeyond4GB(ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, 64);
+        wrapBeyond4GB(ConcurrentFileByteFIFO.Engine.MAPPED, 64);
+    }
+
+    // The same with a 5GB file, so file offsets are beyond 4GB too. The file is sparse, so this
+    // doesn't really take 5GB of disk, but not all filesystems support that, so it only runs when
+    // asked for with -Dping.largeFiles=true
+    @Test
+    public void wrapBeyond4GBLargeFile() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("ping.largeFiles"));
+        final long capacity = 5L * 1024 * 1024 * 1024;
+        wrapBeyond4GB(ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, capacity);
+        wrapBeyond4GB(ConcurrentFileByteFIFO.Engine.MAPPED, capacity);
+        new File(logfile).delete();
+    }
+
+    @Test
+    public void recordFormat() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 100);
+        assertEquals(0, cl.getRecordFormat());
+        cl.setRecordFormat(7);
+        cl.add(new byte[60]);
+        // Kept when the data has to be migrated
+        cl.setCapacityBytes(50);
+        cl.close();
+        cl = new ConcurrentFileByteFIFO(new File(logfile), true);
+        assertEquals(7, cl.getRecordFormat());
+        cl.close();
+    }
+
+    @Test
+    public void migrateOriginalFormat() throws IOException {
+        // A full 10 byte buffer in the original format, wrapped with the oldest byte at 4
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.writeInt(10);
+        raf.writeInt(4);
+        raf.writeInt(10);
+        raf.write(unpack("KLMNEFGHIJ"));
+        raf.close();
+
+        // Read as is when opened readOnly
+        ConcurrentFileByteFIFO reader = new ConcurrentFileByteFIFO(new File(logfile), true);
+        byte[] buf = new byte[10];
+        assertEquals(10, reader.snapshot(buf, 0, 10));
+        assertEquals("EFGHIJKLMN", pack(buf));
+        reader.close();
+        assertEquals(22, new File(logfile).length());
+
+        // Migrated when opened for writing
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        assertEquals(10, cl.getCapacityBytes());
+        assertEquals(10, cl.getUsedBytes());
+        cl.add(unpack("O"));
+        assertEquals(10, cl.snapshot(buf, 0, 10));
+        assertEquals("FGHIJKLMNO", pack(buf));
+        cl.close();
+        assertEquals(ConcurrentFileByteFIFO.HEADER_BYTES + 10, new File(logfile).length());
+        raf = new RandomAccessFile(logfile, "r");
+        assertEquals(ConcurrentFileByteFIFO.MAGIC, raf.readInt());
+        raf.close();
+
+        // Logical positions carry on from one session to the next
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        long end = cl.getEndPosition();
+        cl.add(unpack("P"));
+        assertEquals(end + 1, cl.getEndPosition());
+        assertEquals(10, cl.snapshot(buf, 0, 10));
+        assertEquals("GHIJKLMNOP", pack(buf));
+        cl.close();
+    }
+
+    // Overwrite a byte of the data of a framed buffer, as if a write had been torn
+    private void tear(int offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.seek(ConcurrentFileByteFIFO.FRAMED_HEADER_BYTES + offset);
+        raf.write('!');
+        raf.close();
+    }
+
+    private String contents(ConcurrentFileByteFIFO cl) throws IOException {
+        byte[] buf = new byte[(int) cl.getUsedBytes()];
+        cl.snapshot(buf, 0, buf.length);
+        return pack(buf);
+    }
+
+    @Test
+    public void framedRecovery() throws IOException {
+        for (ConcurrentFileByteFIFO.Engine engine : ConcurrentFileByteFIFO.Engine.values()) {
+            new File(logfile).delete();
+            ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 100, engine,
+                    CommitPolicy.ON_FLUSH, true);
+            assertTrue(cl.isFramed());
+            cl.add(unpack("ABC"));
+            cl.flush();
+            cl.add(unpack("DEF"));
+            cl.add(unpack("GHI"));
+            // Simulate a crash by abandoning cl without closing it. Only the commit is on record,
+            // but the adds after it are recovered when the buffer is opened for writing.
+            assertEquals(3, committedUsed());
+            cl = new ConcurrentFileByteFIFO(new File(logfile), false, engine, CommitPolicy.ON_FLUSH);
+            assertTrue(cl.isFramed());
+            assertEquals("ABCDEFGHI", contents(cl));
+            assertEquals(9, cl.getEndPosition());
+            assertEquals(9, committedUsed());
+
+            // Recovery stops at the first add whose bytes weren't all written
+            cl.add(unpack("JKL"));
+            cl.add(unpack("MNO"));
+            tear(12);
+            cl = new ConcurrentFileByteFIFO(new File(logfile), false, engine, CommitPolicy.ON_FLUSH);
+            assertEquals("ABCDEFGHIJKL", contents(cl));
+
+            // Frames from before the crash are never mistaken for new ones, even where the same
+            // bytes are added again
+            cl.add(unpack("MNO"));
+            cl.add(unpack("PQR"));
+            tear(12);
+            cl = new ConcurrentFileByteFIFO(new File(logfile), false, engine, CommitPolicy.ON_FLUSH);
+            cl.add(unpack("MNO"));
+            cl = new ConcurrentFileByteFIFO(new File(logfile), false, engine, CommitPolicy.ON_FLUSH);
+            assertEquals("ABCDEFGHIJKLMNO", contents(cl));
+            cl.close();
+        }
+    }
+
+    @Test
+    public void framedRecoveryWhenFull() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 32,
+                ConcurrentFileByteFIFO.Engine.MAPPED, CommitPolicy.ON_FLUSH, true);
+        cl.add(unpack("ABCDEFGHIJKLMNOPQRSTUVWXYZ012345"));
+        cl.flush();
+        cl.add(unpack("67"));
+        cl.add(unpack("89"));
+        assertEquals(28, committedUsed());
+        // Crash, and everything comes back
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false, ConcurrentFileByteFIFO.Engine.MAPPED,
+                CommitPolicy.ON_FLUSH);
+        assertEquals(32, cl.getUsedBytes());
+        assertEquals("EFGHIJKLMNOPQRSTUVWXYZ0123456789", contents(cl));
+        cl.close();
+    }
+
+    @Test
+    public void framedTableFull() throws IOException {
+        ConcurrentFileByteFIFO cl = new ConcurrentFileByteFIFO(new File(logfile), 10000,
+                ConcurrentFileByteFIFO.Engine.RANDOM_ACCESS, CommitPolicy.ON_FLUSH, true);
+        for (int i = 0; i < ConcurrentFileByteFIFO.FRAME_SLOTS + 10; i++)
+            cl.add(new byte[]{(byte) i});
+        // The table filled, so a commit was made
+        assertEquals(ConcurrentFileByteFIFO.FRAME_SLOTS, committedUsed());
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        assertEquals(ConcurrentFileByteFIFO.FRAME_SLOTS + 10, cl.getUsedBytes());
+
+        // Framing survives having to migrate the data
+        cl.setCapacityBytes(100);
+        cl.add(new byte[]{1, 2, 3});
+        cl = new ConcurrentFileByteFIFO(new File(logfile), false);
+        assertTrue(cl.isFramed());
+        assertEquals(ConcurrentFileByteFIFO.FRAME_SLOTS + 13, cl.getEndPosition());
+        byte[] newest = new byte[3];
+        assertEquals(3, cl.snapshot(newest, 0, 3));
+        assertEquals("\u0001\u0002\u0003", pack(newest));
+        cl.close();
+    }
+}
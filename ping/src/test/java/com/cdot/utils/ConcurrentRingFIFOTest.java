@@ -0,0 +1,56 @@
+package com.cdot.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentRingFIFOTest {
+
+    @Test
+    public void simple() {
+        ConcurrentRingFIFO<Integer> q = new ConcurrentRingFIFO<>(3);
+        assertEquals(4, q.getCapacity());
+        assertTrue(q.isEmpty());
+        for (int i = 0; i < 4; i++)
+            assertTrue(q.offer(i));
+        assertFalse(q.offer(99));
+        assertEquals(4, q.size());
+        assertEquals(0, (int) q.poll());
+        assertTrue(q.offer(4));
+        Integer[] buf = new Integer[10];
+        assertEquals(3, q.drain(buf, 1, 3));
+        assertEquals(1, (int) buf[1]);
+        assertEquals(3, (int) buf[3]);
+        assertEquals(4, (int) q.poll());
+        assertNull(q.poll());
+        assertEquals(0, q.drain(buf, 0, 10));
+    }
+
+    @Test
+    public void producerConsumer() throws InterruptedException {
+        final int N = 1000000;
+        final ConcurrentRingFIFO<Integer> q = new ConcurrentRingFIFO<>(64);
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < N; i++)
+                    while (!q.offer(i))
+                        Thread.yield();
+            }
+        };
+        producer.start();
+        Integer[] buf = new Integer[16];
+        int expect = 0;
+        while (expect < N) {
+            int n = q.drain(buf, 0, buf.length);
+            if (n == 0)
+                Thread.yield();
+            for (int i = 0; i < n; i++)
+                assertEquals(expect++, (int) buf[i]);
+        }
+        producer.join();
+        assertTrue(q.isEmpty());
+    }
+}
@@ -0,0 +1,89 @@
+package com.cdot.utils;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        // Every bucket's range follows on from the one before, and holds the values it says it does
+        long lowest = 0;
+        for (int b = 0; b < 1000; b++) {
+            long highest = LatencyHistogram.highestValue(b);
+            assertEquals(b, LatencyHistogram.bucket(lowest));
+            assertEquals(b, LatencyHistogram.bucket(highest));
+            // Each bucket is within 1/32 of its values
+            assertTrue(highest - lowest <= lowest / 32 + 1);
+            lowest = highest + 1;
+        }
+        LatencyHistogram.bucket(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getValueAtPercentile(50));
+        for (long v = 1; v <= 100000; v++)
+            h.record(v * 1000);
+        assertEquals(100000, h.getCount());
+        assertEquals(100000000, h.getMax());
+        assertEquals(50000500, h.getMean(), 1);
+        assertEquals(50000000, h.getValueAtPercentile(50), 50000000 * 0.032);
+        assertEquals(99000000, h.getValueAtPercentile(99), 99000000 * 0.032);
+        assertEquals(99900000, h.getValueAtPercentile(99.9), 99900000 * 0.032);
+        assertEquals(100000000, h.getValueAtPercentile(100));
+        assertEquals(1000, h.getValueAtPercentile(0), 1000 * 0.032);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random r = new Random(seed);
+                for (int i = 0; i < 100000; i++)
+                    h.record(r.nextInt(1000000));
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(400000, h.getCount());
+        assertEquals(500000, h.getValueAtPercentile(50), 500000 * 0.05);
+    }
+
+    // Recording must not allocate, so it can be left on in the sample pipeline
+    @Test
+    public void zeroAllocation() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return; // can't measure on this JVM
+        com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) bean;
+        long tid = Thread.currentThread().getId();
+
+        LatencyHistogram h = new LatencyHistogram();
+        final int N = 1000000;
+        // Warm up so the measurement isn't of class loading and compilation
+        for (int i = 0; i < N; i++)
+            h.record(i * 997L);
+
+        long before = tmx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < N; i++)
+            h.record(i * 997L);
+        long allocated = tmx.getThreadAllocatedBytes(tid) - before;
+
+        assertEquals(2 * N, h.getCount());
+        assertTrue(allocated < 1000);
+    }
+}
@@ -0,0 +1,38 @@
+package com.cdot.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+    @Test
+    public void simple() {
+        RateLimiter rl = new RateLimiter(1000);
+        assertTrue(rl.tryAcquire(5000));
+        assertFalse(rl.tryAcquire(5000));
+        assertFalse(rl.tryAcquire(5999));
+        assertTrue(rl.tryAcquire(6000));
+        assertFalse(rl.tryAcquire(6500));
+        assertTrue(rl.tryAcquire(9000));
+    }
+
+    // An hour of samples at 8Hz, as LoggingService sees them, is refreshed once a second
+    @Test
+    public void sampleStream() {
+        RateLimiter rl = new RateLimiter(1000);
+        int refreshes = 0;
+        long last = -1000;
+        for (int i = 0; i < 8 * 3600; i++) {
+            long now = i * 125L;
+            if (rl.tryAcquire(now)) {
+                assertTrue(now - last >= 1000);
+                last = now;
+                refreshes++;
+            }
+        }
+        assertEquals(3600, refreshes);
+    }
+}
@@ -0,0 +1,232 @@
+package com.cdot.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedFileByteFIFOTest {
+
+    private static final File logdir = new File("bytes.segments");
+
+    @Before
+    public void killLogDir() {
+        File[] files = logdir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        logdir.delete();
+    }
+
+    private static byte[] bytes(int from, int len) {
+        byte[] b = new byte[len];
+        for (int i = 0; i < len; i++)
+            b[i] = (byte) (from + i);
+        return b;
+    }
+
+    private static void checkBytes(long from, byte[] b, int len) {
+        for (int i = 0; i < len; i++)
+            assertEquals("at " + (from + i), (byte) (from + i), b[i]);
+    }
+
+    private static int countSegments() {
+        int n = 0;
+        for (String name : logdir.list())
+            if (name.endsWith(SegmentedFileByteFIFO.SEGMENT_SUFFIX))
+                n++;
+        return n;
+    }
+
+    @Test
+    public void simple() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 100, 10, CommitPolicy.EVERY_WRITE);
+        assertEquals(100, sl.getCapacityBytes());
+        sl.add(bytes(0, 25));
+        assertEquals(25, sl.getUsedBytes());
+        assertEquals(3, countSegments());
+        byte[] buf = new byte[30];
+        assertEquals(25, sl.remove(buf, 0, 30));
+        checkBytes(0, buf, 25);
+        assertEquals(0, sl.getUsedBytes());
+        assertEquals(25, sl.getStartPosition());
+        // The segments wholly removed have gone
+        assertEquals(1, countSegments());
+        sl.close();
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 100, 10, CommitPolicy.ON_FLUSH);
+        sl.add(bytes(0, 37));
+        sl.close();
+        try {
+            new SegmentedFileByteFIFO(logdir, 100, 10, CommitPolicy.ON_FLUSH);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        sl = new SegmentedFileByteFIFO(logdir, false, CommitPolicy.ON_FLUSH);
+        assertEquals(10, sl.getSegmentBytes());
+        assertEquals(0, sl.getRecordFormat());
+        sl.setRecordFormat(3);
+        assertEquals(3, new SegmentedFileByteFIFO(logdir, true, CommitPolicy.ON_FLUSH).getRecordFormat());
+        assertEquals(37, sl.getEndPosition());
+        sl.add(bytes(37, 5));
+        byte[] buf = new byte[42];
+        assertEquals(42, sl.snapshot(0, buf, 0, buf.length));
+        checkBytes(0, buf, 42);
+        sl.close();
+    }
+
+    @Test
+    public void dropsWholeSegments() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 100, 20, CommitPolicy.ON_FLUSH);
+        for (int i = 0; i < 100; i += 4)
+            sl.add(bytes(i, 4));
+        assertEquals(100, sl.getUsedBytes());
+        assertEquals(5, countSegments());
+        // Full, so the oldest segment goes to make room
+        sl.add(bytes(100, 4));
+        assertEquals(20, sl.getStartPosition());
+        assertEquals(84, sl.getUsedBytes());
+        assertEquals(5, countSegments());
+        for (int i = 104; i < 1000; i += 4) {
+            sl.add(bytes(i, 4));
+            assertTrue(sl.getUsedBytes() <= 100);
+            assertTrue(sl.getUsedBytes() > 80);
+            assertEquals(0, sl.getStartPosition() % 20);
+        }
+        assertEquals(5, countSegments());
+        byte[] buf = new byte[100];
+        int n = sl.snapshot(buf, 0, buf.length);
+        checkBytes(1000 - n, buf, n);
+        try {
+            sl.snapshot(0, buf, 0, buf.length);
+            fail("Expected BufferUnderflowException");
+        } catch (BufferUnderflowException expected) {
+        }
+        sl.close();
+    }
+
+    @Test
+    public void resize() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 100, 10, CommitPolicy.ON_FLUSH);
+        sl.add(bytes(0, 95));
+        sl.setCapacityBytes(1000);
+        sl.add(bytes(95, 100));
+        assertEquals(195, sl.getUsedBytes());
+        sl.setCapacityBytes(50);
+        assertEquals(150, sl.getStartPosition());
+        assertEquals(45, sl.getUsedBytes());
+        assertEquals(5, countSegments());
+        sl.close();
+        sl = new SegmentedFileByteFIFO(logdir, false, CommitPolicy.ON_FLUSH);
+        assertEquals(50, sl.getCapacityBytes());
+        byte[] buf = new byte[45];
+        assertEquals(45, sl.snapshot(150, buf, 0, buf.length));
+        checkBytes(150, buf, 45);
+        sl.close();
+    }
+
+    @Test
+    public void crashRecovery() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 1000, 30, CommitPolicy.everyRecords(20));
+        sl.setRecordBytes(3);
+        for (int i = 0; i < 40; i++)
+            sl.add(bytes(i * 3, 3));
+        // The next records aren't committed, and the last segment only holds them
+        for (int i = 40; i < 59; i++)
+            sl.add(bytes(i * 3, 3));
+        assertEquals(6, countSegments());
+
+        // Crash, without closing
+        sl = new SegmentedFileByteFIFO(logdir, false, CommitPolicy.ON_FLUSH);
+        sl.setRecordBytes(3);
+        assertEquals(120, sl.getEndPosition());
+        assertEquals(5, countSegments());
+        assertEquals(0, sl.getStartPosition());
+        // Bytes written since the commit are overwritten
+        sl.add(bytes(0, 3));
+        byte[] buf = new byte[3];
+        assertEquals(3, sl.snapshot(120, buf, 0, 3));
+        checkBytes(0, buf, 3);
+        sl.close();
+    }
+
+    @Test
+    public void readOnlySharesWithWriter() throws IOException {
+        SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 40, 10, CommitPolicy.ON_FLUSH);
+        sl.add(bytes(0, 35));
+        SegmentedFileByteFIFO ro = new SegmentedFileByteFIFO(logdir, true, CommitPolicy.ON_FLUSH);
+        assertEquals(0, ro.getEndPosition());
+        sl.flush();
+        byte[] buf = new byte[35];
+        assertEquals(35, ro.snapshot(0, buf, 0, buf.length));
+        checkBytes(0, buf, 35);
+        try {
+            ro.add(bytes(0, 1));
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        // Drop the first segments
+        sl.add(bytes(35, 20));
+        try {
+            ro.snapshot(0, buf, 0, buf.length);
+            fail("Expected BufferUnderflowException");
+        } catch (BufferUnderflowException expected) {
+        }
+        assertEquals(35, ro.snapshot(buf, 0, buf.length));
+        checkBytes(20, buf, 35);
+        ro.close();
+        sl.close();
+    }
+
+    @Test
+    public void readersAndAppender() throws Exception {
+        final SegmentedFileByteFIFO sl = new SegmentedFileByteFIFO(logdir, 64 * 1024, 4096, CommitPolicy.everyMillis(10));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    byte[] buf = new byte[1000];
+                    try {
+                        while (!stop.get()) {
+                            long from = sl.getStartPosition();
+                            try {
+                                int n = sl.snapshot(from, buf, 0, buf.length);
+                                checkBytes(from, buf, n);
+                            } catch (BufferUnderflowException bue) {
+                                // Overtaken by the appender
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        long p = 0;
+        for (int i = 0; i < 5000; i++) {
+            sl.add(bytes((int) p, 100));
+            p += 100;
+        }
+        stop.set(true);
+        for (Thread t : readers)
+            t.join();
+        assertNull(failure.get());
+        assertTrue(countSegments() <= 17);
+        sl.close();
+    }
+}